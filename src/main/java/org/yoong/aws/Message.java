@@ -8,11 +8,17 @@ public class Message {
     // only set when pulled from a queue.
     private String receiptHandle;
     private long invisibleTimeoutTime;
+    // unix timestamps when the message was pushed, and first pulled. 0 when not known.
+    private long sentTimestamp;
+    private long firstReceiveTimestamp;
     
-    private Message(String receiptHandle, long invisibleTimeoutTime, String body) {
+    private Message(String receiptHandle, long invisibleTimeoutTime, String body, long sentTimestamp,
+            long firstReceiveTimestamp) {
         this.receiptHandle = receiptHandle;
         this.invisibleTimeoutTime = invisibleTimeoutTime;
         this.body = body;
+        this.sentTimestamp = sentTimestamp;
+        this.firstReceiveTimestamp = firstReceiveTimestamp;
     }
 
     protected void setBody(String body) {
@@ -30,6 +36,23 @@ public class Message {
     public long getInvisibleTimeoutTime() {
         return invisibleTimeoutTime;
     }
+
+    public long getSentTimestamp() {
+        return sentTimestamp;
+    }
+
+    public long getFirstReceiveTimestamp() {
+        return firstReceiveTimestamp;
+    }
+
+    /**
+     * Set the first receive timestamp, unless the message has already been received.
+     */
+    public void markFirstReceive(Clock clock) {
+        if (firstReceiveTimestamp == 0) {
+            firstReceiveTimestamp = clock.getCurrentTime();
+        }
+    }
     
     /**
      * Check whether a message is invisible by comparing current system time with the timeout time.
@@ -62,6 +85,8 @@ public class Message {
         private String receiptHandle;
         private String body;
         private long invisibleTimeoutTime = 0;
+        private long sentTimestamp = 0;
+        private long firstReceiveTimestamp = 0;
         
         public MessageBuilder() {
             
@@ -82,8 +107,18 @@ public class Message {
             return this;
         }
         
+        public MessageBuilder setSentTimestamp(long sentTimestamp) {
+            this.sentTimestamp = sentTimestamp;
+            return this;
+        }
+        
+        public MessageBuilder setFirstReceiveTimestamp(long firstReceiveTimestamp) {
+            this.firstReceiveTimestamp = firstReceiveTimestamp;
+            return this;
+        }
+        
         public Message build() {
-            return new Message(receiptHandle, invisibleTimeoutTime, body);
+            return new Message(receiptHandle, invisibleTimeoutTime, body, sentTimestamp, firstReceiveTimestamp);
         }
     }
 }
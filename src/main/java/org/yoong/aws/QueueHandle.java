@@ -0,0 +1,35 @@
+package org.yoong.aws;
+
+/**
+ * A queue resolved by {@link QueueService#getQueueHandle}, with push, pull and delete bound to it. <br/>
+ * Calls through a handle skip the lookup (and for some services, hashing) of the queue url which every call through
+ * the QueueService does, which helps in hot loops.
+ *
+ * <p>
+ * A handle stays bound to the queue it was resolved from. Once that queue is deleted, calls through the handle throw
+ * {@link org.yoong.aws.exceptions.NoSuchQueueException}, and a new handle is needed if the queue is created again.
+ * </p>
+ */
+public interface QueueHandle {
+
+    /**
+     * @return url of the queue this handle is bound to
+     */
+    public String getQueueUrl();
+
+    /**
+     * @see QueueService#push
+     */
+    public void push(String message);
+
+    /**
+     * @see QueueService#pull
+     */
+    public Message pull();
+
+    /**
+     * @see QueueService#delete
+     */
+    public boolean delete(Message handle);
+
+}
@@ -39,4 +39,42 @@ public interface QueueService {
      */
     public boolean delete(String queueUrl, Message handle);
 
+    /**
+     * Method to move a pulled message to another queue, by deleting it from the source queue and pushing a message to
+     * the target queue. <br/>
+     * Implementations document whether both happen as a single atomic step.
+     * 
+     * @param sourceUrl - url of queue the message was pulled from
+     * @param handle - Message object pulled from the source queue
+     * @param targetUrl - url of queue to push the message to
+     * @param newBody - body of the message pushed to the target queue, or null to keep the body of the pulled message
+     * @return <code>true</code> if transferred, <code>false</code> if the message could not be deleted from the source
+     *         queue, in which case nothing is pushed to the target queue
+     */
+    public boolean transfer(String sourceUrl, Message handle, String targetUrl, String newBody);
+
+    /**
+     * Method to delete all messages from a queue, including pulled messages which have not been deleted yet.
+     * 
+     * @param queueUrl - url of queue obtained from createQueue method.
+     */
+    public void purgeQueue(String queueUrl);
+
+    /**
+     * Method to delete a queue and all of its messages. 
+     * The queue's url can no longer be used, unless the queue is created again.
+     * 
+     * @param queueUrl - url of queue obtained from createQueue method.
+     */
+    public void deleteQueue(String queueUrl);
+
+    /**
+     * Method to resolve a queue once, for repeated calls which skip resolving the queue url.
+     * 
+     * @param queueUrl - url of queue obtained from createQueue method.
+     * @return handle bound to the queue
+     * @see {@link QueueHandle}
+     */
+    public QueueHandle getQueueHandle(String queueUrl);
+
 }
@@ -0,0 +1,24 @@
+package org.yoong.aws;
+
+/**
+ * Value pulled from a {@link TypedQueue}, along with the message it was decoded from, which is needed to delete it.
+ */
+public class TypedMessage<T> {
+
+    private final Message message;
+    private final T value;
+
+    public TypedMessage(Message message, T value) {
+        this.message = message;
+        this.value = value;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public T getValue() {
+        return value;
+    }
+
+}
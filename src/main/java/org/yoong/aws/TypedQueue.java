@@ -0,0 +1,78 @@
+package org.yoong.aws;
+
+import org.yoong.aws.codec.MessageCodec;
+
+/**
+ * Queue of typed values, converting them to and from message bodies with a {@link MessageCodec}.
+ *
+ * <p>
+ * Values are pushed and pulled through a {@link QueueHandle}, so a TypedQueue skips the queue lookup too. <br/>
+ * Each thread encodes into its own StringBuilder, which is kept between pushes, so encoding a value only allocates the
+ * body string the QueueService needs. A buffer grown past {@link #MAX_RETAINED_CAPACITY} by an unusually large value
+ * is dropped after use rather than retained.
+ * </p>
+ *
+ * @param <T> - type of the values in the queue
+ */
+public class TypedQueue<T> {
+
+    static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<StringBuilder> BUFFERS = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    private final QueueHandle handle;
+    private final MessageCodec<T> codec;
+
+    public TypedQueue(QueueHandle handle, MessageCodec<T> codec) {
+        this.handle = handle;
+        this.codec = codec;
+    }
+
+    public TypedQueue(QueueService service, String queueUrl, MessageCodec<T> codec) {
+        this(service.getQueueHandle(queueUrl), codec);
+    }
+
+    public String getQueueUrl() {
+        return handle.getQueueUrl();
+    }
+
+    /**
+     * @see QueueService#push
+     */
+    public void push(T value) {
+
+        StringBuilder buffer = BUFFERS.get();
+        buffer.setLength(0);
+
+        codec.encode(value, buffer);
+        handle.push(buffer.toString());
+
+        if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+            BUFFERS.remove();
+        }
+    }
+
+    /**
+     * @return the next value with the message it was pulled in, or null if the queue is empty
+     * @see QueueService#pull
+     */
+    public TypedMessage<T> pull() {
+
+        Message msg = handle.pull();
+
+        return (msg == null) ? null : new TypedMessage<T>(msg, codec.decode(msg.getBody()));
+    }
+
+    /**
+     * @see QueueService#delete
+     */
+    public boolean delete(TypedMessage<T> msg) {
+        return handle.delete(msg.getMessage());
+    }
+
+}
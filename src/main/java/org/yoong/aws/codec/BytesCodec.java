@@ -0,0 +1,45 @@
+package org.yoong.aws.codec;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Codec writing byte arrays as base64, which every backend can store as a body.
+ *
+ * <p>
+ * Encoding writes the base64 characters straight into the reused buffer, three bytes at a time, rather than building
+ * an intermediate String. The output is the same as {@link BaseEncoding#base64()}, which decodes it.
+ * </p>
+ */
+public class BytesCodec implements MessageCodec<byte[]> {
+
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+    private static final char PADDING = '=';
+
+    @Override
+    public void encode(byte[] value, StringBuilder out) {
+
+        out.ensureCapacity(out.length() + (value.length + 2) / 3 * 4);
+
+        int i = 0;
+        for (; i + 2 < value.length; i += 3) {
+            int bits = (value[i] & 0xff) << 16 | (value[i + 1] & 0xff) << 8 | (value[i + 2] & 0xff);
+            out.append(ALPHABET[bits >>> 18]).append(ALPHABET[(bits >>> 12) & 0x3f])
+                    .append(ALPHABET[(bits >>> 6) & 0x3f]).append(ALPHABET[bits & 0x3f]);
+        }
+
+        // the last one or two bytes, padded to four characters
+        int remaining = value.length - i;
+        if (remaining > 0) {
+            int bits = (value[i] & 0xff) << 16 | ((remaining == 2) ? (value[i + 1] & 0xff) << 8 : 0);
+            out.append(ALPHABET[bits >>> 18]).append(ALPHABET[(bits >>> 12) & 0x3f])
+                    .append((remaining == 2) ? ALPHABET[(bits >>> 6) & 0x3f] : PADDING).append(PADDING);
+        }
+    }
+
+    @Override
+    public byte[] decode(CharSequence body) {
+        return BaseEncoding.base64().decode(body);
+    }
+
+}
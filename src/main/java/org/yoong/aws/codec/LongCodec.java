@@ -0,0 +1,49 @@
+package org.yoong.aws.codec;
+
+/**
+ * Codec writing longs as decimal text, and parsing them straight from the body without a substring.
+ */
+public class LongCodec implements MessageCodec<Long> {
+
+    @Override
+    public void encode(Long value, StringBuilder out) {
+        out.append(value.longValue());
+    }
+
+    @Override
+    public Long decode(CharSequence body) {
+        return parse(body, 0, body.length());
+    }
+
+    /**
+     * Parse a decimal long from part of a CharSequence, for codecs of values with numeric fields.
+     *
+     * @throws NumberFormatException if the characters between start and end are not a long
+     */
+    public static long parse(CharSequence body, int start, int end) {
+
+        if (start >= end) {
+            throw new NumberFormatException("Empty number at " + start);
+        }
+
+        boolean negative = body.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end) {
+            throw new NumberFormatException("Invalid number \"" + body.subSequence(start, end) + "\"");
+        }
+
+        // accumulate negatively, so that Long.MIN_VALUE can be parsed
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = body.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || result < (limit + digit) / 10) {
+                throw new NumberFormatException("Invalid number \"" + body.subSequence(start, end) + "\"");
+            }
+            result = result * 10 - digit;
+        }
+
+        return negative ? result : -result;
+    }
+
+}
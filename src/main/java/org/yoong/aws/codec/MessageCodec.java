@@ -0,0 +1,28 @@
+package org.yoong.aws.codec;
+
+/**
+ * Converts values to and from message bodies, for a {@link org.yoong.aws.TypedQueue}.
+ *
+ * <p>
+ * Encoding appends to a StringBuilder which the queue clears and reuses, and decoding reads the body as a
+ * CharSequence, so a codec can write and parse fields in place without building intermediate strings. <br/>
+ * Implementations must be thread safe, and should be stateless.
+ * </p>
+ */
+public interface MessageCodec<T> {
+
+    /**
+     * Append the body of a value.
+     *
+     * @param out - empty buffer, reused between calls
+     */
+    public void encode(T value, StringBuilder out);
+
+    /**
+     * Parse a value from a body written by {@link #encode}.
+     *
+     * @throws IllegalArgumentException if the body is not a valid encoding
+     */
+    public T decode(CharSequence body);
+
+}
@@ -0,0 +1,18 @@
+package org.yoong.aws.codec;
+
+/**
+ * Codec passing strings through unchanged.
+ */
+public class StringCodec implements MessageCodec<String> {
+
+    @Override
+    public void encode(String value, StringBuilder out) {
+        out.append(value);
+    }
+
+    @Override
+    public String decode(CharSequence body) {
+        return body.toString();
+    }
+
+}
@@ -0,0 +1,10 @@
+package org.yoong.aws.exceptions;
+
+public class QueueCapacityException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public QueueCapacityException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,14 @@
+package org.yoong.aws.exceptions;
+
+public class QueueThrottledException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public QueueThrottledException(String msg) {
+        super(msg);
+    }
+
+    public QueueThrottledException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
+}
@@ -0,0 +1,14 @@
+package org.yoong.aws.exceptions;
+
+public class RemoteQueueException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RemoteQueueException(String msg) {
+        super(msg);
+    }
+
+    public RemoteQueueException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
+}
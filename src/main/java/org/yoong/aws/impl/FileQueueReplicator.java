@@ -0,0 +1,538 @@
+package org.yoong.aws.impl;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.yoong.aws.exceptions.FileQueueException;
+import org.yoong.aws.metrics.Histogram;
+import org.yoong.aws.util.Clock;
+
+import com.google.common.base.Charsets;
+
+/**
+ * The FileQueueReplicator keeps a warm standby copy of a FileQueueService's home directory, by shipping every change
+ * to its queues as an operation and replaying the operations against the standby directory.
+ *
+ * <p>
+ * <h4>Operations</h4>
+ * The FileQueueService hands over an operation while it still holds the queue's lock, so operations are shipped in the
+ * order they were applied. Operations are at the level of records rather than files : <br/>
+ * <li>push - append a record to the primary</li>
+ * <li>pull - move the head of the primary, or the expired head of the secondary, to the end of the secondary, as the
+ * given record</li>
+ * <li>delete - remove the record with a receipt handle from the secondary</li>
+ * <li>transfer - remove a record from the source secondary, and append the new record to the target primary</li>
+ * <li>poll - remove records from the head of the primary, when a tiered service reads back spilled messages</li>
+ * <li>purge and delete queue</li>
+ * The standby directory must start as a copy of the home directory, eg both empty, or copied while no service was
+ * running. Transfers completed from a journal when a queue is created are shipped as the delete and push they apply.
+ * </p>
+ *
+ * <p>
+ * <h4>Exclusive Home Directory</h4>
+ * Only changes made through the service given to the replicator are shipped, so the home directory must not be changed
+ * by any other. Starting the replicator locks the home directory exclusively, and fails while another
+ * FileQueueService, in this JVM or another, has it open and not closed. While it runs, no other FileQueueService can be
+ * opened over the home directory. <br/>
+ * As a safety net, the replay checks that each operation matches the standby, eg a pull finds the record it moves and
+ * a delete finds its receipt handle, and fails the replicator otherwise.
+ * </p>
+ *
+ * <p>
+ * <h4>Replay</h4>
+ * A background thread takes operations in batches, and for each queue touched by a batch, reads the standby primary
+ * and secondary once, applies the batch in memory, and writes each changed file once, through a temporary file. <br/>
+ * Operations are held in a bounded queue. Once it is full, the service waits for the replay to catch up, which bounds
+ * the replication lag by the capacity of the queue. <br/>
+ * The service waits while it still holds the queue's cross-process lock, and its permit of a fair-share scheduler, so
+ * while the log is full, every other call on that queue, and every queue waiting for a permit, waits for the replay
+ * as well. A failed replay empties the log and ships nothing more, so the service never waits on a replay which has
+ * stopped.
+ * </p>
+ *
+ * <p>
+ * <h4>Promote</h4>
+ * Promoting the standby detaches the replicator from the service, replays the operations still pending, and returns a
+ * FileQueueService over the standby directory, with the clock, compression threshold and scheduler of the replicated
+ * service. Queues are opened by createQueue as usual.
+ * </p>
+ */
+public class FileQueueReplicator {
+
+    private static final int BATCH_SIZE = 1024;
+
+    static final byte PUSH = 1;
+    static final byte PULL_PRIMARY = 2;
+    static final byte PULL_SECONDARY = 3;
+    static final byte DELETE = 4;
+    static final byte POLL = 5;
+    static final byte PURGE = 6;
+    static final byte DELETE_QUEUE = 7;
+
+    private static final int RECEIPT_COLUMN = 0;
+    private static final int SENT_COLUMN = 2;
+
+    /**
+     * Class to hold a single operation on a queue, identified by its hashed name.
+     */
+    private static class Operation {
+
+        final byte type;
+        final String queue;
+        // receipt handle of a delete, or count of a poll
+        final String argument;
+        final String record;
+        final long time;
+
+        Operation(byte type, String queue, String argument, String record, long time) {
+            this.type = type;
+            this.queue = queue;
+            this.argument = argument;
+            this.record = record;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Class to hold the records of a standby queue while a batch is applied to it.
+     */
+    private class StandbyQueue {
+
+        final File dir;
+        final ArrayDeque<String> primary;
+        final ArrayDeque<String> secondary;
+        boolean primaryChanged;
+        boolean secondaryChanged;
+        boolean deleted;
+
+        StandbyQueue(String name) throws IOException {
+            dir = new File(standbyDirectory, name);
+            primary = read(new File(dir, "primary"));
+            secondary = read(new File(dir, "secondary"));
+        }
+
+        void write() throws IOException {
+            if (deleted) {
+                return;
+            }
+            dir.mkdirs();
+            if (primaryChanged) {
+                replace(new File(dir, "primary"), primary);
+            }
+            if (secondaryChanged) {
+                replace(new File(dir, "secondary"), secondary);
+            }
+        }
+
+        void removeSecondary(String receiptHandle) {
+            String prefix = receiptHandle + ",";
+            for (Iterator<String> it = secondary.iterator(); it.hasNext();) {
+                if (it.next().startsWith(prefix)) {
+                    it.remove();
+                    secondaryChanged = true;
+                    return;
+                }
+            }
+            throw diverged("has no record with receipt handle " + receiptHandle);
+        }
+
+        /**
+         * Remove the head of the primary or secondary, checking it is the message of the pulled record.
+         */
+        void pollHead(ArrayDeque<String> records, String pulled, int column) {
+            String head = records.pollFirst();
+            String expected = (head == null) ? null : column(head, column);
+            if (head == null || (expected != null && !expected.equals(column(pulled, column)))) {
+                throw diverged("does not have the pulled record at its head");
+            }
+        }
+
+        FileQueueException diverged(String reason) {
+            return new FileQueueException("Standby queue " + dir.getName() + " " + reason
+                    + ", so it has diverged from the home directory");
+        }
+    }
+
+    private final FileQueueService service;
+    private final File standbyDirectory;
+    private final Clock clock;
+    private final BlockingQueue<Operation> operations;
+
+    private final AtomicLong shipped = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+    private final Histogram replayLag = new Histogram();
+    private volatile long oldestPending;
+
+    // held to ship an operation, and exclusively to stop shipping, so nothing is shipped once replay has stopped
+    private final ReadWriteLock shipping = new ReentrantReadWriteLock();
+    private boolean accepting;
+
+    private Thread replayThread;
+    private volatile boolean running;
+    private volatile Exception failure;
+
+    /**
+     * @param capacity - maximum number of operations shipped but not yet replayed
+     */
+    public FileQueueReplicator(FileQueueService service, File standbyDirectory, int capacity, Clock clock) {
+        this.service = service;
+        this.standbyDirectory = standbyDirectory;
+        this.clock = clock;
+        this.operations = new ArrayBlockingQueue<Operation>(capacity);
+    }
+
+    /**
+     * Start replaying operations, and ship every change made through the service from now on.
+     */
+    public synchronized void start() {
+
+        if (running) {
+            return;
+        }
+
+        // fails while another JVM has the home directory open, before anything is started
+        service.lockHomeExclusively();
+
+        standbyDirectory.mkdirs();
+        running = true;
+
+        shipping.writeLock().lock();
+        try {
+            accepting = true;
+        } finally {
+            shipping.writeLock().unlock();
+        }
+
+        replayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        }, "file-queue-replicator");
+        replayThread.setDaemon(true);
+        replayThread.start();
+
+        service.setReplicator(this);
+    }
+
+    /**
+     * Stop shipping changes, and stop replaying once the pending operations have been replayed.
+     */
+    public synchronized void stop() {
+
+        if (!running) {
+            return;
+        }
+
+        service.setReplicator(null);
+
+        shipping.writeLock().lock();
+        try {
+            accepting = false;
+        } finally {
+            shipping.writeLock().unlock();
+        }
+        running = false;
+
+        service.unlockHomeExclusively();
+
+        try {
+            replayThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FileQueueException("Interrupted while waiting for replication to stop", e);
+        }
+    }
+
+    /**
+     * Stop replicating, once every change made so far has been replayed, and open the standby directory.
+     *
+     * @return a FileQueueService over the standby directory, with the settings of the replicated service
+     * @throws FileQueueException if replaying failed, in which case the standby is not a copy of the home directory
+     */
+    public FileQueueService promote() {
+
+        stop();
+
+        if (failure != null) {
+            throw new FileQueueException("Standby directory is out of date, replication failed", failure);
+        }
+
+        return service.withHomeDirectory(standbyDirectory);
+    }
+
+    /**
+     * @return number of operations shipped but not yet replayed
+     */
+    public int getPendingOperations() {
+        return operations.size();
+    }
+
+    public long getShippedOperations() {
+        return shipped.get();
+    }
+
+    public long getAppliedOperations() {
+        return applied.get();
+    }
+
+    /**
+     * @return milliseconds since the oldest operation not yet replayed was shipped, or 0 if the standby is up to date
+     */
+    public long getLagMillis() {
+        long oldest = oldestPending;
+        if (oldest == 0) {
+            Operation head = operations.peek();
+            oldest = (head == null) ? 0 : head.time;
+        }
+        return (oldest == 0) ? 0 : clock.getCurrentTime() - oldest;
+    }
+
+    /**
+     * @return milliseconds from shipping to replaying each operation
+     */
+    public Histogram getReplayLag() {
+        return replayLag;
+    }
+
+    /**
+     * @return the failure which stopped replaying, or null
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    void push(String queue, String record) {
+        ship(new Operation(PUSH, queue, null, record, clock.getCurrentTime()));
+    }
+
+    void pullPrimary(String queue, String record) {
+        ship(new Operation(PULL_PRIMARY, queue, null, record, clock.getCurrentTime()));
+    }
+
+    void pullSecondary(String queue, String record) {
+        ship(new Operation(PULL_SECONDARY, queue, null, record, clock.getCurrentTime()));
+    }
+
+    void delete(String queue, String receiptHandle) {
+        ship(new Operation(DELETE, queue, receiptHandle, null, clock.getCurrentTime()));
+    }
+
+    /**
+     * A transfer is shipped as a delete from the source and a push to the target, both under the locks of the two
+     * queues.
+     */
+    void transfer(String source, String receiptHandle, String target, String targetRecord) {
+        ship(new Operation(DELETE, source, receiptHandle, null, clock.getCurrentTime()));
+        ship(new Operation(PUSH, target, null, targetRecord, clock.getCurrentTime()));
+    }
+
+    void poll(String queue, int count) {
+        ship(new Operation(POLL, queue, String.valueOf(count), null, clock.getCurrentTime()));
+    }
+
+    void purge(String queue) {
+        ship(new Operation(PURGE, queue, null, null, clock.getCurrentTime()));
+    }
+
+    void deleteQueue(String queue) {
+        ship(new Operation(DELETE_QUEUE, queue, null, null, clock.getCurrentTime()));
+    }
+
+    /**
+     * Add an operation to the log, waiting for room if the replay has fallen too far behind.
+     */
+    private void ship(Operation op) {
+
+        // a failed replay would never make room
+        if (failure != null) {
+            return;
+        }
+
+        shipping.readLock().lock();
+        try {
+            if (accepting) {
+                operations.put(op);
+                shipped.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FileQueueException("Interrupted while shipping operation on FileQueue - " + op.queue, e);
+        } finally {
+            shipping.readLock().unlock();
+        }
+    }
+
+    private void replay() {
+
+        List<Operation> batch = new ArrayList<Operation>(BATCH_SIZE);
+
+        try {
+            while (running || !operations.isEmpty()) {
+                Operation first = operations.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                oldestPending = first.time;
+                batch.add(first);
+                operations.drainTo(batch, BATCH_SIZE - 1);
+
+                apply(batch);
+
+                long now = clock.getCurrentTime();
+                for (Operation op : batch) {
+                    replayLag.record(now - op.time);
+                }
+                applied.addAndGet(batch.size());
+                oldestPending = 0;
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            failure = e;
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+            // stop the service waiting on a log which will never drain
+            operations.clear();
+        }
+    }
+
+    private void apply(List<Operation> batch) throws IOException {
+
+        Map<String, StandbyQueue> queues = new HashMap<String, StandbyQueue>();
+
+        for (Operation op : batch) {
+
+            StandbyQueue queue = queues.get(op.queue);
+            if (queue == null) {
+                queue = new StandbyQueue(op.queue);
+                queues.put(op.queue, queue);
+            }
+
+            switch (op.type) {
+            case PUSH:
+                queue.deleted = false;
+                queue.primary.addLast(op.record);
+                queue.primaryChanged = true;
+                break;
+            case PULL_PRIMARY:
+                // the receipt handle is new, but the sent timestamp is kept
+                queue.pollHead(queue.primary, op.record, SENT_COLUMN);
+                queue.secondary.addLast(op.record);
+                queue.primaryChanged = true;
+                queue.secondaryChanged = true;
+                break;
+            case PULL_SECONDARY:
+                queue.pollHead(queue.secondary, op.record, RECEIPT_COLUMN);
+                queue.secondary.addLast(op.record);
+                queue.secondaryChanged = true;
+                break;
+            case DELETE:
+                queue.removeSecondary(op.argument);
+                break;
+            case POLL:
+                int count = Integer.parseInt(op.argument);
+                if (count > queue.primary.size()) {
+                    throw queue.diverged("has fewer than " + count + " records to poll");
+                }
+                for (int i = 0; i < count; i++) {
+                    queue.primary.pollFirst();
+                }
+                queue.primaryChanged = true;
+                break;
+            case PURGE:
+                queue.primary.clear();
+                queue.secondary.clear();
+                queue.primaryChanged = true;
+                queue.secondaryChanged = true;
+                break;
+            case DELETE_QUEUE:
+                queue.primary.clear();
+                queue.secondary.clear();
+                queue.deleted = true;
+                deleteDirectory(queue.dir);
+                break;
+            }
+        }
+
+        for (StandbyQueue queue : queues.values()) {
+            queue.write();
+        }
+    }
+
+    /**
+     * Read a column before the body of a record line.
+     *
+     * @return the column, or null if the record has no such column, ie it was written before the timestamps were added
+     */
+    private static String column(String record, int column) {
+        int start = 0;
+        for (int i = 0; i < column; i++) {
+            start = record.indexOf(',', start) + 1;
+        }
+        int end = record.indexOf(',', start);
+        return (end < 0) ? null : record.substring(start, end);
+    }
+
+    private static ArrayDeque<String> read(File file) throws IOException {
+
+        ArrayDeque<String> records = new ArrayDeque<String>();
+        if (!file.exists()) {
+            return records;
+        }
+
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                records.add(line);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Replace a file with the given records, through a temporary file moved over it atomically, so a failed write
+     * leaves the old file intact, and there is no moment without the file.
+     */
+    private static void replace(File file, ArrayDeque<String> records) throws IOException {
+
+        Path temp = new File(file.getParentFile(), file.getName() + ".tmp").toPath();
+
+        try (BufferedWriter bw = Files.newBufferedWriter(temp, Charsets.UTF_8)) {
+            for (String record : records) {
+                bw.write(record);
+                bw.newLine();
+            }
+        }
+
+        Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteDirectory(file);
+            }
+        }
+        dir.delete();
+    }
+}
@@ -1,21 +1,35 @@
 package org.yoong.aws.impl;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
 import java.rmi.server.UID;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import org.yoong.aws.Message;
+import org.yoong.aws.QueueHandle;
 import org.yoong.aws.QueueService;
 import org.yoong.aws.Message.MessageBuilder;
 import org.yoong.aws.exceptions.FileQueueException;
 import org.yoong.aws.exceptions.NoSuchQueueException;
+import org.yoong.aws.metrics.Histogram;
+import org.yoong.aws.metrics.QueueMetrics;
+import org.yoong.aws.metrics.QueueMetricsSource;
 import org.yoong.aws.util.Clock;
+import org.yoong.aws.util.Compression;
+import org.yoong.aws.util.FairShareScheduler;
 
 import com.google.common.base.Charsets;
 import com.google.common.hash.Hashing;
@@ -27,13 +41,26 @@ import com.google.common.io.BaseEncoding;
  * <li>A seperate folder is created for each queue within the home directory </li>
  * <li>A FileQueue contains 2 files, a primary and secondary </li> 
  * <li>The FileQueueService can be used across JVMs, within the same Host </li>
+ * <li>Every open FileQueueService locks the <code>.lock</code> file of the home directory, see Replication </li>
  *  
  * <p>
  * <h4>Storing Messages to File</h4>
  * The primary and secondary files store messages per line in a simple csv format, with the following attributes : <br/>
  * <li>receipHandle - unique id for a pulled message (required for deletion) </li>
  * <li>invisibilitytimeoutTime - unix timestamp when invisibility expires </li>
+ * <li>sentTimestamp - unix timestamp when the message was pushed </li>
+ * <li>firstReceiveTimestamp - unix timestamp when the message was first pulled, 0 until then </li>
  * <li>body - message body string </li>
+ * Records written before the timestamps were added have only 3 columns, and are read with timestamps of 0. <br/>
+ * Each FileQueue keeps {@link QueueMetrics} of the messages pulled and deleted through this JVM, and a
+ * {@link Histogram} of the microseconds its calls waited for the queue's lock.
+ * </p>
+ *
+ * <p>
+ * <h4>Compression</h4>
+ * Bodies at least as large as the configured compression threshold are deflated before being written. <br/>
+ * The body column of a compressed record is prefixed with <code>~</code>, which is not part of the base64 alphabet, so
+ * records with and without compression can be read by any FileQueueService.
  * </p>
  * 
  * <p>
@@ -42,6 +69,24 @@ import com.google.common.io.BaseEncoding;
  * This is necessary for the FileQueue implementation, in order to identify the correct record within the file to delete. <br/><br/> 
  * 
  * The id is generated using {@link java.rmi.server.UID} which is suitable for our requirements - being unique for the host they are generated. 
+ * A message pushed by a transfer keeps the transfer id as its receipt handle.
+ * </p>
+ * 
+ * <p>
+ * <h4>Transfer</h4>
+ * A transfer locks the source and target queues, in order of their hashed names so that transfers cannot deadlock. 
+ * While both are locked : <br/>
+ * <li>the source secondary is copied to the buffer without the transferred record</li>
+ * <li>a journal <code>transfer-id</code> is written to the source folder, with the target, the receipt handle and the
+ * new target record</li>
+ * <li>the target record is appended to the target primary, marked with the transfer id</li>
+ * <li>the journal is renamed to <code>transfer-id.applied</code></li>
+ * <li>the buffer replaces the source secondary, and the journal is deleted</li>
+ * A journal left behind by a failed process is replayed when the source queue is next created. The target record of a
+ * journal marked applied is never appended again, even once it has been pulled and deleted from the target. Otherwise,
+ * it is only appended if no record is marked with its transfer id yet, and the journal is then marked applied, so a
+ * journal can be replayed any number of times. Only a failure between the append and the rename can leave a journal
+ * which pushes the message twice, once its first copy has been consumed.
  * </p>
  * 
  * <p>
@@ -49,16 +94,88 @@ import com.google.common.io.BaseEncoding;
  * For simplicity, each queue contains a single lock which is shared by the primary and secondary.
  * </p>
  * 
+ * <p>
+ * <h4>Fair Share</h4>
+ * A {@link FairShareScheduler} may be given to limit the number of queues doing I/O at once. A queue waits for a
+ * permit once it holds its lock, and permits are granted to waiting queues in round-robin order, so one busy queue
+ * cannot monopolise the disk. The scheduler only covers the JVM it belongs to. <br/>
+ * A transfer locks both of its queues before waiting for a single permit, so a thread holding a permit never waits for
+ * a queue's lock.
+ * </p>
+ * 
+ * <p>
+ * <h4>Replication</h4>
+ * A {@link FileQueueReplicator} may be started to keep a standby copy of the home directory. Every change is handed to
+ * it as an operation while the queue is still locked, and replayed asynchronously against the standby directory. <br/>
+ * Every open service holds a shared lock on the <code>.lock</code> file of its home directory. The lock is taken once
+ * per JVM, and released once every service of the JVM over the home directory is closed. <br/>
+ * A replicating service holds the lock exclusively instead, and refuses every other service over the home directory,
+ * in its own JVM or another, so a home directory is either open in several services or replicated through one.
+ * </p>
+ * 
+ * <p>
+ * <h4>Purge and Delete Queue</h4>
+ * Purging a queue deletes its primary and secondary files under the lock, without reading them. <br/>
+ * Deleting a queue renames its folder away under the lock, which removes the queue for every JVM at once, and then
+ * deletes the renamed folder. A JVM which still caches the queue gets a {@link NoSuchQueueException} when it next tries
+ * to lock it, until the queue is created again.
+ * </p>
+ * 
+ * <p>
+ * <h4>Queue Handle</h4>
+ * A {@link QueueHandle} holds the resolved queue, so its calls skip hashing the queue name and the map lookup. <br/>
+ * A handle fails once its queue is deleted, by this JVM or (when it next takes the lock) by any other.
+ * </p>
+ * 
  * @see InMemoryQueue
  */
-public class FileQueueService implements QueueService {
+public class FileQueueService implements QueueService, QueueMetricsSource, Closeable {
+
+    // marks the body column of a compressed record
+    private static final char COMPRESSED = '~';
+
+    private static final int RECORD_COLUMNS = 5;
+
+    private static final String JOURNAL_PREFIX = "transfer-";
+    private static final String JOURNAL_TEMP_SUFFIX = ".tmp";
+    private static final String JOURNAL_APPLIED_SUFFIX = ".applied";
+
+    private static final String HOME_LOCK = ".lock";
+
+    // home directories locked by this JVM, by the path of their lock file, as a JVM can only lock a file once
+    private static final Map<String, HomeLock> homeLocks = new HashMap<String, HomeLock>();
 
     private final File homeDirectory;
 
     // cache created file queues 
     private ConcurrentHashMap<String, FileQueue> queues = new ConcurrentHashMap<String, FileQueue>();
     private final Clock clock;
+    private final int compressionThreshold;
+    private final FairShareScheduler scheduler;
+    private volatile FileQueueReplicator replicator;
+    private final HomeLock home;
+    private boolean closed;
     
+    /**
+     * Class to hold the lock on a home directory, shared by the open services of this JVM.
+     */
+    private static class HomeLock {
+
+        final String path;
+        final FileChannel channel;
+        FileLock lock;
+        // number of open services over the home directory
+        int services;
+        // the service replicating the home directory, beside which no other service can be opened
+        FileQueueService replicated;
+
+        HomeLock(String path, FileChannel channel, FileLock lock) {
+            this.path = path;
+            this.channel = channel;
+            this.lock = lock;
+        }
+    }
+
     /**
      * Class to hold required objects within a file queue.
      */
@@ -70,6 +187,9 @@ public class FileQueueService implements QueueService {
         final File primary;
         final File secondary;
         final long visibilityTimeout;
+        volatile boolean deleted;
+        final QueueMetrics metrics = new QueueMetrics();
+        final Histogram lockWait = new Histogram();
 
         public FileQueue(File dir, long visibilityTimeout) {
             this.name = dir.getName();
@@ -83,21 +203,248 @@ public class FileQueueService implements QueueService {
             this.visibilityTimeout = visibilityTimeout;
         }
 
-        // implement a lock using file mkdir. 
         void lock() throws InterruptedException {
+            lockFile();
+            try {
+                acquireShare();
+            } catch (InterruptedException e) {
+                lock.delete();
+                throw e;
+            }
+        }
+
+        // implement a lock using file mkdir. 
+        void lockFile() throws InterruptedException {
+            long start = System.nanoTime();
             while (!lock.mkdir()) {
+                // mkdir also fails once the queue has been deleted
+                if (!dir.exists()) {
+                    throw new NoSuchQueueException("Queue named \"" + name + "\" does not exist.");
+                }
                 Thread.sleep(20);
             }
+            lockWait.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+
+        // wait for this queue's share of I/O, only once the lock is held so a permit is never held idle
+        void acquireShare() throws InterruptedException {
+            if (scheduler != null) {
+                scheduler.acquire(name);
+            }
         }
 
         void unlock() {
             lock.delete();
+            releaseShare();
+        }
+
+        void unlockFile() {
+            lock.delete();
+        }
+
+        // release the share of I/O without the lock, once the lock has been moved away with the folder
+        void releaseShare() {
+            if (scheduler != null) {
+                scheduler.release();
+            }
+        }
+    }
+
+    /**
+     * Class to bind calls to a resolved queue.
+     */
+    private class FileQueueHandle implements QueueHandle {
+
+        final FileQueue queue;
+        final String queueUrl;
+
+        public FileQueueHandle(FileQueue queue, String queueUrl) {
+            this.queue = queue;
+            this.queueUrl = queueUrl;
+        }
+
+        @Override
+        public String getQueueUrl() {
+            return queueUrl;
+        }
+
+        @Override
+        public void push(String message) {
+            FileQueueService.this.push(resolve(), message);
+        }
+
+        @Override
+        public Message pull() {
+            return FileQueueService.this.pull(resolve());
+        }
+
+        @Override
+        public boolean delete(Message handle) {
+            return FileQueueService.this.delete(resolve(), handle);
+        }
+
+        FileQueue resolve() {
+            if (queue.deleted) {
+                throw new NoSuchQueueException("Queue named \"" + queueUrl + "\" does not exist.");
+            }
+            return queue;
         }
     }
 
     public FileQueueService(File homeDirectory, Clock clock) {
+        this(homeDirectory, clock, Compression.DISABLED);
+    }
+
+    /**
+     * @param compressionThreshold - minimum body size in bytes to compress, or {@link Compression#DISABLED}
+     */
+    public FileQueueService(File homeDirectory, Clock clock, int compressionThreshold) {
+        this(homeDirectory, clock, compressionThreshold, null);
+    }
+
+    /**
+     * @param compressionThreshold - minimum body size in bytes to compress, or {@link Compression#DISABLED}
+     * @param scheduler - scheduler sharing I/O fairly between queues, or null to let every locked queue do I/O
+     */
+    public FileQueueService(File homeDirectory, Clock clock, int compressionThreshold, FairShareScheduler scheduler) {
         this.homeDirectory = homeDirectory;
         this.clock = clock;
+        this.compressionThreshold = compressionThreshold;
+        this.scheduler = scheduler;
+
+        home = openHome(homeDirectory);
+    }
+
+    /**
+     * Take this JVM's shared lock on a home directory, unless it already holds it, and count the service as open over
+     * it.
+     *
+     * @throws FileQueueException if the home directory is replicated, by another service or another JVM
+     */
+    private static synchronized HomeLock openHome(File homeDirectory) {
+
+        File file = new File(homeDirectory, HOME_LOCK);
+
+        try {
+            homeDirectory.mkdirs();
+            String path = file.getCanonicalPath();
+
+            // a lock file deleted along with its home directory no longer locks anything
+            HomeLock home = homeLocks.get(path);
+            if (home != null && !file.exists()) {
+                home.channel.close();
+                homeLocks.remove(path);
+                home = null;
+            }
+
+            if (home == null) {
+                FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                FileLock lock = channel.tryLock(0, Long.MAX_VALUE, true);
+                if (lock == null) {
+                    channel.close();
+                    throw new FileQueueException("Home directory " + homeDirectory + " is replicated by another JVM");
+                }
+                home = new HomeLock(path, channel, lock);
+                homeLocks.put(path, home);
+            }
+
+            if (home.replicated != null) {
+                throw new FileQueueException("Home directory " + homeDirectory + " is replicated by another service");
+            }
+            home.services++;
+            return home;
+        } catch (IOException e) {
+            throw new FileQueueException("Failed to lock home directory " + homeDirectory, e);
+        }
+    }
+
+    /**
+     * Close the service, releasing the lock on its home directory once every service of this JVM over it is closed.
+     * The service must not be used once closed.
+     */
+    @Override
+    public void close() {
+
+        synchronized (FileQueueService.class) {
+            if (closed) {
+                return;
+            }
+            if (home.replicated == this) {
+                throw new IllegalStateException("Stop replicating before closing the service.");
+            }
+            closed = true;
+
+            if (--home.services > 0) {
+                return;
+            }
+            if (homeLocks.get(home.path) == home) {
+                homeLocks.remove(home.path);
+            }
+            try {
+                home.channel.close();
+            } catch (IOException e) {
+                throw new FileQueueException("Failed to unlock home directory " + homeDirectory, e);
+            }
+        }
+    }
+
+    /**
+     * Lock the home directory exclusively for this service, so no other service can change it while it is replicated.
+     *
+     * @throws FileQueueException if another service, of this JVM or another, has the home directory open
+     */
+    void lockHomeExclusively() {
+
+        synchronized (FileQueueService.class) {
+            if (closed) {
+                throw new IllegalStateException("Service is closed.");
+            }
+            if (home.services > 1) {
+                throw new FileQueueException("Home directory " + homeDirectory
+                        + " is open in another service, so it cannot be replicated");
+            }
+
+            try {
+                // a JVM cannot hold overlapping locks, so the shared lock is released first
+                home.lock.release();
+                FileLock exclusive = home.channel.tryLock();
+                if (exclusive != null) {
+                    home.lock = exclusive;
+                    home.replicated = this;
+                    return;
+                }
+                home.lock = home.channel.lock(0, Long.MAX_VALUE, true);
+            } catch (IOException e) {
+                throw new FileQueueException("Failed to lock home directory " + homeDirectory, e);
+            }
+
+            throw new FileQueueException("Home directory " + homeDirectory
+                    + " is open in another JVM, so it cannot be replicated");
+        }
+    }
+
+    /**
+     * Go back to sharing the home directory with other services.
+     */
+    void unlockHomeExclusively() {
+
+        synchronized (FileQueueService.class) {
+            try {
+                home.replicated = null;
+                home.lock.release();
+                home.lock = home.channel.lock(0, Long.MAX_VALUE, true);
+            } catch (IOException e) {
+                throw new FileQueueException("Failed to lock home directory " + homeDirectory, e);
+            }
+        }
+    }
+
+    /**
+     * @return a service over another home directory, with the clock, compression threshold and scheduler of this one
+     */
+    FileQueueService withHomeDirectory(File homeDirectory) {
+        return new FileQueueService(homeDirectory, clock, compressionThreshold, scheduler);
     }
     
     private String getHashedString(String value) {
@@ -113,7 +460,12 @@ public class FileQueueService implements QueueService {
 
         if (queue == null) {
             queue = new FileQueue(new File(homeDirectory, hashedName), unit.toMillis(visibilityTimeout));
-            queues.putIfAbsent(queue.name, queue);
+            if (queues.putIfAbsent(queue.name, queue) == null) {
+                recoverTransfers(queue);
+            }
+        } else {
+            // the queue may have been deleted by another JVM
+            queue.dir.mkdirs();
         }
         
         return queueName;
@@ -121,8 +473,40 @@ public class FileQueueService implements QueueService {
 
     @Override
     public void push(String queueName, String message) {
+        push(getQueue(queueName), message);
+    }
 
-        FileQueue queue = getQueue(queueName);
+    @Override
+    public Message pull(String queueName) {
+        return pull(getQueue(queueName));
+    }
+
+    @Override
+    public boolean delete(String queueName, Message message) {
+        return delete(getQueue(queueName), message);
+    }
+
+    @Override
+    public QueueHandle getQueueHandle(String queueName) {
+        return new FileQueueHandle(getQueue(queueName), queueName);
+    }
+
+    /**
+     * @return message age metrics of a queue, for the messages pulled and deleted through this service
+     */
+    @Override
+    public QueueMetrics getMetrics(String queueName) {
+        return getQueue(queueName).metrics;
+    }
+
+    /**
+     * @return microseconds the calls of this service waited for a queue's lock, held by this or another JVM
+     */
+    public Histogram getLockWait(String queueName) {
+        return getQueue(queueName).lockWait;
+    }
+
+    private void push(FileQueue queue, String message) {
 
         try {
             queue.lock();
@@ -132,7 +516,14 @@ public class FileQueueService implements QueueService {
 
         try (PrintWriter pw = new PrintWriter(new FileWriter(queue.primary, true))) {
             // append message to primary
-            pw.println(toRecord(new MessageBuilder().setBody(message).build()));
+            String record = toRecord(new MessageBuilder().setBody(message)
+                    .setSentTimestamp(clock.getCurrentTime()).build());
+            pw.println(record);
+
+            FileQueueReplicator replicator = this.replicator;
+            if (replicator != null) {
+                replicator.push(queue.name, record);
+            }
         
         } catch (IOException e) {
             throw new FileQueueException("Caught IO exception in FileQueue - " + queue.name, e);
@@ -141,10 +532,8 @@ public class FileQueueService implements QueueService {
         }
     }
 
-    @Override
-    public Message pull(String queueName) {
+    private Message pull(FileQueue queue) {
 
-        FileQueue queue = getQueue(queueName);
         File buffer = new File(queue.dir, "buffer");
 
         try {
@@ -165,12 +554,12 @@ public class FileQueueService implements QueueService {
             String secondary = (sr != null) ? sr.readLine() : null;
             String primary = (pr != null) ? pr.readLine() : null;
 
-            // get message from head of secondary
-            Message msg = (secondary != null) ? fromRecord(secondary) : null;
-
-            // check if head of secondary has surpassed the timeout
-            if (msg != null && !msg.isInvisible(clock)) {
+            // check if head of secondary has surpassed the timeout, before decoding its body
+            Message msg = null;
+            if (secondary != null && invisibleTimeoutOf(secondary) <= clock.getCurrentTime()) {
             
+                msg = fromRecord(secondary);
+
                 // this message will be pulled, reset the visibility timeout
                 msg.startInvisible(queue.visibilityTimeout, clock);
                 
@@ -178,10 +567,16 @@ public class FileQueueService implements QueueService {
                 while ((secondary = sr.readLine()) != null) {
                     bw.println(secondary);
                 }
-                bw.println(toRecord(msg));
+                String record = toRecord(msg);
+                bw.println(record);
                 
                 queue.secondary.delete();
                 buffer.renameTo(queue.secondary);
+
+                FileQueueReplicator replicator = this.replicator;
+                if (replicator != null) {
+                    replicator.pullSecondary(queue.name, record);
+                }
                 
                 return msg;
             }
@@ -191,9 +586,13 @@ public class FileQueueService implements QueueService {
 
             if (msg != null) {
                 
-                // generate and set the receipt handle, and start the visibility timeout
-                msg.setReceiptHandle(new UID().toString());
+                // generate and set the receipt handle (unless it was set by a transfer), and start the visibility timeout
+                if (msg.getReceiptHandle() == null) {
+                    msg.setReceiptHandle(new UID().toString());
+                }
                 msg.startInvisible(queue.visibilityTimeout, clock);
+                msg.markFirstReceive(clock);
+                queue.metrics.recordFirstReceive(msg, msg.getFirstReceiveTimestamp());
                 
                 // remove the record from primary and append it to secondary
                 while ((primary = pr.readLine()) != null) {
@@ -203,7 +602,13 @@ public class FileQueueService implements QueueService {
                 queue.primary.delete();
                 buffer.renameTo(queue.primary);
                 
-                sw.println(toRecord(msg));
+                String record = toRecord(msg);
+                sw.println(record);
+
+                FileQueueReplicator replicator = this.replicator;
+                if (replicator != null) {
+                    replicator.pullPrimary(queue.name, record);
+                }
                 
                 return msg;
             }
@@ -217,15 +622,347 @@ public class FileQueueService implements QueueService {
         return null;
     }
 
+    private boolean delete(FileQueue queue, Message message) {
+
+        if (!queue.secondary.exists()) {
+            return false;
+        }
+
+        try {
+            queue.lock();
+        } catch (InterruptedException e) {
+            throw new FileQueueException("Failed to obtain lock for FileQueue - " + queue.name, e);
+        }
+
+        try {
+            Message record = removeRecord(queue, message.getReceiptHandle());
+            if (record == null) {
+                return false;
+            }
+            queue.metrics.recordDelete(record, clock.getCurrentTime());
+
+            FileQueueReplicator replicator = this.replicator;
+            if (replicator != null) {
+                replicator.delete(queue.name, record.getReceiptHandle());
+            }
+            return true;
+        } catch (IOException e) {
+            throw new FileQueueException("Caught IO exception in FileQueue - " + queue.name, e);
+        } finally {
+            queue.unlock();
+        }
+    }
+
+    /**
+     * The message is deleted from the source and pushed to the target while holding the locks of both queues, and
+     * the change is journaled so that it is completed even if the process fails part way through.
+     */
     @Override
-    public boolean delete(String queueName, Message message) {
+    public boolean transfer(String sourceName, Message message, String targetName, String newBody) {
+
+        FileQueue source = getQueue(sourceName);
+        FileQueue target = getQueue(targetName);
 
-        boolean deleted = false;
+        if (message.getReceiptHandle() == null || !source.secondary.exists()) {
+            return false;
+        }
+
+        FileQueue first = (source.name.compareTo(target.name) <= 0) ? source : target;
+        FileQueue second = (first == source) ? target : source;
+
+        lock(first, second);
+        try {
+            return transfer(source, message.getReceiptHandle(), target, newBody);
+        } finally {
+            unlock(first, second);
+        }
+    }
+
+    /**
+     * Move a record from the secondary of the source to the primary of the target. Must hold the locks of both queues.
+     */
+    private boolean transfer(FileQueue source, String receiptHandle, FileQueue target, String newBody) {
+
+        File buffer = new File(source.dir, "buffer");
+
+        // ensure buffer is empty
+        buffer.delete();
+
+        try {
+            Message record = null;
+
+            // copy every other record of the source secondary to the buffer
+            try (BufferedReader sr = new BufferedReader(new FileReader(source.secondary));
+                    PrintWriter bw = new PrintWriter(new FileWriter(buffer, true));) {
+
+                String line;
+                String prefix = receiptHandle + ",";
+                while ((line = sr.readLine()) != null) {
+                    if (record == null && line.startsWith(prefix)) {
+                        record = fromRecord(line);
+                    } else {
+                        bw.println(line);
+                    }
+                }
+            }
+
+            if (record == null) {
+                buffer.delete();
+                return false;
+            }
+
+            // the transfer id marks the target record, so that replaying the journal does not push it twice
+            String transferId = new UID().toString();
+            String targetRecord = toRecord(new MessageBuilder().setReceiptHandle(transferId)
+                    .setBody(newBody != null ? newBody : record.getBody())
+                    .setSentTimestamp(clock.getCurrentTime()).build());
+
+            File journal = writeJournal(source, transferId, target, receiptHandle, targetRecord);
+
+            appendRecord(target.primary, targetRecord);
+            journal = markApplied(journal);
+
+            // replace source secondary with buffer
+            source.secondary.delete();
+            buffer.renameTo(source.secondary);
+
+            journal.delete();
+
+            source.metrics.recordDelete(record, clock.getCurrentTime());
+
+            FileQueueReplicator replicator = this.replicator;
+            if (replicator != null) {
+                replicator.transfer(source.name, receiptHandle, target.name, targetRecord);
+            }
+
+        } catch (IOException e) {
+            throw new FileQueueException("Caught IO exception in FileQueue - " + source.name, e);
+        }
+
+        return true;
+    }
+
+    /**
+     * Write a journal of a transfer into the source folder. It is written to a temporary file first, so that a journal
+     * is either complete or ignored.
+     */
+    private File writeJournal(FileQueue source, String transferId, FileQueue target, String receiptHandle,
+            String targetRecord) throws IOException {
+
+        String name = JOURNAL_PREFIX + getHashedString(transferId);
+        File temp = new File(source.dir, name + JOURNAL_TEMP_SUFFIX);
+        File journal = new File(source.dir, name);
+
+        try (PrintWriter jw = new PrintWriter(new FileWriter(temp))) {
+            jw.println(target.name);
+            jw.println(receiptHandle);
+            jw.println(targetRecord);
+        }
+
+        if (!temp.renameTo(journal)) {
+            throw new IOException("Failed to write transfer journal " + journal);
+        }
+
+        return journal;
+    }
+
+    /**
+     * Mark a journal as applied to the target, so that its target record is never appended again.
+     */
+    private File markApplied(File journal) throws IOException {
+
+        File applied = new File(journal.getParentFile(), journal.getName() + JOURNAL_APPLIED_SUFFIX);
+        if (!journal.renameTo(applied)) {
+            throw new IOException("Failed to mark transfer journal " + journal + " as applied");
+        }
+        return applied;
+    }
+
+    /**
+     * Complete the transfers journaled in the folder of a source queue, left behind by a process which failed part
+     * way through. Applying a journal twice has no further effect.
+     */
+    private void recoverTransfers(FileQueue source) {
+
+        File[] journals = source.dir.listFiles();
+        if (journals == null) {
+            return;
+        }
+
+        for (File journal : journals) {
+            if (!journal.getName().startsWith(JOURNAL_PREFIX)) {
+                continue;
+            }
+
+            // a temporary journal still there once the source is locked was never completed, so nothing was applied
+            if (journal.getName().endsWith(JOURNAL_TEMP_SUFFIX)) {
+                lock(source);
+                try {
+                    journal.delete();
+                } finally {
+                    source.unlock();
+                }
+                continue;
+            }
+
+            String targetName;
+            String receiptHandle;
+            String targetRecord;
+
+            try (BufferedReader jr = new BufferedReader(new FileReader(journal))) {
+                targetName = jr.readLine();
+                receiptHandle = jr.readLine();
+                targetRecord = jr.readLine();
+            } catch (IOException e) {
+                // the journal has been completed by its own process in the meantime
+                continue;
+            }
+
+            // the target may have been deleted since, in which case the message is only deleted from the source
+            File targetDir = new File(homeDirectory, targetName);
+            FileQueue target = queues.get(targetName);
+            if (target == null && targetDir.exists()) {
+                target = new FileQueue(targetDir, 0);
+            }
+
+            FileQueue first = (target == null || source.name.compareTo(target.name) <= 0) ? source : target;
+            FileQueue second = (first == source) ? target : source;
+
+            lock(first, second);
+            try {
+                // a journal still there once both locks are held was left behind by a failed process
+                if (journal.exists()) {
+                    // ship only what is applied, as the standby is a copy of the queues as they were before
+                    FileQueueReplicator replicator = this.replicator;
+
+                    // once marked applied, the target record may already have been pulled and deleted
+                    if (!journal.getName().endsWith(JOURNAL_APPLIED_SUFFIX)) {
+                        String transferId = targetRecord.substring(0, targetRecord.indexOf(','));
+                        if (target != null && !containsRecord(target, transferId)) {
+                            appendRecord(target.primary, targetRecord);
+                            if (replicator != null) {
+                                replicator.push(target.name, targetRecord);
+                            }
+                        }
+                        journal = markApplied(journal);
+                    }
+                    if (removeRecord(source, receiptHandle) != null && replicator != null) {
+                        replicator.delete(source.name, receiptHandle);
+                    }
+                    journal.delete();
+                }
+            } catch (IOException e) {
+                throw new FileQueueException("Caught IO exception in FileQueue - " + source.name, e);
+            } finally {
+                unlock(first, second);
+            }
+        }
+    }
+
+    @Override
+    public void purgeQueue(String queueName) {
 
         FileQueue queue = getQueue(queueName);
 
-        if (!queue.secondary.exists()) {
-            return false;
+        try {
+            queue.lock();
+        } catch (InterruptedException e) {
+            throw new FileQueueException("Failed to obtain lock for FileQueue - " + queue.name, e);
+        }
+
+        try {
+            queue.primary.delete();
+            queue.secondary.delete();
+
+            FileQueueReplicator replicator = this.replicator;
+            if (replicator != null) {
+                replicator.purge(queue.name);
+            }
+        } finally {
+            queue.unlock();
+        }
+    }
+
+    @Override
+    public void deleteQueue(String queueName) {
+
+        FileQueue queue = getQueue(queueName);
+        File deleted = new File(homeDirectory, ".deleted-" + getHashedString(new UID().toString()));
+
+        try {
+            queue.lock();
+        } catch (InterruptedException e) {
+            throw new FileQueueException("Failed to obtain lock for FileQueue - " + queue.name, e);
+        }
+
+        // the lock is moved away with the folder, so it only needs releasing if the rename fails
+        boolean renamed = false;
+        try {
+            renamed = queue.dir.renameTo(deleted);
+
+            FileQueueReplicator replicator = this.replicator;
+            if (renamed && replicator != null) {
+                replicator.deleteQueue(queue.name);
+            }
+        } finally {
+            if (!renamed) {
+                queue.unlock();
+            } else {
+                queue.releaseShare();
+            }
+        }
+
+        if (!renamed) {
+            throw new FileQueueException("Failed to delete FileQueue - " + queue.name);
+        }
+
+        queue.deleted = true;
+        queues.remove(queue.name, queue);
+        deleteDirectory(deleted);
+    }
+
+    /**
+     * Append a batch of messages to the primary, with a single locked write. Used to spill messages from memory.
+     */
+    void pushAll(String queueName, List<String> messages) {
+
+        FileQueue queue = getQueue(queueName);
+
+        try {
+            queue.lock();
+        } catch (InterruptedException e) {
+            throw new FileQueueException("Failed to obtain lock for FileQueue - " + queue.name, e);
+        }
+
+        try (PrintWriter pw = new PrintWriter(new FileWriter(queue.primary, true))) {
+            long now = clock.getCurrentTime();
+            FileQueueReplicator replicator = this.replicator;
+            for (String message : messages) {
+                String record = toRecord(new MessageBuilder().setBody(message).setSentTimestamp(now).build());
+                pw.println(record);
+                if (replicator != null) {
+                    replicator.push(queue.name, record);
+                }
+            }
+        } catch (IOException e) {
+            throw new FileQueueException("Caught IO exception in FileQueue - " + queue.name, e);
+        } finally {
+            queue.unlock();
+        }
+    }
+
+    /**
+     * Remove up to <code>max</code> messages from the head of the primary, with a single rewrite. <br/>
+     * Unlike {@link #pull}, the messages are not added to the secondary. Used to read spilled messages back into memory.
+     */
+    List<Message> pollPrimary(String queueName, int max) {
+
+        List<Message> messages = new ArrayList<Message>();
+
+        FileQueue queue = getQueue(queueName);
+
+        if (!queue.primary.exists()) {
+            return messages;
         }
 
         File buffer = new File(queue.dir, "buffer");
@@ -239,16 +976,121 @@ public class FileQueueService implements QueueService {
         // ensure buffer is empty
         buffer.delete();
 
+        try (BufferedReader pr = new BufferedReader(new FileReader(queue.primary));
+                PrintWriter bw = new PrintWriter(new FileWriter(buffer, true));) {
+
+            String line;
+
+            // take records from the head of primary
+            while (messages.size() < max && (line = pr.readLine()) != null) {
+                messages.add(fromRecord(line));
+            }
+
+            // copy the rest of the records to the buffer, and replace primary with buffer
+            while ((line = pr.readLine()) != null) {
+                bw.println(line);
+            }
+
+            queue.primary.delete();
+            buffer.renameTo(queue.primary);
+
+            FileQueueReplicator replicator = this.replicator;
+            if (replicator != null && !messages.isEmpty()) {
+                replicator.poll(queue.name, messages.size());
+            }
+
+        } catch (IOException e) {
+            throw new FileQueueException("Caught IO exception in FileQueue - " + queue.name, e);
+        } finally {
+            queue.unlock();
+        }
+
+        return messages;
+    }
+
+    /**
+     * Set the replicator shipping every change to the queues, or null to stop shipping them.
+     */
+    void setReplicator(FileQueueReplicator replicator) {
+        this.replicator = replicator;
+    }
+
+    private void lock(FileQueue queue) {
+        try {
+            queue.lock();
+        } catch (InterruptedException e) {
+            throw new FileQueueException("Failed to obtain lock for FileQueue - " + queue.name, e);
+        }
+    }
+
+    /**
+     * Lock two queues in order of their hashed names, so that concurrent transfers cannot deadlock, and only then wait
+     * for a single share of I/O. Waiting for the second lock while holding a share would deadlock with a thread holding
+     * the second lock and waiting for a share.
+     *
+     * @param second - the queue locked second, which may be null or the first queue
+     */
+    private void lock(FileQueue first, FileQueue second) {
+
+        boolean both = (second != null && second != first);
+        try {
+            first.lockFile();
+            try {
+                if (both) {
+                    second.lockFile();
+                }
+                try {
+                    first.acquireShare();
+                } catch (InterruptedException | RuntimeException e) {
+                    if (both) {
+                        second.unlockFile();
+                    }
+                    throw e;
+                }
+            } catch (InterruptedException | RuntimeException e) {
+                first.unlockFile();
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            throw new FileQueueException("Failed to obtain lock for FileQueue - " + first.name, e);
+        }
+    }
+
+    private void unlock(FileQueue first, FileQueue second) {
+        if (second != null && second != first) {
+            second.unlockFile();
+        }
+        first.unlock();
+    }
+
+    /**
+     * Remove the record with the given receipt handle from the secondary. Must hold the queue's lock.
+     * 
+     * @return the removed record, or null if there is no record with the receipt handle
+     */
+    private Message removeRecord(FileQueue queue, String receiptHandle) throws IOException {
+
+        if (!queue.secondary.exists()) {
+            return null;
+        }
+
+        Message removed = null;
+        File buffer = new File(queue.dir, "buffer");
+
+        // ensure buffer is empty
+        buffer.delete();
+
         try (BufferedReader sr = new BufferedReader(new FileReader(queue.secondary));
                 PrintWriter bw = new PrintWriter(new FileWriter(buffer, true));) {
 
             String line;
+            String prefix = receiptHandle + ",";
 
             // copy records from invisible messages to buffer until we find the record to delete.
+            // only the removed record is decoded, so other compressed bodies are not inflated
             while ((line = sr.readLine()) != null) {
-                Message record = fromRecord(line);
-                if (record.getReceiptHandle().contentEquals(message.getReceiptHandle())) {
-                    deleted = true;
+                if (line.startsWith(prefix)) {
+                    removed = fromRecord(line);
                     break;
                 } else {
                     bw.println(line);
@@ -259,18 +1101,53 @@ public class FileQueueService implements QueueService {
             while ((line = sr.readLine()) != null) {
                 bw.println(line);
             }
+        }
 
-            // replace secondary with buffer
-            queue.secondary.delete();
-            buffer.renameTo(queue.secondary);
+        // replace secondary with buffer
+        queue.secondary.delete();
+        buffer.renameTo(queue.secondary);
 
-        } catch (IOException e) {
-            throw new FileQueueException("Caught IO exception in FileQueue - " + queue.name, e);
-        } finally {
-            queue.unlock();
+        return removed;
+    }
+
+    /**
+     * Check whether the primary or secondary holds a record with the given receipt handle. Must hold the queue's lock.
+     */
+    private boolean containsRecord(FileQueue queue, String receiptHandle) throws IOException {
+
+        String prefix = receiptHandle + ",";
+
+        for (File file : new File[] { queue.primary, queue.secondary }) {
+            if (!file.exists()) {
+                continue;
+            }
+            try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (line.startsWith(prefix)) {
+                        return true;
+                    }
+                }
+            }
         }
 
-        return deleted;
+        return false;
+    }
+
+    private void appendRecord(File file, String record) throws IOException {
+        try (PrintWriter pw = new PrintWriter(new FileWriter(file, true))) {
+            pw.println(record);
+        }
+    }
+
+    private void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteDirectory(file);
+            }
+        }
+        dir.delete();
     }
 
     private FileQueue getQueue(String queueName) {
@@ -286,22 +1163,56 @@ public class FileQueueService implements QueueService {
      */
     private String toRecord(Message msg) {
         StringBuilder sb = new StringBuilder();
-        return sb.append(msg.getReceiptHandle() == null ? "" : msg.getReceiptHandle()).append(",")
+        sb.append(msg.getReceiptHandle() == null ? "" : msg.getReceiptHandle()).append(",")
                 .append(msg.getInvisibleTimeoutTime()).append(",")
-                .append(BaseEncoding.base64().encode(msg.getBody().getBytes())).toString();
+                .append(msg.getSentTimestamp()).append(",")
+                .append(msg.getFirstReceiveTimestamp()).append(",");
+
+        byte[] body = msg.getBody().getBytes();
+        if (Compression.shouldCompress(body.length, compressionThreshold)) {
+            sb.append(COMPRESSED).append(BaseEncoding.base64().encode(Compression.deflate(body)));
+        } else {
+            sb.append(BaseEncoding.base64().encode(body));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Read the invisible timeout time of a record line, without decoding its body.
+     */
+    private static long invisibleTimeoutOf(String line) {
+        int start = line.indexOf(',') + 1;
+        return Long.parseLong(line.substring(start, line.indexOf(',', start)));
     }
 
     /**
      * Simple method to convert a record line from a file into a Message
      */
     private Message fromRecord(String line) {
-        String cols[] = line.split(",", 3);
+        // the body column never contains a comma, so legacy records split into fewer columns
+        String cols[] = line.split(",", RECORD_COLUMNS);
         String receiptHandle = cols[0].isEmpty() ? null : cols[0];
         long invisibleTimeoutTime = Long.valueOf(cols[1]);
-        String body = cols[2];
+        long sentTimestamp = 0;
+        long firstReceiveTimestamp = 0;
+        if (cols.length == RECORD_COLUMNS) {
+            sentTimestamp = Long.valueOf(cols[2]);
+            firstReceiveTimestamp = Long.valueOf(cols[3]);
+        }
+        String body = cols[cols.length - 1];
+
+        byte[] bytes;
+        if (!body.isEmpty() && body.charAt(0) == COMPRESSED) {
+            bytes = Compression.inflate(BaseEncoding.base64().decode(body.substring(1)));
+        } else {
+            bytes = BaseEncoding.base64().decode(body);
+        }
+
         return new MessageBuilder().setReceiptHandle(receiptHandle)
                 .setInvisibleTimeoutTime(invisibleTimeoutTime)
-                .setBody(new String(BaseEncoding.base64().decode(body))).build();
+                .setSentTimestamp(sentTimestamp)
+                .setFirstReceiveTimestamp(firstReceiveTimestamp)
+                .setBody(new String(bytes)).build();
     }
 
 }
@@ -1,14 +1,18 @@
 package org.yoong.aws.impl;
 
+import java.rmi.server.UID;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 
 import org.yoong.aws.Message;
+import org.yoong.aws.QueueHandle;
 import org.yoong.aws.QueueService;
 import org.yoong.aws.Message.MessageBuilder;
 import org.yoong.aws.exceptions.NoSuchQueueException;
+import org.yoong.aws.metrics.QueueMetrics;
+import org.yoong.aws.metrics.QueueMetricsSource;
 import org.yoong.aws.util.Clock;
 
 /**
@@ -36,8 +40,16 @@ import org.yoong.aws.util.Clock;
  * </p>
  * 
  * <p>
+ * <h4>Timestamps</h4>
+ * Messages are stamped with the service's clock when pushed and when first pulled. <br/>
+ * Each queue keeps {@link QueueMetrics} of how long its messages wait to be pulled and how long they are processed.
+ * </p>
+ * 
+ * <p>
  * <h4>Delete</h4>
  * Deleting a message only deletes the specified message from the secondary. <br/>
+ * Messages are matched by the receipt handle generated when they were first pulled, so a copy of a pulled message
+ * (eg one that crossed a process boundary) can also delete it. <br/>
  * This also helps to enforce the reliability requirement that only messages that have been pulled can get deleted.
  * </p>
  * 
@@ -47,9 +59,24 @@ import org.yoong.aws.util.Clock;
  * This is to prevent the following situations : </br>
  * <li>Multiple processes peeking at and being delivered the same message</li>
  * <li>A message that has been deleted, but gets added back to the queue during a pull</li>
+ * </p>
+ * 
+ * <p>
+ * <h4>Purge and Delete Queue</h4>
+ * Both queues are held in a single storage object, so purging a queue swaps in empty storage in constant time rather
+ * than removing messages one by one. <br/>
+ * Messages pushed concurrently with a purge may be purged as well. <br/>
+ * Deleting a queue removes it from the map, and any later call with its name throws {@link NoSuchQueueException}.
+ * </p>
+ * 
+ * <p>
+ * <h4>Queue Handle</h4>
+ * A {@link QueueHandle} holds the resolved queue, so its calls skip the map lookup. <br/>
+ * Deleting a queue marks it as deleted, so its handles fail rather than keep using a queue no longer in the map.
+ * </p>
  * 
  */
-public class InMemoryQueueService implements QueueService {
+public class InMemoryQueueService implements QueueService, QueueMetricsSource {
 
     /**
      * Concurrent hash map to store queues with queue name as key.
@@ -63,8 +90,9 @@ public class InMemoryQueueService implements QueueService {
     private class InMemoryQueue {
 
         final String name;
-        final Queue<Message> primary = new ConcurrentLinkedQueue<Message>();
-        final Queue<Message> secondary = new ConcurrentLinkedQueue<Message>();
+        volatile Storage storage = new Storage();
+        volatile boolean deleted;
+        final QueueMetrics metrics = new QueueMetrics();
         final long visibilityTimeout;
         final Clock clock;
 
@@ -75,6 +103,54 @@ public class InMemoryQueueService implements QueueService {
         }
     }
 
+    /**
+     * Class to hold the primary and secondary queues, swapped as a whole when the queue is purged.
+     */
+    private static class Storage {
+
+        final Queue<Message> primary = new ConcurrentLinkedQueue<Message>();
+        final Queue<Message> secondary = new ConcurrentLinkedQueue<Message>();
+    }
+
+    /**
+     * Class to bind calls to a resolved queue.
+     */
+    private class InMemoryQueueHandle implements QueueHandle {
+
+        final InMemoryQueue queue;
+
+        public InMemoryQueueHandle(InMemoryQueue queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public String getQueueUrl() {
+            return queue.name;
+        }
+
+        @Override
+        public void push(String message) {
+            InMemoryQueueService.this.push(resolve(), message);
+        }
+
+        @Override
+        public Message pull() {
+            return InMemoryQueueService.this.pull(resolve());
+        }
+
+        @Override
+        public boolean delete(Message handle) {
+            return InMemoryQueueService.this.delete(resolve(), handle);
+        }
+
+        InMemoryQueue resolve() {
+            if (queue.deleted) {
+                throw new NoSuchQueueException("Queue named \"" + queue.name + "\" does not exist.");
+            }
+            return queue;
+        }
+    }
+
     public InMemoryQueueService(Clock clock) {
         this.clock = clock;
     }
@@ -94,48 +170,133 @@ public class InMemoryQueueService implements QueueService {
 
     @Override
     public void push(String queueName, String message) {
-        // push message to tail of primary queue
-        getQueue(queueName).primary.add(new MessageBuilder().setBody(message).build());
+        push(getQueue(queueName), message);
     }
 
     @Override
     public Message pull(String queueName) {
+        return pull(getQueue(queueName));
+    }
+
+    @Override
+    public boolean delete(String queueName, Message message) {
+        return delete(getQueue(queueName), message);
+    }
+
+    /**
+     * The message is removed from the source secondary and added to the target primary within the same synchronized
+     * block, so no other pull or delete of the source can interleave.
+     */
+    @Override
+    public boolean transfer(String sourceName, Message message, String targetName, String newBody) {
+
+        InMemoryQueue source = getQueue(sourceName);
+        InMemoryQueue target = getQueue(targetName);
+
+        if (message.getReceiptHandle() == null) {
+            return false;
+        }
+
+        Storage storage = source.storage;
+
+        synchronized (storage.secondary) {
+            for (Message record : storage.secondary) {
+                if (message.getReceiptHandle().equals(record.getReceiptHandle())) {
+                    storage.secondary.remove(record);
+                    source.metrics.recordDelete(record, clock.getCurrentTime());
+                    push(target, (newBody != null) ? newBody : record.getBody());
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public void purgeQueue(String queueName) {
+        getQueue(queueName).storage = new Storage();
+    }
+
+    @Override
+    public void deleteQueue(String queueName) {
+        InMemoryQueue queue = queues.remove(queueName);
+        if (queue == null) {
+            throw new NoSuchQueueException("Queue named \"" + queueName + "\" does not exist.");
+        }
+        queue.deleted = true;
+    }
 
-        InMemoryQueue queue = getQueue(queueName);
+    @Override
+    public QueueHandle getQueueHandle(String queueName) {
+        return new InMemoryQueueHandle(getQueue(queueName));
+    }
 
-        synchronized (queue.secondary) {
+    /**
+     * @return message age metrics of a queue, since it was created
+     */
+    @Override
+    public QueueMetrics getMetrics(String queueName) {
+        return getQueue(queueName).metrics;
+    }
+
+    private void push(InMemoryQueue queue, String message) {
+        // push message to tail of primary queue
+        queue.storage.primary.add(new MessageBuilder().setBody(message)
+                .setSentTimestamp(clock.getCurrentTime()).build());
+    }
 
-            Message secMsg = queue.secondary.peek();
+    private Message pull(InMemoryQueue queue) {
+
+        Storage storage = queue.storage;
+
+        synchronized (storage.secondary) {
+
+            Message secMsg = storage.secondary.peek();
 
             // peek secondary queue to check if invisibility has timed out
             if (secMsg != null && !secMsg.isInvisible(clock)) {
                 // set the visibility timeout and move msg to the tail of the secondary queue
                 secMsg.startInvisible(queue.visibilityTimeout, clock);
-                queue.secondary.remove(secMsg);
-                queue.secondary.add(secMsg);
+                storage.secondary.remove(secMsg);
+                storage.secondary.add(secMsg);
                 return secMsg;
             }
         }
 
-        Message priMsg = queue.primary.poll();
+        Message priMsg = storage.primary.poll();
 
         if (priMsg != null) {
-            // set the visibility timeout and move msg from primary to secondary queue.
+            // generate the receipt handle, set the visibility timeout and move msg from primary to secondary queue.
+            priMsg.setReceiptHandle(new UID().toString());
             priMsg.startInvisible(queue.visibilityTimeout, clock);
-            queue.secondary.add(priMsg);
+            priMsg.markFirstReceive(clock);
+            storage.secondary.add(priMsg);
+
+            queue.metrics.recordFirstReceive(priMsg, priMsg.getFirstReceiveTimestamp());
         }
 
         return priMsg;
     }
 
-    @Override
-    public boolean delete(String queueName, Message message) {
+    private boolean delete(InMemoryQueue queue, Message message) {
+
+        if (message.getReceiptHandle() == null) {
+            return false;
+        }
 
-        InMemoryQueue queue = getQueue(queueName);
+        Storage storage = queue.storage;
 
-        synchronized (queue.secondary) {
-            return queue.secondary.remove(message);
+        synchronized (storage.secondary) {
+            for (Message record : storage.secondary) {
+                if (message.getReceiptHandle().equals(record.getReceiptHandle())) {
+                    queue.metrics.recordDelete(record, clock.getCurrentTime());
+                    return storage.secondary.remove(record);
+                }
+            }
         }
+
+        return false;
     }
 
     private InMemoryQueue getQueue(String queueName) {
@@ -0,0 +1,89 @@
+package org.yoong.aws.impl;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+
+import sun.misc.Unsafe;
+
+/**
+ * Atomic and plain access to native memory by address, for the mapped rings of the SharedMemoryQueueService.
+ *
+ * <p>
+ * A MappedByteBuffer has no compare-and-swap, so the words of a ring shared between processes are accessed through
+ * <code>sun.misc.Unsafe</code>. This class is the only one which refers to it, and the build passes
+ * <code>-XDignore.symbol.file</code> so that javac does not warn about it. See the compiler configuration in the pom.
+ * <br/>
+ * Addresses are not checked, callers must keep them within a buffer they hold a reference to.
+ * </p>
+ */
+final class NativeMemory {
+
+    private static final Unsafe UNSAFE;
+    private static final long ADDRESS_OFFSET;
+    private static final long BYTE_ARRAY_OFFSET;
+
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = (Unsafe) field.get(null);
+            ADDRESS_OFFSET = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+            BYTE_ARRAY_OFFSET = UNSAFE.arrayBaseOffset(byte[].class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private NativeMemory() {
+    }
+
+    /**
+     * @return the address of the first byte of a mapped buffer
+     */
+    static long address(MappedByteBuffer buffer) {
+        return UNSAFE.getLong(buffer, ADDRESS_OFFSET);
+    }
+
+    static int getInt(long address) {
+        return UNSAFE.getInt(null, address);
+    }
+
+    static void putInt(long address, int value) {
+        UNSAFE.putInt(null, address, value);
+    }
+
+    static long getLong(long address) {
+        return UNSAFE.getLong(null, address);
+    }
+
+    static void putLong(long address, long value) {
+        UNSAFE.putLong(null, address, value);
+    }
+
+    static long getLongVolatile(long address) {
+        return UNSAFE.getLongVolatile(null, address);
+    }
+
+    static void putLongVolatile(long address, long value) {
+        UNSAFE.putLongVolatile(null, address, value);
+    }
+
+    static boolean compareAndSwapLong(long address, long expected, long value) {
+        return UNSAFE.compareAndSwapLong(null, address, expected, value);
+    }
+
+    /**
+     * Copy a byte array to native memory.
+     */
+    static void copy(byte[] source, long address) {
+        UNSAFE.copyMemory(source, BYTE_ARRAY_OFFSET, null, address, source.length);
+    }
+
+    /**
+     * Copy native memory to a byte array, filling it.
+     */
+    static void copy(long address, byte[] target) {
+        UNSAFE.copyMemory(null, address, target, BYTE_ARRAY_OFFSET, target.length);
+    }
+}
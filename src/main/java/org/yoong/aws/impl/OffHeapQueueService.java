@@ -0,0 +1,606 @@
+package org.yoong.aws.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.yoong.aws.Message;
+import org.yoong.aws.QueueHandle;
+import org.yoong.aws.QueueService;
+import org.yoong.aws.Message.MessageBuilder;
+import org.yoong.aws.exceptions.NoSuchQueueException;
+import org.yoong.aws.exceptions.QueueCapacityException;
+import org.yoong.aws.metrics.QueueMetrics;
+import org.yoong.aws.metrics.QueueMetricsSource;
+import org.yoong.aws.util.Clock;
+
+import com.google.common.base.Charsets;
+
+/**
+ * The OffHeapQueueService follows the same primary and secondary design as the InMemoryQueueService, but keeps message
+ * bodies in direct memory so that a large backlog does not put millions of objects on the heap.
+ *
+ * <p>
+ * <h4>Slabs</h4>
+ * Direct memory is reserved in fixed size slabs, up to a configurable memory cap shared by all queues of the service.
+ * <br/>
+ * Each queue appends records to its own current slab, in the format
+ * <code>[length][sent timestamp][first receive timestamp][body bytes]</code>. <br/>
+ * The first receive timestamp is 0 until the record is first pulled, when it is stamped in place. <br/>
+ * A slab keeps a count of its live records, and is returned to the service's pool once all of them are deleted. <br/>
+ * Slabs are reused rather than freed, so the reserved memory only grows up to the cap. A push that needs a new slab
+ * when the cap is reached fails with a {@link QueueCapacityException}.
+ * </p>
+ *
+ * <p>
+ * <h4>Indexes</h4>
+ * The only per message state kept on the heap is primitive : <br/>
+ * <li>primary - a ring of record addresses (slab id and offset packed in a long) </li>
+ * <li>secondary - a ring of record addresses and invisibility timeout times </li>
+ * Message objects are only created when they are returned by {@link #pull}. <br/>
+ * Metrics are recorded from the timestamps in the record header, so deletes do not create Message objects either.
+ * </p>
+ *
+ * <p>
+ * <h4>Receipt Handle</h4>
+ * Every entry added to the secondary is given a sequence number. The receipt handle is the incarnation of the queue,
+ * a number given to each queue the service creates, and the sequence number : <code>incarnation:seq</code>. <br/>
+ * A message that times out is moved to the tail of the secondary with a new sequence number, so a receipt handle from
+ * an earlier pull can no longer delete it.
+ * </p>
+ *
+ * <p>
+ * <h4>Purge and Delete Queue</h4>
+ * Each queue keeps a list of the slabs it holds records in. Purging a queue returns all of them to the pool and
+ * resets its indexes, so the cost depends on the number of slabs rather than the number of messages. <br/>
+ * Sequence numbers carry on after a purge, so receipt handles from before the purge can no longer delete anything.
+ * <br/>
+ * A queue created again after being deleted starts its sequence numbers from 0 under a new incarnation, so receipt
+ * handles from the deleted queue cannot delete messages of the new one.
+ * </p>
+ *
+ * <p>
+ * <h4>Synchronization</h4>
+ * Each queue is guarded by its own lock. The slab pool is guarded by a separate lock, only taken when a queue needs a
+ * new slab or releases an empty one.
+ * </p>
+ *
+ * @see InMemoryQueueService
+ */
+public class OffHeapQueueService implements QueueService, QueueMetricsSource {
+
+    public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+    private static final int RECORD_HEADER_SIZE = 20;
+    private static final int SENT_OFFSET = 4;
+    private static final int FIRST_RECEIVE_OFFSET = 12;
+    private static final long TOMBSTONE = -1L;
+
+    private final ConcurrentHashMap<String, OffHeapQueue> queues = new ConcurrentHashMap<String, OffHeapQueue>();
+    private final AtomicLong incarnations = new AtomicLong();
+    private final Clock clock;
+    private final SlabPool pool;
+
+    /**
+     * Class to hold a slab of direct memory. Only ever accessed while holding the lock of the queue that owns it.
+     */
+    private class Slab {
+
+        final int id;
+        final ByteBuffer buffer;
+        int position;
+        int live;
+        long used;
+
+        public Slab(int id, int size) {
+            this.id = id;
+            this.buffer = ByteBuffer.allocateDirect(size);
+        }
+
+        boolean hasRoom(int recordSize) {
+            return buffer.capacity() - position >= recordSize;
+        }
+    }
+
+    /**
+     * Class to reserve and reuse slabs, up to the memory cap.
+     */
+    private class SlabPool {
+
+        final int slabSize;
+        final AtomicReferenceArray<Slab> slabs;
+        final ArrayDeque<Slab> free = new ArrayDeque<Slab>();
+        int allocated;
+
+        final AtomicLong usedBytes = new AtomicLong();
+
+        public SlabPool(int slabSize, long memoryCap) {
+            this.slabSize = slabSize;
+            this.slabs = new AtomicReferenceArray<Slab>((int) (memoryCap / slabSize));
+        }
+
+        synchronized Slab acquire() {
+            Slab slab = free.poll();
+            if (slab != null) {
+                return slab;
+            }
+            if (allocated == slabs.length()) {
+                throw new QueueCapacityException("Off-heap memory cap of " + getMemoryCap() + " bytes reached.");
+            }
+            slab = new Slab(allocated, slabSize);
+            slabs.set(allocated++, slab);
+            return slab;
+        }
+
+        synchronized void release(Slab slab) {
+            slab.position = 0;
+            slab.live = 0;
+            slab.used = 0;
+            free.push(slab);
+        }
+
+        synchronized long reservedBytes() {
+            return (long) allocated * slabSize;
+        }
+
+        Slab get(long address) {
+            return slabs.get((int) (address >>> 32));
+        }
+    }
+
+    /**
+     * Class to hold the primitive indexes of an off-heap queue.
+     */
+    private class OffHeapQueue {
+
+        final String name;
+        final long visibilityTimeout;
+        final long incarnation = incarnations.incrementAndGet();
+        final QueueMetrics metrics = new QueueMetrics();
+
+        Slab current;
+        final List<Slab> slabs = new ArrayList<Slab>();
+        boolean deleted;
+
+        // primary : ring of record addresses
+        long[] primary = new long[16];
+        int primaryHead;
+        int primarySize;
+
+        // secondary : ring of record addresses and timeouts, indexed by sequence number
+        long[] secondaryAddresses = new long[16];
+        long[] secondaryTimeouts = new long[16];
+        long secondaryHead;
+        long secondaryTail;
+
+        public OffHeapQueue(String name, long visibilityTimeout) {
+            this.name = name;
+            this.visibilityTimeout = visibilityTimeout;
+        }
+
+        void addPrimary(long address) {
+            if (primarySize == primary.length) {
+                long[] grown = new long[primary.length * 2];
+                for (int i = 0; i < primarySize; i++) {
+                    grown[i] = primary[(primaryHead + i) % primary.length];
+                }
+                primary = grown;
+                primaryHead = 0;
+            }
+            primary[(primaryHead + primarySize++) % primary.length] = address;
+        }
+
+        long pollPrimary() {
+            if (primarySize == 0) {
+                return TOMBSTONE;
+            }
+            long address = primary[primaryHead];
+            primaryHead = (primaryHead + 1) % primary.length;
+            primarySize--;
+            return address;
+        }
+
+        long addSecondary(long address, long timeoutTime) {
+            if (secondaryTail - secondaryHead == secondaryAddresses.length) {
+                int capacity = secondaryAddresses.length * 2;
+                long[] addresses = new long[capacity];
+                long[] timeouts = new long[capacity];
+                for (long seq = secondaryHead; seq < secondaryTail; seq++) {
+                    addresses[(int) (seq & (capacity - 1))] = secondaryAddresses[secondaryIndex(seq)];
+                    timeouts[(int) (seq & (capacity - 1))] = secondaryTimeouts[secondaryIndex(seq)];
+                }
+                secondaryAddresses = addresses;
+                secondaryTimeouts = timeouts;
+            }
+            long seq = secondaryTail++;
+            secondaryAddresses[secondaryIndex(seq)] = address;
+            secondaryTimeouts[secondaryIndex(seq)] = timeoutTime;
+            return seq;
+        }
+
+        // skip entries at the head of secondary which have already been deleted
+        void trimSecondary() {
+            while (secondaryHead < secondaryTail && secondaryAddresses[secondaryIndex(secondaryHead)] == TOMBSTONE) {
+                secondaryHead++;
+            }
+        }
+
+        int secondaryIndex(long seq) {
+            return (int) (seq & (secondaryAddresses.length - 1));
+        }
+
+        // drop every entry, carrying on the sequence numbers
+        void clearIndexes() {
+            primary = new long[16];
+            primaryHead = 0;
+            primarySize = 0;
+            secondaryAddresses = new long[16];
+            secondaryTimeouts = new long[16];
+            secondaryHead = secondaryTail;
+        }
+    }
+
+    public OffHeapQueueService(long memoryCap, Clock clock) {
+        this(memoryCap, DEFAULT_SLAB_SIZE, clock);
+    }
+
+    /**
+     * @param memoryCap - maximum number of bytes of direct memory reserved for all queues
+     * @param slabSize - size of each slab in bytes, which also limits the size of a single message
+     * @throws IllegalArgumentException if the memory cap does not hold at least one slab
+     */
+    public OffHeapQueueService(long memoryCap, int slabSize, Clock clock) {
+        if (slabSize <= RECORD_HEADER_SIZE || memoryCap < slabSize) {
+            throw new IllegalArgumentException("Memory cap of " + memoryCap + " bytes does not hold a slab of "
+                    + slabSize + " bytes.");
+        }
+        this.pool = new SlabPool(slabSize, memoryCap);
+        this.clock = clock;
+    }
+
+    @Override
+    public String createQueue(String queueName, long visibilityTimeout, TimeUnit unit) {
+
+        OffHeapQueue queue = queues.get(queueName);
+
+        if (queue == null) {
+            queue = new OffHeapQueue(queueName, unit.toMillis(visibilityTimeout));
+            queues.putIfAbsent(queue.name, queue);
+        }
+
+        return queue.name;
+    }
+
+    @Override
+    public void push(String queueName, String message) {
+
+        OffHeapQueue queue = getQueue(queueName);
+        byte[] body = message.getBytes(Charsets.UTF_8);
+
+        synchronized (queue) {
+            append(queue, body);
+        }
+    }
+
+    @Override
+    public Message pull(String queueName) {
+
+        OffHeapQueue queue = getQueue(queueName);
+
+        synchronized (queue) {
+
+            queue.trimSecondary();
+
+            // check if head of secondary has surpassed the timeout
+            if (queue.secondaryHead < queue.secondaryTail) {
+                int index = queue.secondaryIndex(queue.secondaryHead);
+                if (clock.getCurrentTime() >= queue.secondaryTimeouts[index]) {
+                    long address = queue.secondaryAddresses[index];
+                    queue.secondaryAddresses[index] = TOMBSTONE;
+                    queue.secondaryHead++;
+                    return deliver(queue, address);
+                }
+            }
+
+            // otherwise, get head of primary
+            long address = queue.pollPrimary();
+            if (address != TOMBSTONE) {
+                return deliver(queue, address);
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public boolean delete(String queueName, Message message) {
+
+        OffHeapQueue queue = getQueue(queueName);
+
+        long seq = parseReceiptHandle(queue, message);
+        if (seq < 0) {
+            return false;
+        }
+
+        synchronized (queue) {
+
+            long address = secondaryAddress(queue, seq);
+            if (address == TOMBSTONE) {
+                return false;
+            }
+            free(queue, seq, address);
+        }
+
+        return true;
+    }
+
+    /**
+     * Both queues are locked, in name order so that concurrent transfers cannot deadlock. The record is appended to the
+     * target before it is freed in the source, so a transfer which fails, eg when the memory cap is reached, leaves the
+     * message in the source.
+     */
+    @Override
+    public boolean transfer(String sourceUrl, Message message, String targetUrl, String newBody) {
+
+        OffHeapQueue source = getQueue(sourceUrl);
+        OffHeapQueue target = getQueue(targetUrl);
+
+        long seq = parseReceiptHandle(source, message);
+        if (seq < 0) {
+            return false;
+        }
+
+        OffHeapQueue first = (source.name.compareTo(target.name) <= 0) ? source : target;
+        OffHeapQueue second = (first == source) ? target : source;
+
+        synchronized (first) {
+            synchronized (second) {
+
+                long address = secondaryAddress(source, seq);
+                if (address == TOMBSTONE) {
+                    return false;
+                }
+
+                byte[] body = (newBody != null) ? newBody.getBytes(Charsets.UTF_8) : readBody(address);
+                append(target, body);
+                free(source, seq, address);
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public void purgeQueue(String queueName) {
+
+        OffHeapQueue queue = getQueue(queueName);
+
+        synchronized (queue) {
+            clear(queue);
+        }
+    }
+
+    @Override
+    public void deleteQueue(String queueName) {
+
+        OffHeapQueue queue = getQueue(queueName);
+
+        synchronized (queue) {
+            // a concurrent push may still hold the queue, so mark it deleted before freeing its slabs
+            queue.deleted = true;
+            clear(queue);
+            queues.remove(queueName, queue);
+        }
+    }
+
+    @Override
+    public QueueHandle getQueueHandle(String queueName) {
+        getQueue(queueName);
+        return new UrlQueueHandle(this, queueName);
+    }
+
+    /**
+     * @return message age metrics of a queue, since it was created
+     */
+    @Override
+    public QueueMetrics getMetrics(String queueName) {
+        return getQueue(queueName).metrics;
+    }
+
+    /**
+     * @return maximum number of bytes of direct memory this service may reserve
+     */
+    public long getMemoryCap() {
+        return (long) pool.slabs.length() * pool.slabSize;
+    }
+
+    /**
+     * @return number of bytes of direct memory reserved in slabs
+     */
+    public long getReservedMemory() {
+        return pool.reservedBytes();
+    }
+
+    /**
+     * @return number of bytes of direct memory held by messages which have not been deleted
+     */
+    public long getUsedMemory() {
+        return pool.usedBytes.get();
+    }
+
+    /**
+     * Return every slab of a queue to the pool, and drop all entries of its indexes. Must hold the queue's lock.
+     */
+    private void clear(OffHeapQueue queue) {
+
+        for (Slab slab : queue.slabs) {
+            pool.usedBytes.addAndGet(-slab.used);
+            pool.release(slab);
+        }
+        queue.slabs.clear();
+        queue.current = null;
+        queue.clearIndexes();
+    }
+
+    /**
+     * Append a record to the current slab of a queue, and push its address to the tail of the primary. Must hold the
+     * queue's lock.
+     */
+    private void append(OffHeapQueue queue, byte[] body) {
+
+        int recordSize = RECORD_HEADER_SIZE + body.length;
+
+        if (recordSize > pool.slabSize) {
+            throw new IllegalArgumentException("Message of " + body.length + " bytes does not fit in a slab of "
+                    + pool.slabSize + " bytes.");
+        }
+
+        if (queue.deleted) {
+            throw new NoSuchQueueException("Queue named \"" + queue.name + "\" does not exist.");
+        }
+
+        if (queue.current == null || !queue.current.hasRoom(recordSize)) {
+            Slab full = queue.current;
+            queue.current = pool.acquire();
+            queue.slabs.add(queue.current);
+            if (full != null && full.live == 0) {
+                release(queue, full);
+            }
+        }
+
+        Slab slab = queue.current;
+        long address = ((long) slab.id << 32) | slab.position;
+
+        // append the record to the slab
+        slab.buffer.position(slab.position);
+        slab.buffer.putInt(body.length);
+        slab.buffer.putLong(clock.getCurrentTime());
+        slab.buffer.putLong(0);
+        slab.buffer.put(body);
+        slab.position += recordSize;
+        slab.live++;
+        slab.used += recordSize;
+        pool.usedBytes.addAndGet(recordSize);
+
+        // push address to tail of primary
+        queue.addPrimary(address);
+    }
+
+    /**
+     * @return the sequence number in a receipt handle, or -1 if it is not a valid receipt handle of this incarnation of
+     *         the queue
+     */
+    private static long parseReceiptHandle(OffHeapQueue queue, Message message) {
+
+        String handle = message.getReceiptHandle();
+        int separator = (handle == null) ? -1 : handle.indexOf(':');
+
+        if (separator < 0) {
+            return -1;
+        }
+
+        try {
+            if (Long.parseLong(handle.substring(0, separator)) != queue.incarnation) {
+                return -1;
+            }
+            return Long.parseLong(handle.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the address of the record in the secondary with the given sequence number, or {@link #TOMBSTONE} if it
+     *         has been deleted or pulled again. Must hold the queue's lock.
+     */
+    private long secondaryAddress(OffHeapQueue queue, long seq) {
+
+        if (seq < queue.secondaryHead || seq >= queue.secondaryTail) {
+            return TOMBSTONE;
+        }
+        return queue.secondaryAddresses[queue.secondaryIndex(seq)];
+    }
+
+    /**
+     * Remove a processed record from the secondary and free it, returning its slab to the pool once it holds no more
+     * live records. Must hold the queue's lock.
+     */
+    private void free(OffHeapQueue queue, long seq, long address) {
+
+        queue.secondaryAddresses[queue.secondaryIndex(seq)] = TOMBSTONE;
+        queue.trimSecondary();
+
+        Slab slab = pool.get(address);
+        int offset = (int) address;
+        queue.metrics.recordDelete(slab.buffer.getLong(offset + SENT_OFFSET),
+                slab.buffer.getLong(offset + FIRST_RECEIVE_OFFSET), clock.getCurrentTime());
+
+        int recordSize = RECORD_HEADER_SIZE + slab.buffer.getInt((int) address);
+        slab.live--;
+        slab.used -= recordSize;
+        pool.usedBytes.addAndGet(-recordSize);
+        if (slab.live == 0 && slab != queue.current) {
+            release(queue, slab);
+        }
+    }
+
+    private byte[] readBody(long address) {
+
+        Slab slab = pool.get(address);
+        int offset = (int) address;
+        byte[] body = new byte[slab.buffer.getInt(offset)];
+        slab.buffer.position(offset + RECORD_HEADER_SIZE);
+        slab.buffer.get(body);
+        return body;
+    }
+
+    /**
+     * Return an empty slab to the pool. Must hold the queue's lock.
+     */
+    private void release(OffHeapQueue queue, Slab slab) {
+        queue.slabs.remove(slab);
+        pool.release(slab);
+    }
+
+    /**
+     * Start the visibility timeout of a record, and add it to the tail of the secondary. Must hold the queue's lock.
+     */
+    private Message deliver(OffHeapQueue queue, long address) {
+
+        long invisibleTimeoutTime = clock.getCurrentTime() + queue.visibilityTimeout;
+        long seq = queue.addSecondary(address, invisibleTimeoutTime);
+
+        Slab slab = pool.get(address);
+        int offset = (int) address;
+        byte[] body = readBody(address);
+
+        // the first receive is kept across redeliveries
+        long sentTimestamp = slab.buffer.getLong(offset + SENT_OFFSET);
+        long firstReceiveTimestamp = slab.buffer.getLong(offset + FIRST_RECEIVE_OFFSET);
+        if (firstReceiveTimestamp == 0) {
+            firstReceiveTimestamp = clock.getCurrentTime();
+            slab.buffer.putLong(offset + FIRST_RECEIVE_OFFSET, firstReceiveTimestamp);
+            queue.metrics.recordFirstReceive(sentTimestamp, firstReceiveTimestamp);
+        }
+
+        return new MessageBuilder().setBody(new String(body, Charsets.UTF_8))
+                .setReceiptHandle(queue.incarnation + ":" + seq)
+                .setInvisibleTimeoutTime(invisibleTimeoutTime)
+                .setSentTimestamp(sentTimestamp)
+                .setFirstReceiveTimestamp(firstReceiveTimestamp).build();
+    }
+
+    private OffHeapQueue getQueue(String queueName) {
+
+        OffHeapQueue queue = queues.get(queueName);
+        if (queue == null) {
+            throw new NoSuchQueueException("Queue named \"" + queueName + "\" does not exist.");
+        }
+        return queue;
+    }
+}
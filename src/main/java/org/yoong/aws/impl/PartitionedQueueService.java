@@ -0,0 +1,322 @@
+package org.yoong.aws.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.yoong.aws.Message;
+import org.yoong.aws.QueueHandle;
+import org.yoong.aws.QueueService;
+import org.yoong.aws.Message.MessageBuilder;
+import org.yoong.aws.exceptions.NoSuchQueueException;
+import org.yoong.aws.metrics.QueueMetrics;
+import org.yoong.aws.metrics.QueueMetricsSource;
+import org.yoong.aws.util.Clock;
+
+/**
+ * The PartitionedQueueService spreads each logical queue over a number of internal partitions, so that a single hot
+ * queue is not limited by the lock (and for file queues, the files) of a single queue.
+ *
+ * <p>
+ * <h4>Partitions</h4>
+ * Partition <code>i</code> of a queue is a queue named <code>queueName#i</code>, created in the underlying service
+ * <code>i % services</code>. <br/>
+ * For example, a list of FileQueueServices with home directories on different mount points spreads a queue over all of
+ * those disks. See {@link #inMemory} and {@link #fileBacked}.
+ * </p>
+ *
+ * <p>
+ * <h4>Push</h4>
+ * Messages are pushed to the partitions in round-robin order.
+ * </p>
+ *
+ * <p>
+ * <h4>Pull</h4>
+ * Each thread has a home partition, which it pulls from first. <br/>
+ * If the home partition is empty, the thread steals from the other partitions in order. <br/>
+ * FIFO order is only kept within a partition, not across the logical queue.
+ * </p>
+ *
+ * <p>
+ * <h4>Receipt Handle</h4>
+ * Pulled messages are returned with the partition index prefixed to the receipt handle of the underlying service,
+ * <code>i#handle</code>, so that a delete can be routed to the right partition.
+ * </p>
+ *
+ * <p>
+ * <h4>Transfer</h4>
+ * A message is transferred within the underlying service of its partition, by that service's own transfer.
+ * </p>
+ *
+ * <p>
+ * <h4>Purge and Delete Queue</h4>
+ * Every partition is purged or deleted in turn, so the logical queue is not purged atomically as a whole. <br/>
+ * Each partition is purged as cheaply as its underlying service allows.
+ * </p>
+ *
+ * <p>
+ * <h4>Metrics</h4>
+ * The metrics of a queue are the sum of the metrics of its partitions, from the underlying services which keep them.
+ * </p>
+ */
+public class PartitionedQueueService implements QueueService, QueueMetricsSource, Closeable {
+
+    private static final char PARTITION_SEPARATOR = '#';
+
+    private ConcurrentHashMap<String, PartitionedQueue> queues = new ConcurrentHashMap<String, PartitionedQueue>();
+    private final List<QueueService> services;
+    private final int partitions;
+
+    /**
+     * Class to hold the resolved partitions of a queue.
+     */
+    private class PartitionedQueue {
+
+        final String name;
+        final QueueService[] services;
+        final String[] urls;
+        final AtomicInteger next = new AtomicInteger();
+
+        public PartitionedQueue(String name, long visibilityTimeout, TimeUnit unit) {
+            this.name = name;
+            this.services = new QueueService[partitions];
+            this.urls = new String[partitions];
+
+            List<QueueService> available = PartitionedQueueService.this.services;
+
+            for (int i = 0; i < partitions; i++) {
+                services[i] = available.get(i % available.size());
+                urls[i] = services[i].createQueue(name + PARTITION_SEPARATOR + i, visibilityTimeout, unit);
+            }
+        }
+    }
+
+    /**
+     * @param services - underlying services, partitions are assigned to them in turn
+     * @param partitions - number of partitions of each queue
+     */
+    public PartitionedQueueService(List<QueueService> services, int partitions) {
+        if (services.isEmpty() || partitions < 1) {
+            throw new IllegalArgumentException("At least one service and one partition are required.");
+        }
+        this.services = new ArrayList<QueueService>(services);
+        this.partitions = partitions;
+    }
+
+    /**
+     * Create a service with each queue partitioned over in-memory queues.
+     */
+    public static PartitionedQueueService inMemory(int partitions, Clock clock) {
+        List<QueueService> services = new ArrayList<QueueService>();
+        services.add(new InMemoryQueueService(clock));
+        return new PartitionedQueueService(services, partitions);
+    }
+
+    /**
+     * Create a service with each queue partitioned over file queues, spread across the given home directories.
+     */
+    public static PartitionedQueueService fileBacked(List<File> homeDirectories, int partitions, Clock clock) {
+        List<QueueService> services = new ArrayList<QueueService>();
+        for (File homeDirectory : homeDirectories) {
+            services.add(new FileQueueService(homeDirectory, clock));
+        }
+        return new PartitionedQueueService(services, partitions);
+    }
+
+    /**
+     * Close the underlying services which can be closed, eg the FileQueueServices of {@link #fileBacked}.
+     */
+    @Override
+    public void close() throws IOException {
+        for (QueueService service : services) {
+            if (service instanceof Closeable) {
+                ((Closeable) service).close();
+            }
+        }
+    }
+
+    @Override
+    public String createQueue(String queueName, long visibilityTimeout, TimeUnit unit) {
+
+        PartitionedQueue queue = queues.get(queueName);
+
+        if (queue == null) {
+            queue = new PartitionedQueue(queueName, visibilityTimeout, unit);
+            queues.putIfAbsent(queue.name, queue);
+        }
+
+        return queueName;
+    }
+
+    @Override
+    public void push(String queueName, String message) {
+
+        PartitionedQueue queue = getQueue(queueName);
+
+        // distribute messages across partitions in round-robin order
+        int partition = (queue.next.getAndIncrement() & Integer.MAX_VALUE) % partitions;
+
+        queue.services[partition].push(queue.urls[partition], message);
+    }
+
+    @Override
+    public Message pull(String queueName) {
+
+        PartitionedQueue queue = getQueue(queueName);
+
+        // pull from the thread's home partition first, then steal from the others
+        int home = (int) (Thread.currentThread().getId() % partitions);
+
+        for (int i = 0; i < partitions; i++) {
+            int partition = (home + i) % partitions;
+            Message msg = queue.services[partition].pull(queue.urls[partition]);
+            if (msg != null) {
+                return new MessageBuilder().setBody(msg.getBody())
+                        .setReceiptHandle(String.valueOf(partition) + PARTITION_SEPARATOR + msg.getReceiptHandle())
+                        .setInvisibleTimeoutTime(msg.getInvisibleTimeoutTime())
+                        .setSentTimestamp(msg.getSentTimestamp())
+                        .setFirstReceiveTimestamp(msg.getFirstReceiveTimestamp()).build();
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public boolean delete(String queueName, Message message) {
+
+        PartitionedQueue queue = getQueue(queueName);
+
+        int partition = parsePartition(message);
+        if (partition < 0) {
+            return false;
+        }
+
+        return queue.services[partition].delete(queue.urls[partition], partitionHandle(message));
+    }
+
+    /**
+     * The message is transferred by the underlying service of its source partition, to a partition of the target in
+     * the same service, so the transfer is as safe as that service's. <br/>
+     * The target partition is chosen in round-robin order among those partitions.
+     */
+    @Override
+    public boolean transfer(String sourceUrl, Message message, String targetUrl, String newBody) {
+
+        PartitionedQueue source = getQueue(sourceUrl);
+        PartitionedQueue target = getQueue(targetUrl);
+
+        int partition = parsePartition(message);
+        if (partition < 0) {
+            return false;
+        }
+
+        QueueService service = source.services[partition];
+
+        // partition i of every queue is in the same service, so the search always ends
+        int start = target.next.getAndIncrement() & Integer.MAX_VALUE;
+        int targetPartition = partition;
+        for (int i = 0; i < partitions; i++) {
+            int candidate = (start + i) % partitions;
+            if (target.services[candidate] == service) {
+                targetPartition = candidate;
+                break;
+            }
+        }
+
+        return service.transfer(source.urls[partition], partitionHandle(message), target.urls[targetPartition],
+                newBody);
+    }
+
+    @Override
+    public void purgeQueue(String queueName) {
+
+        PartitionedQueue queue = getQueue(queueName);
+
+        for (int i = 0; i < partitions; i++) {
+            queue.services[i].purgeQueue(queue.urls[i]);
+        }
+    }
+
+    @Override
+    public void deleteQueue(String queueName) {
+
+        PartitionedQueue queue = getQueue(queueName);
+
+        // remove the logical queue first, so no new operations are routed to the partitions being deleted
+        queues.remove(queueName, queue);
+
+        for (int i = 0; i < partitions; i++) {
+            queue.services[i].deleteQueue(queue.urls[i]);
+        }
+    }
+
+    /**
+     * @return a snapshot of the message age metrics of a queue, summed over its partitions
+     */
+    @Override
+    public QueueMetrics getMetrics(String queueName) {
+
+        PartitionedQueue queue = getQueue(queueName);
+
+        QueueMetrics metrics = new QueueMetrics();
+        for (int i = 0; i < partitions; i++) {
+            if (queue.services[i] instanceof QueueMetricsSource) {
+                metrics.add(((QueueMetricsSource) queue.services[i]).getMetrics(queue.urls[i]));
+            }
+        }
+        return metrics;
+    }
+
+    @Override
+    public QueueHandle getQueueHandle(String queueName) {
+        getQueue(queueName);
+        return new UrlQueueHandle(this, queueName);
+    }
+
+    /**
+     * @return the partition index in a receipt handle, or -1 if it is not a valid receipt handle
+     */
+    private int parsePartition(Message message) {
+
+        String handle = message.getReceiptHandle();
+        int separator = (handle == null) ? -1 : handle.indexOf(PARTITION_SEPARATOR);
+
+        if (separator < 0) {
+            return -1;
+        }
+
+        int partition;
+        try {
+            partition = Integer.parseInt(handle.substring(0, separator));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+        return (partition < partitions) ? partition : -1;
+    }
+
+    /**
+     * @return a message holding the receipt handle of the underlying service, without the partition index
+     */
+    private static Message partitionHandle(Message message) {
+
+        String handle = message.getReceiptHandle();
+        return new MessageBuilder().setReceiptHandle(handle.substring(handle.indexOf(PARTITION_SEPARATOR) + 1))
+                .build();
+    }
+
+    private PartitionedQueue getQueue(String queueName) {
+
+        PartitionedQueue queue = queues.get(queueName);
+        if (queue == null) {
+            throw new NoSuchQueueException("Queue named \"" + queueName + "\" does not exist.");
+        }
+        return queue;
+    }
+}
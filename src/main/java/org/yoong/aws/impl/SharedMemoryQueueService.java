@@ -0,0 +1,552 @@
+package org.yoong.aws.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.yoong.aws.Message;
+import org.yoong.aws.QueueHandle;
+import org.yoong.aws.QueueService;
+import org.yoong.aws.Message.MessageBuilder;
+import org.yoong.aws.exceptions.FileQueueException;
+import org.yoong.aws.exceptions.NoSuchQueueException;
+import org.yoong.aws.exceptions.QueueCapacityException;
+import org.yoong.aws.metrics.QueueMetrics;
+import org.yoong.aws.metrics.QueueMetricsSource;
+import org.yoong.aws.util.Clock;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+/**
+ * The SharedMemoryQueueService stores each queue in a ring buffer within a memory-mapped file, so that JVMs on the same
+ * host can share a queue without locking and rewriting files like the FileQueueService.
+ *
+ * <p>
+ * <h4>Ring Buffer</h4>
+ * Each queue has a folder within the home directory, named by the hash of the queue name like the FileQueueService,
+ * containing a single <code>ring</code> file. <br/>
+ * The file holds a header with three cursors, followed by a fixed number of fixed size slots : <br/>
+ * <li>tail - position of the next slot to push to</li>
+ * <li>head - position of the next slot to pull from for the first time</li>
+ * <li>ack - position of the oldest slot which has not been deleted</li>
+ * Slot positions only ever increase, position <code>p</code> is stored in slot <code>p % capacity</code>. <br/>
+ * Every cursor and slot word is updated with compare-and-swap on the mapped memory, through {@link NativeMemory}, so
+ * producers and consumers in different processes never block each other.
+ * </p>
+ *
+ * <p>
+ * <h4>Slots</h4>
+ * Each slot holds : <br/>
+ * <li>seq - <code>p</code> when free for a push at position <code>p</code>, <code>p + 1</code> once the message at
+ * <code>p</code> is published</li>
+ * <li>lease - whether the message is waiting to be pulled, has been deleted, or the time its invisibility expires</li>
+ * <li>sent timestamp, stamped on push</li>
+ * <li>first receive timestamp, stamped by the pull which moves the head past the slot, and kept across
+ * redeliveries</li>
+ * <li>length and body of the message</li>
+ * </p>
+ *
+ * <p>
+ * <h4>Visibility Timeout</h4>
+ * Slots between ack and head have been pulled, and stay in the ring until deleted. <br/>
+ * A pull first scans those slots for an expired lease, and claims it by swapping in a new lease. Otherwise it claims
+ * the slot at the head. <br/>
+ * The receipt handle is the slot position and its lease, so a receipt handle from an earlier pull can no longer delete
+ * a message which has since been pulled again. <br/>
+ * Deleting a message at the ack cursor moves the cursor forward, freeing its slot (and any deleted slots after it) for
+ * pushes.
+ * </p>
+ *
+ * <p>
+ * <h4>Transfer</h4>
+ * A transfer claims and writes a slot of the target before deleting the message from the source, and publishes the
+ * slot once the delete succeeds. A slot whose source message could not be deleted is published as deleted, and
+ * skipped by pulls.
+ * </p>
+ *
+ * <p>
+ * <h4>Metrics</h4>
+ * Metrics are kept on the heap of each process, so they only cover the messages pulled and deleted through this
+ * service, like the FileQueueService.
+ * </p>
+ *
+ * <p>
+ * <h4>Limits</h4>
+ * Messages larger than a slot are rejected, and pushing to a ring whose slots have not all been deleted fails with
+ * a {@link QueueCapacityException}. <br/>
+ * A process which dies between claiming and publishing a slot leaves the queue stuck at that slot.
+ * </p>
+ *
+ * <p>
+ * <h4>Purge and Delete Queue</h4>
+ * Without a lock shared by all processes, a ring cannot be swapped for an empty one in constant time. <br/>
+ * Instead, purging claims every published message at the head and deletes every pulled message, with the same
+ * compare-and-swap steps as pull and delete. This is linear in the capacity of the ring, but only touches mapped
+ * memory. Messages being claimed by a concurrent pull are left to that pull. <br/>
+ * Deleting a queue purges it, and then deletes its ring file. Processes which still have the ring mapped keep using
+ * the unlinked file until they create the queue again.
+ * </p>
+ *
+ * @see FileQueueService
+ */
+public class SharedMemoryQueueService implements QueueService, QueueMetricsSource {
+
+    // identifies the ring file format, changed along with the slot layout
+    private static final int MAGIC = 0x51554556;
+
+    // header layout, with each cursor on its own cache line
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SLOT_SIZE_OFFSET = 16;
+    private static final int TAIL_OFFSET = 64;
+    private static final int HEAD_OFFSET = 128;
+    private static final int ACK_OFFSET = 192;
+    private static final int HEADER_SIZE = 256;
+
+    // slot layout
+    private static final int SEQ_OFFSET = 0;
+    private static final int LEASE_OFFSET = 8;
+    private static final int SENT_OFFSET = 16;
+    private static final int FIRST_RECEIVE_OFFSET = 24;
+    private static final int LENGTH_OFFSET = 32;
+    private static final int BODY_OFFSET = 40;
+
+    private static final long UNDELIVERED = Long.MAX_VALUE;
+    private static final long DELETED = -1L;
+
+    private final File homeDirectory;
+    private final int capacity;
+    private final int slotSize;
+    private final Clock clock;
+
+    // cache mapped queues
+    private ConcurrentHashMap<String, SharedQueue> queues = new ConcurrentHashMap<String, SharedQueue>();
+
+    /**
+     * Class to hold a mapped ring buffer.
+     */
+    private class SharedQueue {
+
+        final String name;
+        final File ring;
+        final long visibilityTimeout;
+        final QueueMetrics metrics = new QueueMetrics();
+
+        // keep a reference to the buffer, the memory is unmapped once it is garbage collected.
+        // the buffer uses native byte order, to match the words accessed through NativeMemory
+        final MappedByteBuffer buffer;
+        final long address;
+        final int capacity;
+        final int slotSize;
+
+        public SharedQueue(File dir, long visibilityTimeout) {
+            this.name = dir.getName();
+            this.visibilityTimeout = visibilityTimeout;
+
+            dir.mkdirs();
+            ring = new File(dir, "ring");
+
+            try (RandomAccessFile file = new RandomAccessFile(ring, "rw"); FileChannel channel = file.getChannel()) {
+
+                // initialize the ring once, across processes
+                FileLock lock = channel.lock();
+                try {
+                    if (file.length() == 0) {
+                        int newCapacity = SharedMemoryQueueService.this.capacity;
+                        int newSlotSize = SharedMemoryQueueService.this.slotSize;
+
+                        file.setLength(HEADER_SIZE + (long) newCapacity * newSlotSize);
+                        MappedByteBuffer init = channel.map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+                        init.order(ByteOrder.nativeOrder());
+
+                        // every slot is free for a push in the first lap
+                        for (int i = 0; i < newCapacity; i++) {
+                            init.putLong(HEADER_SIZE + i * newSlotSize + SEQ_OFFSET, i);
+                        }
+                        init.putInt(CAPACITY_OFFSET, newCapacity);
+                        init.putInt(SLOT_SIZE_OFFSET, newSlotSize);
+                        init.putInt(MAGIC_OFFSET, MAGIC);
+                        init.force();
+                    }
+                } finally {
+                    lock.release();
+                }
+
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+                buffer.order(ByteOrder.nativeOrder());
+            } catch (IOException e) {
+                throw new FileQueueException("Caught IO exception in SharedQueue - " + name, e);
+            }
+
+            if (buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+                throw new FileQueueException("Invalid ring file for SharedQueue - " + name);
+            }
+
+            // the ring keeps the geometry it was created with
+            capacity = buffer.getInt(CAPACITY_OFFSET);
+            slotSize = buffer.getInt(SLOT_SIZE_OFFSET);
+            address = NativeMemory.address(buffer);
+        }
+
+        long slot(long position) {
+            return address + HEADER_SIZE + (position % capacity) * slotSize;
+        }
+
+        long get(long offset) {
+            return NativeMemory.getLongVolatile(offset);
+        }
+
+        boolean cas(long offset, long expected, long value) {
+            return NativeMemory.compareAndSwapLong(offset, expected, value);
+        }
+    }
+
+    /**
+     * @param homeDirectory - directory to store the ring files in
+     * @param capacity - number of slots in each new ring
+     * @param slotSize - size of each slot in bytes, which limits the size of a message
+     */
+    public SharedMemoryQueueService(File homeDirectory, int capacity, int slotSize, Clock clock) {
+        if (capacity < 1 || slotSize <= BODY_OFFSET || slotSize % 8 != 0) {
+            throw new IllegalArgumentException("Capacity must be positive, and slot size a multiple of 8 larger than "
+                    + BODY_OFFSET);
+        }
+        if (HEADER_SIZE + (long) capacity * slotSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Ring of " + capacity + " slots of " + slotSize
+                    + " bytes is larger than 2GB.");
+        }
+        this.homeDirectory = homeDirectory;
+        this.capacity = capacity;
+        this.slotSize = slotSize;
+        this.clock = clock;
+    }
+
+    private String getHashedString(String value) {
+        return Hashing.md5().hashString(value, Charsets.UTF_8).toString();
+    }
+
+    @Override
+    public String createQueue(String queueName, long visibilityTimeout, TimeUnit unit) {
+
+        String hashedName = getHashedString(queueName);
+
+        SharedQueue queue = queues.get(hashedName);
+
+        if (queue == null) {
+            queue = new SharedQueue(new File(homeDirectory, hashedName), unit.toMillis(visibilityTimeout));
+            queues.putIfAbsent(queue.name, queue);
+        }
+
+        return queueName;
+    }
+
+    @Override
+    public void push(String queueName, String message) {
+
+        SharedQueue queue = getQueue(queueName);
+
+        publish(queue, claim(queue, message.getBytes(Charsets.UTF_8)), UNDELIVERED);
+    }
+
+    @Override
+    public Message pull(String queueName) {
+
+        SharedQueue queue = getQueue(queueName);
+        long now = clock.getCurrentTime();
+
+        // check pulled messages for an expired visibility timeout
+        long head = queue.get(queue.address + HEAD_OFFSET);
+        for (long position = queue.get(queue.address + ACK_OFFSET); position < head; position++) {
+            long slot = queue.slot(position);
+            long lease = queue.get(slot + LEASE_OFFSET);
+
+            if (lease != UNDELIVERED && lease != DELETED && now >= lease
+                    && queue.get(slot + SEQ_OFFSET) == position + 1) {
+                long newLease = now + queue.visibilityTimeout;
+                if (queue.cas(slot + LEASE_OFFSET, lease, newLease)) {
+                    return read(slot, position, newLease);
+                }
+            }
+        }
+
+        // otherwise, get the message at the head
+        while (true) {
+            head = queue.get(queue.address + HEAD_OFFSET);
+            long slot = queue.slot(head);
+            long seq = queue.get(slot + SEQ_OFFSET);
+
+            if (seq == head + 1) {
+                if (queue.cas(queue.address + HEAD_OFFSET, head, head + 1)) {
+                    // skip a slot abandoned by a transfer
+                    if (queue.get(slot + LEASE_OFFSET) == DELETED) {
+                        advanceAck(queue);
+                        continue;
+                    }
+
+                    // only the consumer which moved the head can stamp the first receive and start the first lease
+                    long lease = now + queue.visibilityTimeout;
+                    NativeMemory.putLong(slot + FIRST_RECEIVE_OFFSET, now);
+                    NativeMemory.putLongVolatile(slot + LEASE_OFFSET, lease);
+                    queue.metrics.recordFirstReceive(NativeMemory.getLong(slot + SENT_OFFSET), now);
+                    return read(slot, head, lease);
+                }
+            } else if (seq <= head) {
+                // nothing has been published at the head
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public boolean delete(String queueName, Message message) {
+
+        SharedQueue queue = getQueue(queueName);
+
+        long[] handle = parseReceiptHandle(message);
+
+        return handle != null && release(queue, handle[0], handle[1]);
+    }
+
+    /**
+     * The target slot is claimed and written before the source message is deleted, and only published once it is, so a
+     * full target ring leaves the message in the source. <br/>
+     * If the source message can no longer be deleted, eg it has been pulled again since, the claimed slot is published
+     * as deleted, and skipped by pulls.
+     */
+    @Override
+    public boolean transfer(String sourceUrl, Message message, String targetUrl, String newBody) {
+
+        SharedQueue source = getQueue(sourceUrl);
+        SharedQueue target = getQueue(targetUrl);
+
+        long[] handle = parseReceiptHandle(message);
+        if (handle == null || !isLeased(source, handle[0], handle[1])) {
+            return false;
+        }
+
+        byte[] body = (newBody != null) ? newBody.getBytes(Charsets.UTF_8) : readBody(source.slot(handle[0]));
+
+        long position = claim(target, body);
+        boolean released = release(source, handle[0], handle[1]);
+        publish(target, position, released ? UNDELIVERED : DELETED);
+
+        return released;
+    }
+
+    @Override
+    public void purgeQueue(String queueName) {
+
+        SharedQueue queue = getQueue(queueName);
+
+        // claim every published message at the head, and delete it straight away
+        while (true) {
+            long head = queue.get(queue.address + HEAD_OFFSET);
+            long slot = queue.slot(head);
+            long seq = queue.get(slot + SEQ_OFFSET);
+
+            if (seq == head + 1) {
+                if (queue.cas(queue.address + HEAD_OFFSET, head, head + 1)) {
+                    NativeMemory.putLongVolatile(slot + LEASE_OFFSET, DELETED);
+                }
+            } else if (seq <= head) {
+                break;
+            }
+        }
+
+        // delete every pulled message, leaving slots whose first lease is still being started by a pull
+        long head = queue.get(queue.address + HEAD_OFFSET);
+        for (long position = queue.get(queue.address + ACK_OFFSET); position < head; position++) {
+            long slot = queue.slot(position);
+            while (true) {
+                long lease = queue.get(slot + LEASE_OFFSET);
+                if (lease == UNDELIVERED || lease == DELETED || queue.get(slot + SEQ_OFFSET) != position + 1
+                        || queue.cas(slot + LEASE_OFFSET, lease, DELETED)) {
+                    break;
+                }
+            }
+        }
+
+        advanceAck(queue);
+    }
+
+    @Override
+    public void deleteQueue(String queueName) {
+
+        purgeQueue(queueName);
+
+        SharedQueue queue = queues.remove(getHashedString(queueName));
+        if (queue != null) {
+            queue.ring.delete();
+            queue.ring.getParentFile().delete();
+        }
+    }
+
+    /**
+     * @return message age metrics of a queue, for the messages pulled and deleted through this service
+     */
+    @Override
+    public QueueMetrics getMetrics(String queueName) {
+        return getQueue(queueName).metrics;
+    }
+
+    @Override
+    public QueueHandle getQueueHandle(String queueName) {
+        getQueue(queueName);
+        return new UrlQueueHandle(this, queueName);
+    }
+
+    /**
+     * Claim the slot at the tail, and write a message to it without publishing it.
+     *
+     * @return the position of the claimed slot
+     * @throws QueueCapacityException if the ring is full
+     */
+    private long claim(SharedQueue queue, byte[] body) {
+
+        if (BODY_OFFSET + body.length > queue.slotSize) {
+            throw new IllegalArgumentException("Message of " + body.length + " bytes does not fit in a slot of "
+                    + queue.slotSize + " bytes.");
+        }
+
+        while (true) {
+            long position = queue.get(queue.address + TAIL_OFFSET);
+            long slot = queue.slot(position);
+            long seq = queue.get(slot + SEQ_OFFSET);
+
+            if (seq == position) {
+                // slot is free, claim it by moving the tail
+                if (queue.cas(queue.address + TAIL_OFFSET, position, position + 1)) {
+                    NativeMemory.putLong(slot + SENT_OFFSET, clock.getCurrentTime());
+                    NativeMemory.putLong(slot + FIRST_RECEIVE_OFFSET, 0);
+                    NativeMemory.putInt(slot + LENGTH_OFFSET, body.length);
+                    NativeMemory.copy(body, slot + BODY_OFFSET);
+                    return position;
+                }
+            } else if (seq < position) {
+                // slot still holds the message from the previous lap
+                throw new QueueCapacityException("SharedQueue - " + queue.name + " is full.");
+            }
+        }
+    }
+
+    /**
+     * Publish a claimed slot to pulls, either waiting to be pulled or already deleted.
+     */
+    private void publish(SharedQueue queue, long position, long lease) {
+
+        long slot = queue.slot(position);
+        NativeMemory.putLong(slot + LEASE_OFFSET, lease);
+        NativeMemory.putLongVolatile(slot + SEQ_OFFSET, position + 1);
+    }
+
+    /**
+     * @return the slot position and lease of a receipt handle, or null if it is not a valid receipt handle
+     */
+    private static long[] parseReceiptHandle(Message message) {
+
+        String handle = message.getReceiptHandle();
+        int separator = (handle == null) ? -1 : handle.indexOf(':');
+
+        if (separator < 0) {
+            return null;
+        }
+
+        try {
+            return new long[] { Long.parseLong(handle.substring(0, separator)),
+                    Long.parseLong(handle.substring(separator + 1)) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Check whether a pulled message still holds the given lease.
+     */
+    private boolean isLeased(SharedQueue queue, long position, long lease) {
+
+        if (position < queue.get(queue.address + ACK_OFFSET) || position >= queue.get(queue.address + HEAD_OFFSET)) {
+            return false;
+        }
+
+        long slot = queue.slot(position);
+        return queue.get(slot + SEQ_OFFSET) == position + 1 && queue.get(slot + LEASE_OFFSET) == lease;
+    }
+
+    /**
+     * Delete a pulled message which still holds the given lease, and free deleted slots at the ack cursor.
+     */
+    private boolean release(SharedQueue queue, long position, long lease) {
+
+        if (position < queue.get(queue.address + ACK_OFFSET) || position >= queue.get(queue.address + HEAD_OFFSET)) {
+            return false;
+        }
+
+        long slot = queue.slot(position);
+        if (queue.get(slot + SEQ_OFFSET) != position + 1) {
+            return false;
+        }
+
+        // read the timestamps while the lease still keeps the slot from being reused
+        long sentTimestamp = NativeMemory.getLong(slot + SENT_OFFSET);
+        long firstReceiveTimestamp = NativeMemory.getLong(slot + FIRST_RECEIVE_OFFSET);
+        if (!queue.cas(slot + LEASE_OFFSET, lease, DELETED)) {
+            return false;
+        }
+
+        queue.metrics.recordDelete(sentTimestamp, firstReceiveTimestamp, clock.getCurrentTime());
+        advanceAck(queue);
+
+        return true;
+    }
+
+    /**
+     * Free deleted slots at the ack cursor for pushes.
+     */
+    private void advanceAck(SharedQueue queue) {
+
+        while (true) {
+            long ack = queue.get(queue.address + ACK_OFFSET);
+            if (ack >= queue.get(queue.address + HEAD_OFFSET)) {
+                break;
+            }
+            long ackSlot = queue.slot(ack);
+            if (queue.get(ackSlot + LEASE_OFFSET) != DELETED || queue.get(ackSlot + SEQ_OFFSET) != ack + 1) {
+                break;
+            }
+            if (queue.cas(queue.address + ACK_OFFSET, ack, ack + 1)) {
+                NativeMemory.putLongVolatile(ackSlot + SEQ_OFFSET, ack + queue.capacity);
+            }
+        }
+    }
+
+    private byte[] readBody(long slot) {
+
+        byte[] body = new byte[NativeMemory.getInt(slot + LENGTH_OFFSET)];
+        NativeMemory.copy(slot + BODY_OFFSET, body);
+        return body;
+    }
+
+    private Message read(long slot, long position, long lease) {
+
+        return new MessageBuilder().setBody(new String(readBody(slot), Charsets.UTF_8))
+                .setReceiptHandle(position + ":" + lease)
+                .setInvisibleTimeoutTime(lease)
+                .setSentTimestamp(NativeMemory.getLong(slot + SENT_OFFSET))
+                .setFirstReceiveTimestamp(NativeMemory.getLong(slot + FIRST_RECEIVE_OFFSET)).build();
+    }
+
+    private SharedQueue getQueue(String queueName) {
+        SharedQueue queue = queues.get(getHashedString(queueName));
+        if (queue == null) {
+            throw new NoSuchQueueException("Queue named \"" + queueName + "\" does not exist.");
+        }
+        return queue;
+    }
+}
@@ -1,22 +1,52 @@
 package org.yoong.aws.impl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import org.yoong.aws.Message;
+import org.yoong.aws.QueueHandle;
 import org.yoong.aws.QueueService;
 import org.yoong.aws.Message.MessageBuilder;
+import org.yoong.aws.exceptions.QueueThrottledException;
+import org.yoong.aws.metrics.QueueMetrics;
+import org.yoong.aws.metrics.QueueMetricsSource;
+import org.yoong.aws.util.Clock;
+import org.yoong.aws.util.Compression;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.AmazonSQSClient;
 import com.amazonaws.services.sqs.model.CreateQueueRequest;
 import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.PurgeQueueRequest;
 import com.amazonaws.services.sqs.model.QueueAttributeName;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
 
-public class SqsQueueService implements QueueService {
+/**
+ * The SqsQueueService maps the QueueService interface onto SQS.
+ *
+ * <p>
+ * <h4>Metrics</h4>
+ * Queue wait is recorded from the sent and first receive timestamps of SQS, when a message is received for the first
+ * time, ie its approximate receive count is 1. <br/>
+ * Processing and end to end time are recorded on delete, from the local clock, so they include any clock skew between
+ * this host and SQS. <br/>
+ * Metrics are kept in this service, so they only cover the messages received and deleted through it.
+ * </p>
+ */
+public class SqsQueueService implements QueueService, QueueMetricsSource {
     
     //
     // Task 4: Optionally implement parts of me.
@@ -26,13 +56,61 @@ public class SqsQueueService implements QueueService {
     // terms of how well they map to the implementation intended for a production environment.
     //
 
+    /**
+     * Message attribute marking a compressed body, which is then base64 encoded deflate data.
+     */
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final String DEFLATE = "deflate";
+    private static final String SENT_TIMESTAMP = "SentTimestamp";
+    private static final String FIRST_RECEIVE_TIMESTAMP = "ApproximateFirstReceiveTimestamp";
+    private static final String RECEIVE_COUNT = "ApproximateReceiveCount";
+
+    // error codes of a receive throttled by SQS
+    private static final Set<String> THROTTLING_CODES = new HashSet<String>(Arrays.asList("Throttling",
+            "ThrottlingException", "RequestThrottled", "AWS.SimpleQueueService.RequestThrottled"));
+
     private final AmazonSQS sqsClient;
+    private final int compressionThreshold;
+    private final SqsReceiveController receiveController;
+    private final Clock clock;
+
+    // metrics of the queues used through this service, by queue url
+    private final ConcurrentHashMap<String, QueueMetrics> metrics = new ConcurrentHashMap<String, QueueMetrics>();
     
     /*
      * Assuming that the sqsClient has already been initialised when passed into this implementation. 
      */
     public SqsQueueService(AmazonSQSClient sqsClient) {
+        this(sqsClient, Compression.DISABLED);
+    }
+
+    /**
+     * Compressing bodies reduces network bytes, and lets large bodies fit within the SQS message size limit.
+     * 
+     * @param compressionThreshold - minimum body size in bytes to compress, or {@link Compression#DISABLED}
+     */
+    public SqsQueueService(AmazonSQSClient sqsClient, int compressionThreshold) {
+        this(sqsClient, compressionThreshold, null);
+    }
+
+    /**
+     * @param compressionThreshold - minimum body size in bytes to compress, or {@link Compression#DISABLED}
+     * @param receiveController - controller adapting the batch size and wait of receives, or null to receive a single
+     *            message per pull
+     */
+    public SqsQueueService(AmazonSQS sqsClient, int compressionThreshold, SqsReceiveController receiveController) {
+        this(sqsClient, compressionThreshold, receiveController, new Clock());
+    }
+
+    /**
+     * @param clock - clock timing deletes for the metrics
+     */
+    public SqsQueueService(AmazonSQS sqsClient, int compressionThreshold, SqsReceiveController receiveController,
+            Clock clock) {
         this.sqsClient = sqsClient;
+        this.compressionThreshold = compressionThreshold;
+        this.receiveController = receiveController;
+        this.clock = clock;
     }
 
     /**
@@ -52,32 +130,86 @@ public class SqsQueueService implements QueueService {
         return result.getQueueUrl();
     }
 
+    /**
+     * Bodies at least as large as the compression threshold are deflated, and marked with a message attribute.
+     */
     @Override
     public void push(String queueUrl, String message) {
         
-        sqsClient.sendMessage(queueUrl, message);
+        byte[] body = message.getBytes(Charsets.UTF_8);
+        
+        if (!Compression.shouldCompress(body.length, compressionThreshold)) {
+            sqsClient.sendMessage(queueUrl, message);
+            return;
+        }
+        
+        String compressed = BaseEncoding.base64().encode(Compression.deflate(body));
+        MessageAttributeValue encoding = new MessageAttributeValue().withDataType("String").withStringValue(DEFLATE);
+        
+        SendMessageRequest request = new SendMessageRequest(queueUrl, compressed)
+                .addMessageAttributesEntry(CONTENT_ENCODING, encoding);
+        
+        sqsClient.sendMessage(request);
     }
 
     /**
      * SQS's receiveMessage api can retrieve up to 10 messages, but retrieves a single message by default.
-     * Return the first message from returned list, or null if empty.
+     * Return the first message from returned list, or null if empty. <br/>
+     * With a {@link SqsReceiveController}, the batch size and long poll wait adapt to the queue, and the rest of a batch
+     * is buffered for the next pulls.
+     * 
+     * @throws QueueThrottledException if SQS throttled the receive, with a receive controller
      */
     @Override
     public Message pull(String queueUrl) {
         
-        ReceiveMessageResult result = sqsClient.receiveMessage(queueUrl);
+        ReceiveMessageRequest request = new ReceiveMessageRequest(queueUrl).withMessageAttributeNames(CONTENT_ENCODING)
+                .withAttributeNames(SENT_TIMESTAMP, FIRST_RECEIVE_TIMESTAMP, RECEIVE_COUNT);
+        
+        if (receiveController != null) {
+            return pull(receiveController.getReceiver(queueUrl), request);
+        }
+        
+        ReceiveMessageResult result = sqsClient.receiveMessage(request);
         
         List <com.amazonaws.services.sqs.model.Message> msgs = result.getMessages();
         
         // map amazon's sqs Message to this implementations Message and return.
         if(!msgs.isEmpty()) {
-            com.amazonaws.services.sqs.model.Message msg = msgs.get(0);
-            return new MessageBuilder().setBody(msg.getBody()).setReceiptHandle(msg.getReceiptHandle()).build();
+            return toMessage(queueUrl, msgs.get(0));
         }
         
         return null;
     }
 
+    private Message pull(SqsReceiveController.Receiver receiver, ReceiveMessageRequest request) {
+        
+        Message buffered = receiver.pull();
+        if (buffered != null || receiver.isBackingOff()) {
+            return buffered;
+        }
+        
+        request.withMaxNumberOfMessages(receiver.getBatchSize()).withWaitTimeSeconds(receiver.getWaitSeconds());
+        
+        ReceiveMessageResult result;
+        try {
+            result = sqsClient.receiveMessage(request);
+        } catch (AmazonServiceException e) {
+            if (!THROTTLING_CODES.contains(e.getErrorCode())) {
+                throw e;
+            }
+            receiver.onThrottled();
+            throw new QueueThrottledException("SQS throttled receive from queue \"" + request.getQueueUrl() + "\".", e);
+        }
+        
+        List<Message> msgs = new ArrayList<Message>(result.getMessages().size());
+        for (com.amazonaws.services.sqs.model.Message msg : result.getMessages()) {
+            msgs.add(toMessage(request.getQueueUrl(), msg));
+        }
+        
+        return receiver.onReceive(msgs);
+    }
+
     /**
      * Delete based on Message returned by pull.
      */
@@ -85,8 +217,125 @@ public class SqsQueueService implements QueueService {
     public boolean delete(String queueUrl, Message handle) {
 
         sqsClient.deleteMessage(queueUrl, handle.getReceiptHandle());
+
+        getOrCreateMetrics(queueUrl).recordDelete(handle, clock.getCurrentTime());
         
         return true;
     }
+
+    /**
+     * SQS has no transaction across queues, so the message is pushed to the target first, and only deleted from the
+     * source once pushed. A delete which fails after the push leaves the message in both queues, to be delivered twice
+     * rather than lost.
+     */
+    @Override
+    public boolean transfer(String sourceUrl, Message message, String targetUrl, String newBody) {
+
+        push(targetUrl, (newBody != null) ? newBody : message.getBody());
+
+        return delete(sourceUrl, message);
+    }
+
+    /**
+     * SQS purges a queue asynchronously, taking up to 60 seconds, and allows a single purge per queue every 60 seconds.
+     */
+    @Override
+    public void purgeQueue(String queueUrl) {
+
+        sqsClient.purgeQueue(new PurgeQueueRequest(queueUrl));
+
+        // buffered messages were received before the purge, and no longer exist
+        if (receiveController != null) {
+            receiveController.clear(queueUrl);
+        }
+    }
+
+    /**
+     * SQS deletes a queue asynchronously, and a queue with the same name cannot be created for 60 seconds.
+     */
+    @Override
+    public void deleteQueue(String queueUrl) {
+
+        sqsClient.deleteQueue(queueUrl);
+        metrics.remove(queueUrl);
+
+        if (receiveController != null) {
+            receiveController.remove(queueUrl);
+        }
+    }
+
+    /**
+     * @return message age metrics of a queue, for the messages received and deleted through this service, or empty
+     *         metrics if none have been
+     */
+    @Override
+    public QueueMetrics getMetrics(String queueUrl) {
+
+        QueueMetrics queueMetrics = metrics.get(queueUrl);
+
+        return (queueMetrics != null) ? queueMetrics : new QueueMetrics();
+    }
+
+    /**
+     * The queue url is already resolved by SQS, so the handle passes it to every call.
+     */
+    @Override
+    public QueueHandle getQueueHandle(String queueUrl) {
+
+        return new UrlQueueHandle(this, queueUrl);
+    }
+    
+    /**
+     * Map amazon's sqs Message to this implementation's Message, recording its queue wait on its first receive.
+     */
+    private Message toMessage(String queueUrl, com.amazonaws.services.sqs.model.Message msg) {
+        
+        Message message = new MessageBuilder().setBody(getBody(msg)).setReceiptHandle(msg.getReceiptHandle())
+                .setSentTimestamp(getTimestamp(msg, SENT_TIMESTAMP))
+                .setFirstReceiveTimestamp(getTimestamp(msg, FIRST_RECEIVE_TIMESTAMP)).build();
+        
+        if ("1".equals(msg.getAttributes().get(RECEIVE_COUNT))) {
+            getOrCreateMetrics(queueUrl).recordFirstReceive(message, message.getFirstReceiveTimestamp());
+        }
+        
+        return message;
+    }
+
+    private QueueMetrics getOrCreateMetrics(String queueUrl) {
+
+        QueueMetrics queueMetrics = metrics.get(queueUrl);
+        if (queueMetrics == null) {
+            queueMetrics = new QueueMetrics();
+            QueueMetrics existing = metrics.putIfAbsent(queueUrl, queueMetrics);
+            if (existing != null) {
+                queueMetrics = existing;
+            }
+        }
+        return queueMetrics;
+    }
+    
+    /**
+     * Inflate the body of a message marked as compressed.
+     */
+    private String getBody(com.amazonaws.services.sqs.model.Message msg) {
+        
+        MessageAttributeValue encoding = msg.getMessageAttributes().get(CONTENT_ENCODING);
+        
+        if (encoding != null && DEFLATE.equals(encoding.getStringValue())) {
+            return new String(Compression.inflate(BaseEncoding.base64().decode(msg.getBody())), Charsets.UTF_8);
+        }
+        
+        return msg.getBody();
+    }
+
+    /**
+     * @return a system attribute of a message as a unix timestamp, or 0 if not returned
+     */
+    private long getTimestamp(com.amazonaws.services.sqs.model.Message msg, String attribute) {
+        
+        String value = msg.getAttributes().get(attribute);
+        
+        return (value == null) ? 0 : Long.parseLong(value);
+    }
  
 }
@@ -0,0 +1,318 @@
+package org.yoong.aws.impl;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.yoong.aws.Message;
+import org.yoong.aws.util.Clock;
+
+/**
+ * The SqsReceiveController adapts how an {@link SqsQueueService} receives messages from each queue, so that consumers
+ * make fewer requests for the same messages.
+ *
+ * <p>
+ * <h4>Batching</h4>
+ * A receive asks for up to the queue's batch size, and the messages beyond the first are buffered for the next pulls.
+ * <br/>
+ * The batch size doubles while receives come back full, up to {@link #MAX_BATCH_SIZE}, and otherwise follows the
+ * recent yield, a moving average of the messages per receive. <br/>
+ * Buffered messages are still invisible to other consumers, and their visibility timeout is running. Messages buffered
+ * for longer than the maximum buffered time are dropped, to be redelivered once their visibility timeout expires, and
+ * the batch size is halved.
+ * </p>
+ *
+ * <p>
+ * <h4>Empty Receives</h4>
+ * A receive that comes back empty doubles the long poll wait, up to {@link #MAX_WAIT_SECONDS}, and a receive with
+ * messages halves it. <br/>
+ * Once the wait is at its maximum, each further empty receive backs off exponentially, from {@link #MIN_BACKOFF} up
+ * to {@link #MAX_BACKOFF}. Pulls while backing off return null without a request.
+ * </p>
+ *
+ * <p>
+ * <h4>Throttling</h4>
+ * A receive throttled by SQS backs off exponentially in the same way, and raises the batch size to its maximum, so that
+ * fewer requests are needed once the queue is pulled again.
+ * </p>
+ *
+ * <p>
+ * <h4>Metrics</h4>
+ * Without the controller, every pull is a request. The requests saved per delivered message is the number of messages
+ * served from the buffer, each of which would otherwise have needed a request of its own, for each message delivered.
+ * Pulls returning null while backing off are not counted as saved, as they deliver nothing. <br/>
+ * Reading the metrics of a queue without receive state returns the initial values, without creating any.
+ * </p>
+ *
+ * <p>
+ * <h4>Purge and Delete Queue</h4>
+ * Purging a queue drops its buffered messages, and deleting a queue forgets its receive state altogether.
+ * </p>
+ */
+public class SqsReceiveController {
+
+    public static final int MAX_BATCH_SIZE = 10;
+    public static final int MAX_WAIT_SECONDS = 20;
+    public static final long MIN_BACKOFF = 100;
+    public static final long MAX_BACKOFF = TimeUnit.SECONDS.toMillis(20);
+
+    private static final int INITIAL_BATCH_SIZE = 1;
+    private static final double YIELD_WEIGHT = 0.25;
+
+    private final Clock clock;
+    private final long maxBufferedMillis;
+    private final ConcurrentHashMap<String, Receiver> receivers = new ConcurrentHashMap<String, Receiver>();
+
+    /**
+     * Class to hold the receive state and counters of a queue.
+     */
+    class Receiver {
+
+        private final ArrayDeque<Message> buffer = new ArrayDeque<Message>();
+        private long bufferedAt;
+
+        private int batchSize = INITIAL_BATCH_SIZE;
+        private int waitSeconds;
+        private double yield;
+        private int emptyStreak;
+        private int throttleStreak;
+        private long backoffUntil;
+
+        private long pulls;
+        private long requests;
+        private long delivered;
+        private long buffered;
+        private long throttled;
+        private long expired;
+
+        /**
+         * Count a pull, and take the next buffered message.
+         *
+         * @return the next buffered message, or null if a receive is needed
+         */
+        synchronized Message pull() {
+
+            pulls++;
+
+            if (!buffer.isEmpty() && clock.getCurrentTime() - bufferedAt > maxBufferedMillis) {
+                expired += buffer.size();
+                buffer.clear();
+                batchSize = Math.max(1, batchSize / 2);
+            }
+
+            Message msg = buffer.poll();
+            if (msg != null) {
+                delivered++;
+                buffered++;
+            }
+            return msg;
+        }
+
+        /**
+         * Drop the buffered messages, without counting them as expired.
+         */
+        synchronized void clear() {
+            buffer.clear();
+        }
+
+        synchronized boolean isBackingOff() {
+            return clock.getCurrentTime() < backoffUntil;
+        }
+
+        synchronized int getBatchSize() {
+            return batchSize;
+        }
+
+        synchronized int getWaitSeconds() {
+            return waitSeconds;
+        }
+
+        /**
+         * Adapt to the result of a receive, and buffer all but the first message.
+         *
+         * @return the first message received, or null if empty
+         */
+        synchronized Message onReceive(List<Message> msgs) {
+
+            requests++;
+            throttleStreak = 0;
+            yield += (msgs.size() - yield) * YIELD_WEIGHT;
+
+            if (msgs.isEmpty()) {
+                if (waitSeconds < MAX_WAIT_SECONDS) {
+                    waitSeconds = Math.min(MAX_WAIT_SECONDS, Math.max(1, waitSeconds * 2));
+                } else {
+                    backoffUntil = clock.getCurrentTime() + backoff(emptyStreak++);
+                }
+                return null;
+            }
+
+            emptyStreak = 0;
+            waitSeconds /= 2;
+            batchSize = (msgs.size() >= batchSize) ? Math.min(MAX_BATCH_SIZE, batchSize * 2)
+                    : Math.max(1, (int) Math.ceil(yield));
+
+            delivered++;
+            bufferedAt = clock.getCurrentTime();
+            buffer.addAll(msgs.subList(1, msgs.size()));
+
+            return msgs.get(0);
+        }
+
+        synchronized void onThrottled() {
+            requests++;
+            throttled++;
+            batchSize = MAX_BATCH_SIZE;
+            backoffUntil = clock.getCurrentTime() + backoff(throttleStreak++);
+        }
+
+        private long backoff(int streak) {
+            return Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(streak, 20));
+        }
+    }
+
+    /**
+     * @param maxBufferedMillis - time after which buffered messages are dropped, which should be well within the
+     *            visibility timeout of the queues
+     */
+    public SqsReceiveController(Clock clock, long maxBufferedMillis) {
+        this.clock = clock;
+        this.maxBufferedMillis = maxBufferedMillis;
+    }
+
+    Receiver getReceiver(String queueUrl) {
+
+        Receiver receiver = receivers.get(queueUrl);
+
+        if (receiver == null) {
+            receiver = new Receiver();
+            Receiver existing = receivers.putIfAbsent(queueUrl, receiver);
+            if (existing != null) {
+                receiver = existing;
+            }
+        }
+
+        return receiver;
+    }
+
+    /**
+     * Drop the messages buffered for a queue that has been purged, keeping its receive state and counters.
+     */
+    void clear(String queueUrl) {
+
+        Receiver receiver = receivers.get(queueUrl);
+        if (receiver != null) {
+            receiver.clear();
+        }
+    }
+
+    /**
+     * Forget a queue that has been deleted, along with its buffered messages.
+     */
+    void remove(String queueUrl) {
+
+        Receiver receiver = receivers.remove(queueUrl);
+        if (receiver != null) {
+            receiver.clear();
+        }
+    }
+
+    /**
+     * @return urls of the queues with receive state, ie pulled through the controller and not deleted since
+     */
+    public Set<String> getQueueUrls() {
+        return Collections.unmodifiableSet(receivers.keySet());
+    }
+
+    public int getBatchSize(String queueUrl) {
+        Receiver receiver = receivers.get(queueUrl);
+        return (receiver != null) ? receiver.getBatchSize() : INITIAL_BATCH_SIZE;
+    }
+
+    public int getWaitSeconds(String queueUrl) {
+        Receiver receiver = receivers.get(queueUrl);
+        return (receiver != null) ? receiver.getWaitSeconds() : 0;
+    }
+
+    /**
+     * @return number of pulls from a queue
+     */
+    public long getPulls(String queueUrl) {
+        Receiver receiver = receivers.get(queueUrl);
+        if (receiver == null) {
+            return 0;
+        }
+        synchronized (receiver) {
+            return receiver.pulls;
+        }
+    }
+
+    /**
+     * @return number of receive requests sent to a queue, including throttled ones
+     */
+    public long getRequests(String queueUrl) {
+        Receiver receiver = receivers.get(queueUrl);
+        if (receiver == null) {
+            return 0;
+        }
+        synchronized (receiver) {
+            return receiver.requests;
+        }
+    }
+
+    /**
+     * @return number of messages pulled from a queue
+     */
+    public long getDelivered(String queueUrl) {
+        Receiver receiver = receivers.get(queueUrl);
+        if (receiver == null) {
+            return 0;
+        }
+        synchronized (receiver) {
+            return receiver.delivered;
+        }
+    }
+
+    /**
+     * @return number of receive requests to a queue throttled by SQS
+     */
+    public long getThrottled(String queueUrl) {
+        Receiver receiver = receivers.get(queueUrl);
+        if (receiver == null) {
+            return 0;
+        }
+        synchronized (receiver) {
+            return receiver.throttled;
+        }
+    }
+
+    /**
+     * @return number of buffered messages dropped for being buffered too long
+     */
+    public long getExpired(String queueUrl) {
+        Receiver receiver = receivers.get(queueUrl);
+        if (receiver == null) {
+            return 0;
+        }
+        synchronized (receiver) {
+            return receiver.expired;
+        }
+    }
+
+    /**
+     * @return messages served from the buffer without a request, for each message delivered, or 0 if none were
+     *         delivered
+     */
+    public double getRequestsSavedPerMessage(String queueUrl) {
+        Receiver receiver = receivers.get(queueUrl);
+        if (receiver == null) {
+            return 0;
+        }
+        synchronized (receiver) {
+            return (receiver.delivered == 0) ? 0 : (double) receiver.buffered / receiver.delivered;
+        }
+    }
+}
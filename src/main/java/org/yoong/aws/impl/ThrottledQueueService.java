@@ -0,0 +1,201 @@
+package org.yoong.aws.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.yoong.aws.Message;
+import org.yoong.aws.QueueHandle;
+import org.yoong.aws.QueueService;
+import org.yoong.aws.exceptions.QueueThrottledException;
+import org.yoong.aws.util.Clock;
+import org.yoong.aws.util.TokenBucket;
+
+/**
+ * The ThrottledQueueService wraps any QueueService, and limits the rate of pushes and pulls of each queue, so that
+ * one busy tenant cannot starve the other queues of a shared service.
+ *
+ * <p>
+ * <h4>Limits</h4>
+ * Each queue may be given a push limit and a pull limit, enforced by a {@link TokenBucket}. <br/>
+ * A call over its queue's limit fails straight away with a {@link QueueThrottledException}, rather than waiting,
+ * so that callers can back off the same way as when SQS throttles them. <br/>
+ * A transfer counts as a push to its target queue. Deletes are never throttled, so that messages already pulled can
+ * always be acknowledged.
+ * </p>
+ *
+ * <p>
+ * <h4>Metrics</h4>
+ * The number of admitted and throttled pushes and pulls are counted for each queue with limits. <br/>
+ * Queues without limits only pay for a map lookup.
+ * </p>
+ */
+public class ThrottledQueueService implements QueueService {
+
+    private final QueueService service;
+    private final Clock clock;
+    private final ConcurrentHashMap<String, Throttle> throttles = new ConcurrentHashMap<String, Throttle>();
+
+    /**
+     * Class to hold the limits and counters of a queue.
+     */
+    private static class Throttle {
+
+        volatile TokenBucket push;
+        volatile TokenBucket pull;
+
+        final AtomicLong admittedPushes = new AtomicLong();
+        final AtomicLong throttledPushes = new AtomicLong();
+        final AtomicLong admittedPulls = new AtomicLong();
+        final AtomicLong throttledPulls = new AtomicLong();
+    }
+
+    public ThrottledQueueService(QueueService service, Clock clock) {
+        this.service = service;
+        this.clock = clock;
+    }
+
+    /**
+     * Limit the rate of pushes to a queue.
+     *
+     * @param permitsPerSecond - sustained rate of pushes
+     * @param burst - number of pushes admitted at once after a quiet period
+     */
+    public void setPushLimit(String queueUrl, double permitsPerSecond, int burst) {
+        getThrottle(queueUrl).push = new TokenBucket(permitsPerSecond, burst, clock);
+    }
+
+    /**
+     * Limit the rate of pulls from a queue.
+     *
+     * @param permitsPerSecond - sustained rate of pulls
+     * @param burst - number of pulls admitted at once after a quiet period
+     */
+    public void setPullLimit(String queueUrl, double permitsPerSecond, int burst) {
+        getThrottle(queueUrl).pull = new TokenBucket(permitsPerSecond, burst, clock);
+    }
+
+    /**
+     * Remove the push and pull limits of a queue, along with its counters.
+     */
+    public void removeLimits(String queueUrl) {
+        throttles.remove(queueUrl);
+    }
+
+    @Override
+    public String createQueue(String queueName, long visibilityTimeout, TimeUnit unit) {
+        return service.createQueue(queueName, visibilityTimeout, unit);
+    }
+
+    @Override
+    public void push(String queueUrl, String message) {
+        admitPush(queueUrl);
+        service.push(queueUrl, message);
+    }
+
+    @Override
+    public Message pull(String queueUrl) {
+
+        Throttle throttle = throttles.get(queueUrl);
+
+        if (throttle != null && throttle.pull != null) {
+            if (!throttle.pull.tryAcquire()) {
+                throttle.throttledPulls.incrementAndGet();
+                throw new QueueThrottledException("Pull rate limit of queue \"" + queueUrl + "\" exceeded.");
+            }
+            throttle.admittedPulls.incrementAndGet();
+        }
+
+        return service.pull(queueUrl);
+    }
+
+    @Override
+    public boolean delete(String queueUrl, Message handle) {
+        return service.delete(queueUrl, handle);
+    }
+
+    @Override
+    public boolean transfer(String sourceUrl, Message handle, String targetUrl, String newBody) {
+        admitPush(targetUrl);
+        return service.transfer(sourceUrl, handle, targetUrl, newBody);
+    }
+
+    @Override
+    public void purgeQueue(String queueUrl) {
+        service.purgeQueue(queueUrl);
+    }
+
+    @Override
+    public void deleteQueue(String queueUrl) {
+        service.deleteQueue(queueUrl);
+    }
+
+    /**
+     * The handle goes through this service, so that its calls are throttled too.
+     */
+    @Override
+    public QueueHandle getQueueHandle(String queueUrl) {
+        service.getQueueHandle(queueUrl);
+        return new UrlQueueHandle(this, queueUrl);
+    }
+
+    /**
+     * @return number of pushes to a queue admitted under its limit
+     */
+    public long getAdmittedPushes(String queueUrl) {
+        Throttle throttle = throttles.get(queueUrl);
+        return (throttle == null) ? 0 : throttle.admittedPushes.get();
+    }
+
+    /**
+     * @return number of pushes to a queue rejected by its limit
+     */
+    public long getThrottledPushes(String queueUrl) {
+        Throttle throttle = throttles.get(queueUrl);
+        return (throttle == null) ? 0 : throttle.throttledPushes.get();
+    }
+
+    /**
+     * @return number of pulls from a queue admitted under its limit
+     */
+    public long getAdmittedPulls(String queueUrl) {
+        Throttle throttle = throttles.get(queueUrl);
+        return (throttle == null) ? 0 : throttle.admittedPulls.get();
+    }
+
+    /**
+     * @return number of pulls from a queue rejected by its limit
+     */
+    public long getThrottledPulls(String queueUrl) {
+        Throttle throttle = throttles.get(queueUrl);
+        return (throttle == null) ? 0 : throttle.throttledPulls.get();
+    }
+
+    private void admitPush(String queueUrl) {
+
+        Throttle throttle = throttles.get(queueUrl);
+
+        if (throttle != null && throttle.push != null) {
+            if (!throttle.push.tryAcquire()) {
+                throttle.throttledPushes.incrementAndGet();
+                throw new QueueThrottledException("Push rate limit of queue \"" + queueUrl + "\" exceeded.");
+            }
+            throttle.admittedPushes.incrementAndGet();
+        }
+    }
+
+    private Throttle getThrottle(String queueUrl) {
+
+        Throttle throttle = throttles.get(queueUrl);
+
+        if (throttle == null) {
+            throttle = new Throttle();
+            Throttle existing = throttles.putIfAbsent(queueUrl, throttle);
+            if (existing != null) {
+                throttle = existing;
+            }
+        }
+
+        return throttle;
+    }
+}
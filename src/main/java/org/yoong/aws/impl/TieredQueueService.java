@@ -0,0 +1,360 @@
+package org.yoong.aws.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.rmi.server.UID;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.yoong.aws.Message;
+import org.yoong.aws.QueueHandle;
+import org.yoong.aws.QueueService;
+import org.yoong.aws.Message.MessageBuilder;
+import org.yoong.aws.exceptions.NoSuchQueueException;
+import org.yoong.aws.metrics.QueueMetrics;
+import org.yoong.aws.metrics.QueueMetricsSource;
+import org.yoong.aws.util.Clock;
+
+/**
+ * The TieredQueueService serves the head of each queue from memory, like the InMemoryQueueService, and spills the
+ * rest of the queue to disk when the memory tier is full.
+ *
+ * <p>
+ * <h4>Push</h4>
+ * Messages are added to the in-memory primary, until it holds the configured number of messages or bytes. <br/>
+ * Beyond that, messages are appended to a spill log - the primary file of a {@link FileQueueService} queue in the
+ * spill directory. <br/>
+ * While the spill log is not empty, every push goes to the spill log, so that FIFO order is kept across both tiers.
+ * </p>
+ *
+ * <p>
+ * <h4>Pull</h4>
+ * Pulling works the same as in the InMemoryQueueService. <br/>
+ * Once the in-memory primary drains below half of its message limit, the next batch of spilled messages is read back
+ * from the head of the spill log, with a single file rewrite. <br/>
+ * The secondary (pulled messages) is always kept in memory.
+ * </p>
+ *
+ * <p>
+ * <h4>Timestamps</h4>
+ * Messages are stamped when pushed and when first pulled, and spilled messages keep the sent timestamp of their
+ * original push. <br/>
+ * Each queue keeps {@link QueueMetrics} of how long its messages wait to be pulled and how long they are processed,
+ * across both tiers.
+ * </p>
+ *
+ * <p>
+ * <h4>Limits</h4>
+ * The message limit bounds both pushes and refills. The byte limit, estimated from the length of message bodies, only
+ * bounds pushes, so a refill can overshoot it by at most one batch.
+ * </p>
+ *
+ * <p>
+ * <h4>Purge and Delete Queue</h4>
+ * The in-memory tier of a queue is held in a single storage object, swapped for empty storage when the queue is
+ * purged. The spill log is purged or deleted along with it, without being read.
+ * </p>
+ *
+ * <p>
+ * <h4>Synchronization</h4>
+ * Each queue has a lock, held while choosing a tier for a push and while refilling from the spill log. <br/>
+ * Pulls only take it when the spill log may hold messages, so a queue that never spills is not locked by pulls. <br/>
+ * The secondary is synchronized the same way as in the InMemoryQueueService.
+ * </p>
+ *
+ * @see InMemoryQueueService
+ * @see FileQueueService
+ */
+public class TieredQueueService implements QueueService, QueueMetricsSource, Closeable {
+
+    private ConcurrentHashMap<String, TieredQueue> queues = new ConcurrentHashMap<String, TieredQueue>();
+    private final FileQueueService spill;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final Clock clock;
+
+    /**
+     * Class to hold required objects within a tiered queue.
+     */
+    private class TieredQueue {
+
+        final String name;
+        volatile Storage storage = new Storage();
+        final long visibilityTimeout;
+        final QueueMetrics metrics = new QueueMetrics();
+
+        // whether the spill log may contain messages, only written while holding the queue's lock
+        volatile boolean spilled;
+
+        public TieredQueue(String name, long visibilityTimeout) {
+            this.name = name;
+            this.visibilityTimeout = visibilityTimeout;
+        }
+    }
+
+    /**
+     * Class to hold the in-memory tier of a queue, swapped as a whole when the queue is purged.
+     */
+    private static class Storage {
+
+        final Queue<Message> primary = new ConcurrentLinkedQueue<Message>();
+        final Queue<Message> secondary = new ConcurrentLinkedQueue<Message>();
+
+        // number of messages and estimated bytes held by the in-memory primary
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+    }
+
+    /**
+     * @param spillDirectory - home directory of the spill logs
+     * @param maxMessages - maximum number of messages held in memory, per queue
+     * @param maxBytes - maximum number of bytes of message bodies held in memory, per queue
+     */
+    public TieredQueueService(File spillDirectory, int maxMessages, long maxBytes, Clock clock) {
+        this.spill = new FileQueueService(spillDirectory, clock);
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.clock = clock;
+    }
+
+    /**
+     * Close the spill logs' FileQueueService, releasing its lock on the spill directory.
+     */
+    @Override
+    public void close() {
+        spill.close();
+    }
+
+    @Override
+    public String createQueue(String queueName, long visibilityTimeout, TimeUnit unit) {
+
+        TieredQueue queue = queues.get(queueName);
+
+        if (queue == null) {
+            spill.createQueue(queueName, 0, TimeUnit.MILLISECONDS);
+
+            queue = new TieredQueue(queueName, unit.toMillis(visibilityTimeout));
+            if (queues.putIfAbsent(queue.name, queue) == null) {
+                // pick up messages spilled by a previous instance
+                synchronized (queue) {
+                    queue.spilled = true;
+                    refill(queue);
+                }
+            }
+        }
+
+        return queueName;
+    }
+
+    @Override
+    public void push(String queueName, String message) {
+        push(getQueue(queueName), message);
+    }
+
+    @Override
+    public Message pull(String queueName) {
+
+        TieredQueue queue = getQueue(queueName);
+        Storage storage = queue.storage;
+
+        synchronized (storage.secondary) {
+
+            Message secMsg = storage.secondary.peek();
+
+            // peek secondary queue to check if invisibility has timed out
+            if (secMsg != null && !secMsg.isInvisible(clock)) {
+                // set the visibility timeout and move msg to the tail of the secondary queue
+                secMsg.startInvisible(queue.visibilityTimeout, clock);
+                storage.secondary.remove(secMsg);
+                storage.secondary.add(secMsg);
+                return secMsg;
+            }
+        }
+
+        // read the next batch back from the spill log, once the in-memory head has drained
+        // the lock is only taken when something has been spilled, and refill checks again while holding it
+        if (queue.spilled && storage.count.get() < (maxMessages + 1) / 2) {
+            synchronized (queue) {
+                refill(queue);
+            }
+        }
+
+        Message priMsg = storage.primary.poll();
+
+        if (priMsg != null) {
+            storage.count.decrementAndGet();
+            storage.bytes.addAndGet(-sizeOf(priMsg.getBody()));
+
+            // generate the receipt handle, set the visibility timeout and move msg from primary to secondary queue.
+            priMsg.setReceiptHandle(new UID().toString());
+            priMsg.startInvisible(queue.visibilityTimeout, clock);
+            priMsg.markFirstReceive(clock);
+            storage.secondary.add(priMsg);
+
+            queue.metrics.recordFirstReceive(priMsg, priMsg.getFirstReceiveTimestamp());
+        }
+
+        return priMsg;
+    }
+
+    @Override
+    public boolean delete(String queueName, Message message) {
+
+        TieredQueue queue = getQueue(queueName);
+
+        if (message.getReceiptHandle() == null) {
+            return false;
+        }
+
+        Storage storage = queue.storage;
+
+        synchronized (storage.secondary) {
+            for (Message record : storage.secondary) {
+                if (message.getReceiptHandle().equals(record.getReceiptHandle())) {
+                    queue.metrics.recordDelete(record, clock.getCurrentTime());
+                    return storage.secondary.remove(record);
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * The message is pushed to the target while holding the lock of the source secondary, and only removed from the
+     * source once pushed. No other pull or delete of the source can interleave, and a push which fails, eg appending
+     * to the spill log, leaves the message in the source.
+     */
+    @Override
+    public boolean transfer(String sourceName, Message message, String targetName, String newBody) {
+
+        TieredQueue source = getQueue(sourceName);
+        TieredQueue target = getQueue(targetName);
+
+        if (message.getReceiptHandle() == null) {
+            return false;
+        }
+
+        Storage storage = source.storage;
+
+        synchronized (storage.secondary) {
+            for (Message record : storage.secondary) {
+                if (message.getReceiptHandle().equals(record.getReceiptHandle())) {
+                    push(target, (newBody != null) ? newBody : record.getBody());
+                    storage.secondary.remove(record);
+                    source.metrics.recordDelete(record, clock.getCurrentTime());
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public void purgeQueue(String queueName) {
+
+        TieredQueue queue = getQueue(queueName);
+
+        synchronized (queue) {
+            queue.storage = new Storage();
+            spill.purgeQueue(queue.name);
+            queue.spilled = false;
+        }
+    }
+
+    @Override
+    public void deleteQueue(String queueName) {
+
+        TieredQueue queue = getQueue(queueName);
+
+        synchronized (queue) {
+            queues.remove(queueName, queue);
+            queue.storage = new Storage();
+            spill.deleteQueue(queue.name);
+            queue.spilled = false;
+        }
+    }
+
+    @Override
+    public QueueHandle getQueueHandle(String queueName) {
+        getQueue(queueName);
+        return new UrlQueueHandle(this, queueName);
+    }
+
+    /**
+     * @return message age metrics of a queue, since it was created
+     */
+    @Override
+    public QueueMetrics getMetrics(String queueName) {
+        return getQueue(queueName).metrics;
+    }
+
+    private void push(TieredQueue queue, String message) {
+
+        long size = sizeOf(message);
+
+        synchronized (queue) {
+            Storage storage = queue.storage;
+            if (!queue.spilled && storage.count.get() < maxMessages && storage.bytes.get() + size <= maxBytes) {
+                // push message to tail of in-memory primary
+                storage.count.incrementAndGet();
+                storage.bytes.addAndGet(size);
+                storage.primary.add(new MessageBuilder().setBody(message)
+                        .setSentTimestamp(clock.getCurrentTime()).build());
+            } else {
+                // otherwise, append it to the spill log
+                spill.push(queue.name, message);
+                queue.spilled = true;
+            }
+        }
+    }
+
+    /**
+     * Move the next batch of messages from the spill log to the in-memory primary. Must hold the queue's lock.
+     */
+    private void refill(TieredQueue queue) {
+
+        Storage storage = queue.storage;
+        int room = maxMessages - storage.count.get();
+
+        if (!queue.spilled || room <= 0) {
+            return;
+        }
+
+        List<Message> batch = spill.pollPrimary(queue.name, room);
+
+        // spilled messages keep the timestamp of their original push
+        for (Message msg : batch) {
+            storage.count.incrementAndGet();
+            storage.bytes.addAndGet(sizeOf(msg.getBody()));
+            storage.primary.add(msg);
+        }
+
+        // a short batch means the spill log has been drained
+        if (batch.size() < room) {
+            queue.spilled = false;
+        }
+    }
+
+    /**
+     * Estimate the bytes held in memory by a message body.
+     */
+    private static long sizeOf(String body) {
+        return 2L * body.length();
+    }
+
+    private TieredQueue getQueue(String queueName) {
+
+        TieredQueue queue = queues.get(queueName);
+        if (queue == null) {
+            throw new NoSuchQueueException("Queue named \"" + queueName + "\" does not exist.");
+        }
+        return queue;
+    }
+}
@@ -0,0 +1,40 @@
+package org.yoong.aws.impl;
+
+import org.yoong.aws.Message;
+import org.yoong.aws.QueueHandle;
+import org.yoong.aws.QueueService;
+
+/**
+ * QueueHandle which simply passes its queue url to every call of a QueueService. <br/>
+ * Used by services which have nothing to gain from resolving a queue up front, eg when every call is a remote request.
+ */
+public class UrlQueueHandle implements QueueHandle {
+
+    private final QueueService service;
+    private final String queueUrl;
+
+    public UrlQueueHandle(QueueService service, String queueUrl) {
+        this.service = service;
+        this.queueUrl = queueUrl;
+    }
+
+    @Override
+    public String getQueueUrl() {
+        return queueUrl;
+    }
+
+    @Override
+    public void push(String message) {
+        service.push(queueUrl, message);
+    }
+
+    @Override
+    public Message pull() {
+        return service.pull(queueUrl);
+    }
+
+    @Override
+    public boolean delete(Message handle) {
+        return service.delete(queueUrl, handle);
+    }
+}
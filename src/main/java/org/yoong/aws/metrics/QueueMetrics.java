@@ -0,0 +1,85 @@
+package org.yoong.aws.metrics;
+
+import org.yoong.aws.Message;
+
+/**
+ * Message age metrics of a queue, in milliseconds, from the sent and first receive timestamps of its messages.
+ *
+ * <p>
+ * <li>queue wait - from being pushed to being pulled for the first time</li>
+ * <li>processing time - from being pulled for the first time to being deleted, including any redeliveries</li>
+ * <li>end to end - from being pushed to being deleted</li>
+ * Messages without timestamps, eg pushed by an older version, are left out.
+ * </p>
+ */
+public class QueueMetrics {
+
+    private final Histogram queueWait = new Histogram();
+    private final Histogram processingTime = new Histogram();
+    private final Histogram endToEnd = new Histogram();
+
+    /**
+     * Record a message pulled for the first time.
+     *
+     * @param now - time of the pull, from the service's clock
+     */
+    public void recordFirstReceive(Message msg, long now) {
+        recordFirstReceive(msg.getSentTimestamp(), now);
+    }
+
+    /**
+     * Record a message pulled for the first time, from its sent timestamp, eg when the message is kept off the heap.
+     */
+    public void recordFirstReceive(long sentTimestamp, long now) {
+        if (sentTimestamp > 0) {
+            queueWait.record(now - sentTimestamp);
+        }
+    }
+
+    /**
+     * Record a message deleted after being processed.
+     *
+     * @param now - time of the delete, from the service's clock
+     */
+    public void recordDelete(Message msg, long now) {
+        recordDelete(msg.getSentTimestamp(), msg.getFirstReceiveTimestamp(), now);
+    }
+
+    /**
+     * Record a message deleted after being processed, from its timestamps.
+     */
+    public void recordDelete(long sentTimestamp, long firstReceiveTimestamp, long now) {
+        if (firstReceiveTimestamp > 0) {
+            processingTime.record(now - firstReceiveTimestamp);
+        }
+        if (sentTimestamp > 0) {
+            endToEnd.record(now - sentTimestamp);
+        }
+    }
+
+    /**
+     * Add the values recorded by the metrics of another queue, eg to sum the partitions of a queue.
+     */
+    public void add(QueueMetrics other) {
+        queueWait.add(other.queueWait);
+        processingTime.add(other.processingTime);
+        endToEnd.add(other.endToEnd);
+    }
+
+    public Histogram getQueueWait() {
+        return queueWait;
+    }
+
+    public Histogram getProcessingTime() {
+        return processingTime;
+    }
+
+    public Histogram getEndToEnd() {
+        return endToEnd;
+    }
+
+    @Override
+    public String toString() {
+        return "queueWait[" + queueWait + "] processingTime[" + processingTime + "] endToEnd[" + endToEnd + "]";
+    }
+}
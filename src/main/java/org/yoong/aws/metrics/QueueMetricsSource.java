@@ -0,0 +1,12 @@
+package org.yoong.aws.metrics;
+
+/**
+ * A queue service which keeps {@link QueueMetrics} for its queues.
+ */
+public interface QueueMetricsSource {
+
+    /**
+     * @return message age metrics of a queue
+     */
+    QueueMetrics getMetrics(String queueUrl);
+}
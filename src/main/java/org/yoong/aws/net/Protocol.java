@@ -0,0 +1,191 @@
+package org.yoong.aws.net;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.yoong.aws.Message;
+import org.yoong.aws.Message.MessageBuilder;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Binary protocol spoken between the {@link QueueServer} and {@link QueueClient}.
+ *
+ * <p>
+ * <h4>Frames</h4>
+ * Every request and response is a frame, prefixed by its length : <br/>
+ * <li>request - <code>[int length][int requestId][byte operation][arguments]</code></li>
+ * <li>response - <code>[int length][int requestId][byte status][result]</code></li>
+ * Responses carry the id of their request, so a client can pipeline many requests on one connection.
+ * </p>
+ *
+ * <p>
+ * <h4>Encoding</h4>
+ * Integers are big-endian. Strings are encoded as <code>[int length][UTF-8 bytes]</code>, with a length of -1 for
+ * <code>null</code>. Messages are encoded as
+ * <code>[body][receiptHandle][long invisibleTimeoutTime][long sentTimestamp][long firstReceiveTimestamp]</code>.
+ * </p>
+ */
+final class Protocol {
+
+    // operations
+    static final byte CREATE = 1;
+    static final byte PUSH = 2;
+    static final byte PULL = 3;
+    static final byte DELETE = 4;
+    static final byte PUSH_BATCH = 5;
+    static final byte PULL_BATCH = 6;
+    static final byte PURGE = 7;
+    static final byte DELETE_QUEUE = 8;
+    static final byte TRANSFER = 9;
+
+    // response status
+    static final byte OK = 0;
+    static final byte NO_SUCH_QUEUE = 1;
+    static final byte ERROR = 2;
+
+    static final int MAX_FRAME_SIZE = 16 << 20;
+
+    private Protocol() {
+    }
+
+    /**
+     * Growable buffer to encode one or more frames into.
+     */
+    static class FrameBuffer {
+
+        private ByteBuffer buffer;
+        private int start;
+
+        FrameBuffer(int capacity) {
+            buffer = ByteBuffer.allocate(capacity);
+        }
+
+        FrameBuffer begin(int requestId, byte code) {
+            ensure(9);
+            start = buffer.position();
+            buffer.putInt(0).putInt(requestId).put(code);
+            return this;
+        }
+
+        void end() {
+            buffer.putInt(start, buffer.position() - start - 4);
+        }
+
+        FrameBuffer putByte(byte value) {
+            ensure(1);
+            buffer.put(value);
+            return this;
+        }
+
+        FrameBuffer putInt(int value) {
+            ensure(4);
+            buffer.putInt(value);
+            return this;
+        }
+
+        FrameBuffer putLong(long value) {
+            ensure(8);
+            buffer.putLong(value);
+            return this;
+        }
+
+        FrameBuffer putString(String value) {
+            if (value == null) {
+                return putInt(-1);
+            }
+            byte[] bytes = value.getBytes(Charsets.UTF_8);
+            ensure(4 + bytes.length);
+            buffer.putInt(bytes.length).put(bytes);
+            return this;
+        }
+
+        FrameBuffer putMessage(Message msg) {
+            return putString(msg.getBody()).putString(msg.getReceiptHandle()).putLong(msg.getInvisibleTimeoutTime())
+                    .putLong(msg.getSentTimestamp()).putLong(msg.getFirstReceiveTimestamp());
+        }
+
+        FrameBuffer putMessages(List<Message> msgs) {
+            putInt(msgs.size());
+            for (Message msg : msgs) {
+                putMessage(msg);
+            }
+            return this;
+        }
+
+        boolean isEmpty() {
+            return buffer.position() == 0;
+        }
+
+        ByteBuffer flip() {
+            buffer.flip();
+            return buffer;
+        }
+
+        private void ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, Charsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    static Message readMessage(ByteBuffer in) {
+        String body = readString(in);
+        String receiptHandle = readString(in);
+        return new MessageBuilder().setBody(body).setReceiptHandle(receiptHandle)
+                .setInvisibleTimeoutTime(in.getLong()).setSentTimestamp(in.getLong())
+                .setFirstReceiveTimestamp(in.getLong()).build();
+    }
+
+    /**
+     * Slice the next complete frame (without its length) from a buffer in read mode.
+     *
+     * @return the frame, or null if the buffer does not hold a complete frame yet
+     * @throws IllegalStateException if the frame is larger than {@link #MAX_FRAME_SIZE}
+     */
+    static ByteBuffer nextFrame(ByteBuffer in) {
+        if (in.remaining() < 4) {
+            return null;
+        }
+        int length = in.getInt(in.position());
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IllegalStateException("Invalid frame length " + length);
+        }
+        if (in.remaining() < 4 + length) {
+            return null;
+        }
+        byte[] frame = new byte[length];
+        in.position(in.position() + 4);
+        in.get(frame);
+        return ByteBuffer.wrap(frame);
+    }
+
+    /**
+     * Make room in a buffer in write mode for the next frame, growing it if the frame is larger than the buffer.
+     */
+    static ByteBuffer ensureRoom(ByteBuffer in) {
+        if (in.position() >= 4 && in.remaining() == 0) {
+            int length = in.getInt(0);
+            if (length >= 0 && length <= MAX_FRAME_SIZE && length + 4 > in.capacity()) {
+                ByteBuffer grown = ByteBuffer.allocate(length + 4);
+                in.flip();
+                grown.put(in);
+                return grown;
+            }
+        }
+        return in;
+    }
+}
@@ -0,0 +1,320 @@
+package org.yoong.aws.net;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.yoong.aws.Message;
+import org.yoong.aws.QueueHandle;
+import org.yoong.aws.QueueService;
+import org.yoong.aws.exceptions.NoSuchQueueException;
+import org.yoong.aws.exceptions.RemoteQueueException;
+import org.yoong.aws.impl.UrlQueueHandle;
+import org.yoong.aws.net.Protocol.FrameBuffer;
+
+/**
+ * Client of a {@link QueueServer}, implementing the QueueService interface over a single connection.
+ *
+ * <p>
+ * <h4>Pipelining</h4>
+ * The client is thread safe, and every calling thread sends its request without waiting for other threads' responses.
+ * <br/>
+ * A reader thread receives the responses, and hands each one to the caller waiting for it by request id.
+ * </p>
+ *
+ * <p>
+ * <h4>Batching</h4>
+ * Requests are queued, and the thread that holds the write lock sends every queued request in a single gathering
+ * write. Under load, many requests share one system call. <br/>
+ * {@link #pushBatch} and {@link #pullBatch} also send several messages in a single request.
+ * </p>
+ */
+public class QueueClient implements QueueService, Closeable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, Call> calls = new ConcurrentHashMap<Integer, Call>();
+
+    private final Queue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final Thread reader;
+    private volatile IOException failure;
+
+    /**
+     * Class to hold a request waiting for its response.
+     */
+    private static class Call {
+
+        final CountDownLatch done = new CountDownLatch(1);
+        byte status;
+        ByteBuffer result;
+        IOException failure;
+
+        void complete(byte status, ByteBuffer result) {
+            this.status = status;
+            this.result = result;
+            done.countDown();
+        }
+
+        void fail(IOException failure) {
+            this.failure = failure;
+            done.countDown();
+        }
+    }
+
+    public QueueClient(InetSocketAddress address) {
+        try {
+            channel = SocketChannel.open(address);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            throw new RemoteQueueException("Failed to connect to QueueServer at " + address, e);
+        }
+
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, "queue-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public String createQueue(String queueName, long visibilityTimeout, TimeUnit unit) {
+        int id = nextRequestId.incrementAndGet();
+        FrameBuffer request = new FrameBuffer(64).begin(id, Protocol.CREATE)
+                .putString(queueName).putLong(unit.toMillis(visibilityTimeout));
+        return Protocol.readString(call(id, request));
+    }
+
+    @Override
+    public void push(String queueUrl, String message) {
+        int id = nextRequestId.incrementAndGet();
+        FrameBuffer request = new FrameBuffer(64).begin(id, Protocol.PUSH).putString(queueUrl).putString(message);
+        call(id, request);
+    }
+
+    @Override
+    public Message pull(String queueUrl) {
+        int id = nextRequestId.incrementAndGet();
+        FrameBuffer request = new FrameBuffer(64).begin(id, Protocol.PULL).putString(queueUrl);
+        ByteBuffer result = call(id, request);
+        return (result.get() == 0) ? null : Protocol.readMessage(result);
+    }
+
+    @Override
+    public boolean delete(String queueUrl, Message handle) {
+        int id = nextRequestId.incrementAndGet();
+        FrameBuffer request = new FrameBuffer(64).begin(id, Protocol.DELETE)
+                .putString(queueUrl).putString(handle.getReceiptHandle());
+        return call(id, request).get() != 0;
+    }
+
+    /**
+     * The transfer is executed by the server's QueueService, and is as atomic as that service makes it. <br/>
+     * The body of the pulled message is sent along when no new body is given, as only its receipt handle reaches the
+     * service.
+     */
+    @Override
+    public boolean transfer(String sourceUrl, Message handle, String targetUrl, String newBody) {
+        int id = nextRequestId.incrementAndGet();
+        FrameBuffer request = new FrameBuffer(64).begin(id, Protocol.TRANSFER)
+                .putString(sourceUrl).putString(handle.getReceiptHandle()).putString(targetUrl)
+                .putString((newBody != null) ? newBody : handle.getBody());
+        return call(id, request).get() != 0;
+    }
+
+    @Override
+    public void purgeQueue(String queueUrl) {
+        int id = nextRequestId.incrementAndGet();
+        call(id, new FrameBuffer(64).begin(id, Protocol.PURGE).putString(queueUrl));
+    }
+
+    @Override
+    public void deleteQueue(String queueUrl) {
+        int id = nextRequestId.incrementAndGet();
+        call(id, new FrameBuffer(64).begin(id, Protocol.DELETE_QUEUE).putString(queueUrl));
+    }
+
+    @Override
+    public QueueHandle getQueueHandle(String queueUrl) {
+        return new UrlQueueHandle(this, queueUrl);
+    }
+
+    /**
+     * Push a list of messages to a queue, in a single request.
+     */
+    public void pushBatch(String queueUrl, List<String> messages) {
+        int id = nextRequestId.incrementAndGet();
+        FrameBuffer request = new FrameBuffer(256).begin(id, Protocol.PUSH_BATCH)
+                .putString(queueUrl).putInt(messages.size());
+        for (String message : messages) {
+            request.putString(message);
+        }
+        call(id, request);
+    }
+
+    /**
+     * Pull up to <code>max</code> messages from a queue, in a single request.
+     *
+     * @return messages pulled from the queue, empty if the queue is empty
+     */
+    public List<Message> pullBatch(String queueUrl, int max) {
+        int id = nextRequestId.incrementAndGet();
+        FrameBuffer request = new FrameBuffer(64).begin(id, Protocol.PULL_BATCH).putString(queueUrl).putInt(max);
+        ByteBuffer result = call(id, request);
+
+        int count = result.getInt();
+        List<Message> msgs = new ArrayList<Message>(count);
+        for (int i = 0; i < count; i++) {
+            msgs.add(Protocol.readMessage(result));
+        }
+        return msgs;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+            reader.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (IOException e) {
+            throw new RemoteQueueException("Failed to close connection to QueueServer", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Send a request and wait for its response.
+     *
+     * @return the result of a successful response
+     */
+    private ByteBuffer call(int id, FrameBuffer request) {
+
+        request.end();
+
+        Call call = new Call();
+        calls.put(id, call);
+
+        if (failure != null) {
+            calls.remove(id);
+            throw new RemoteQueueException("Connection to QueueServer has failed", failure);
+        }
+
+        outgoing.add(request.flip());
+        flush();
+
+        try {
+            call.done.await();
+        } catch (InterruptedException e) {
+            calls.remove(id);
+            Thread.currentThread().interrupt();
+            throw new RemoteQueueException("Interrupted while waiting for QueueServer", e);
+        }
+
+        if (call.failure != null) {
+            throw new RemoteQueueException("Connection to QueueServer has failed", call.failure);
+        }
+
+        switch (call.status) {
+        case Protocol.OK:
+            return call.result;
+        case Protocol.NO_SUCH_QUEUE:
+            throw new NoSuchQueueException(Protocol.readString(call.result));
+        default:
+            throw new RemoteQueueException("QueueServer failed to execute request - " + Protocol.readString(call.result));
+        }
+    }
+
+    /**
+     * Write every queued request, unless another thread is already writing them.
+     */
+    private void flush() {
+
+        // re-check after releasing the lock, in case a request was queued while the lock was held
+        while (!outgoing.isEmpty() && writeLock.tryLock()) {
+            try {
+                List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+                ByteBuffer buffer;
+                while ((buffer = outgoing.poll()) != null) {
+                    batch.add(buffer);
+                }
+                if (batch.isEmpty()) {
+                    // drained by another thread between the check and taking the lock
+                    continue;
+                }
+
+                ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+                while (buffers[buffers.length - 1].hasRemaining()) {
+                    channel.write(buffers);
+                }
+            } catch (IOException e) {
+                fail(e);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Read responses, and complete the calls waiting for them.
+     */
+    private void read() {
+
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        try {
+            while (true) {
+                if (channel.read(in) < 0) {
+                    throw new EOFException("Connection closed by QueueServer");
+                }
+
+                in.flip();
+                ByteBuffer frame;
+                while ((frame = Protocol.nextFrame(in)) != null) {
+                    Call call = calls.remove(frame.getInt());
+                    byte status = frame.get();
+                    if (call != null) {
+                        call.complete(status, frame);
+                    }
+                }
+                in.compact();
+                in = Protocol.ensureRoom(in);
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (IllegalStateException e) {
+            fail(new IOException(e));
+        }
+    }
+
+    /**
+     * Fail every call waiting for a response, after the connection fails.
+     */
+    private void fail(IOException e) {
+        failure = e;
+        for (Integer id : calls.keySet()) {
+            Call call = calls.remove(id);
+            if (call != null) {
+                call.fail(e);
+            }
+        }
+    }
+}
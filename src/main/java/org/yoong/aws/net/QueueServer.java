@@ -0,0 +1,440 @@
+package org.yoong.aws.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.yoong.aws.Message;
+import org.yoong.aws.QueueService;
+import org.yoong.aws.Message.MessageBuilder;
+import org.yoong.aws.exceptions.NoSuchQueueException;
+import org.yoong.aws.exceptions.RemoteQueueException;
+import org.yoong.aws.net.Protocol.FrameBuffer;
+
+/**
+ * Server exposing any {@link QueueService} implementation over the binary {@link Protocol}, for other processes on the
+ * host to share a queue through {@link QueueClient}.
+ *
+ * <p>
+ * <h4>Threading</h4>
+ * A single selector thread accepts connections, reads request frames and writes response frames. <br/>
+ * The requests read from a connection are executed against the QueueService by a pool of worker threads, one batch at
+ * a time per connection, so the requests of a connection are executed in the order they were sent.
+ * </p>
+ *
+ * <p>
+ * <h4>Pipelining and Batching</h4>
+ * A client can send many requests without waiting for their responses. <br/>
+ * All the requests read from a connection at once are executed as a batch, and their responses are written back
+ * together.
+ * </p>
+ *
+ * <p>
+ * <h4>Backpressure</h4>
+ * A connection stops being read while it has more requests waiting to be executed, or more bytes of responses waiting
+ * to be written, than its high water marks. <br/>
+ * Reading resumes once both have drained below half of their mark, so a client which pipelines faster than the
+ * service executes, or which does not read its responses, is held back by TCP flow control rather than by the
+ * server's memory.
+ * </p>
+ */
+public class QueueServer implements Closeable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    // high water marks of a connection
+    private static final int MAX_PENDING_REQUESTS = 1024;
+    private static final long MAX_OUT_BYTES = 1 << 20;
+
+    private final QueueService service;
+    private final InetSocketAddress address;
+    private final ExecutorService workers;
+
+    // connections with responses waiting to be written
+    private final Queue<Connection> writable = new ConcurrentLinkedQueue<Connection>();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean running;
+
+    /**
+     * Class to hold the state of a client connection.
+     */
+    private class Connection {
+
+        final SocketChannel channel;
+        final SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+        final AtomicLong outBytes = new AtomicLong();
+
+        // whether reading is suspended by backpressure, only accessed by the selector thread
+        boolean paused;
+
+        // requests waiting to be executed, guarded by the connection
+        final List<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+        boolean executing;
+
+        public Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    public QueueServer(QueueService service, InetSocketAddress address, int workerThreads) {
+        this.service = service;
+        this.address = address;
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+    }
+
+    /**
+     * Bind the server to its address, and start serving requests.
+     */
+    public void start() {
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw new RemoteQueueException("Failed to bind QueueServer to " + address, e);
+        }
+
+        running = true;
+        selectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                select();
+            }
+        }, "queue-server-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * @return the address the server is bound to, useful when started on an ephemeral port
+     */
+    public InetSocketAddress getAddress() {
+        try {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        } catch (IOException e) {
+            throw new RemoteQueueException("Failed to get address of QueueServer", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        workers.shutdown();
+        try {
+            if (selectorThread != null) {
+                selectorThread.join(TimeUnit.SECONDS.toMillis(5));
+            }
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void select() {
+
+        try {
+            while (running) {
+                selector.select();
+
+                // register interest in writing responses produced by the workers
+                Connection conn;
+                while ((conn = writable.poll()) != null) {
+                    if (conn.key.isValid()) {
+                        conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+                        updateReadInterest(conn);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    conn = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(conn);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(conn);
+                        }
+                        if (key.isValid()) {
+                            updateReadInterest(conn);
+                        }
+                    } catch (IOException | IllegalStateException e) {
+                        disconnect(conn);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RemoteQueueException("Caught IO exception in QueueServer selector", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // ignore, closing anyway
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore, closing anyway
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    private void read(final Connection conn) throws IOException {
+
+        if (conn.channel.read(conn.in) < 0) {
+            disconnect(conn);
+            return;
+        }
+
+        // slice all complete frames
+        List<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+        conn.in.flip();
+        ByteBuffer frame;
+        while ((frame = Protocol.nextFrame(conn.in)) != null) {
+            frames.add(frame);
+        }
+        conn.in.compact();
+        conn.in = Protocol.ensureRoom(conn.in);
+
+        if (frames.isEmpty()) {
+            return;
+        }
+
+        // hand the requests to a worker, unless one is already executing requests of this connection
+        synchronized (conn) {
+            conn.pending.addAll(frames);
+            if (conn.executing) {
+                return;
+            }
+            conn.executing = true;
+        }
+
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                execute(conn);
+            }
+        });
+    }
+
+    private void write(Connection conn) throws IOException {
+
+        ByteBuffer buffer;
+        while ((buffer = conn.out.peek()) != null) {
+            conn.channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                // socket buffer is full, wait until writable again
+                return;
+            }
+            conn.out.poll();
+            conn.outBytes.addAndGet(-buffer.limit());
+        }
+
+        conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_WRITE);
+
+        // a worker may have added a response after the queue was drained
+        if (!conn.out.isEmpty()) {
+            conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Stop reading from a connection above its high water marks, and resume once it has drained. Must be called by the
+     * selector thread.
+     */
+    private void updateReadInterest(Connection conn) {
+
+        int pending;
+        synchronized (conn) {
+            pending = conn.pending.size();
+        }
+        long outBytes = conn.outBytes.get();
+
+        if (!conn.paused && (pending >= MAX_PENDING_REQUESTS || outBytes >= MAX_OUT_BYTES)) {
+            conn.paused = true;
+            conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+        } else if (conn.paused && pending <= MAX_PENDING_REQUESTS / 2 && outBytes <= MAX_OUT_BYTES / 2) {
+            conn.paused = false;
+            conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void disconnect(Connection conn) {
+        conn.key.cancel();
+        try {
+            conn.channel.close();
+        } catch (IOException e) {
+            // ignore, closing anyway
+        }
+    }
+
+    /**
+     * Execute the pending requests of a connection in batches, until there are none left.
+     */
+    private void execute(Connection conn) {
+
+        while (true) {
+            List<ByteBuffer> batch;
+            synchronized (conn) {
+                if (conn.pending.isEmpty()) {
+                    conn.executing = false;
+                    return;
+                }
+                batch = new ArrayList<ByteBuffer>(conn.pending);
+                conn.pending.clear();
+            }
+
+            FrameBuffer responses = new FrameBuffer(256);
+            for (ByteBuffer request : batch) {
+                execute(request, responses);
+            }
+
+            ByteBuffer response = responses.flip();
+            conn.outBytes.addAndGet(response.limit());
+            conn.out.add(response);
+            writable.add(conn);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Execute a single request against the service, and encode its response.
+     */
+    private void execute(ByteBuffer request, FrameBuffer responses) {
+
+        int requestId = request.getInt();
+        byte operation = request.get();
+
+        try {
+            switch (operation) {
+            case Protocol.CREATE: {
+                String queueName = Protocol.readString(request);
+                long visibilityTimeout = request.getLong();
+                String url = service.createQueue(queueName, visibilityTimeout, TimeUnit.MILLISECONDS);
+                responses.begin(requestId, Protocol.OK).putString(url);
+                break;
+            }
+            case Protocol.PUSH: {
+                String url = Protocol.readString(request);
+                service.push(url, Protocol.readString(request));
+                responses.begin(requestId, Protocol.OK);
+                break;
+            }
+            case Protocol.PULL: {
+                Message msg = service.pull(Protocol.readString(request));
+                responses.begin(requestId, Protocol.OK);
+                if (msg == null) {
+                    responses.putByte((byte) 0);
+                } else {
+                    responses.putByte((byte) 1).putMessage(msg);
+                }
+                break;
+            }
+            case Protocol.DELETE: {
+                String url = Protocol.readString(request);
+                Message handle = new MessageBuilder().setReceiptHandle(Protocol.readString(request)).build();
+                boolean deleted = service.delete(url, handle);
+                responses.begin(requestId, Protocol.OK).putByte((byte) (deleted ? 1 : 0));
+                break;
+            }
+            case Protocol.PUSH_BATCH: {
+                String url = Protocol.readString(request);
+                int count = request.getInt();
+                for (int i = 0; i < count; i++) {
+                    service.push(url, Protocol.readString(request));
+                }
+                responses.begin(requestId, Protocol.OK);
+                break;
+            }
+            case Protocol.PULL_BATCH: {
+                String url = Protocol.readString(request);
+                int max = request.getInt();
+                List<Message> msgs = new ArrayList<Message>();
+                Message msg;
+                while (msgs.size() < max && (msg = service.pull(url)) != null) {
+                    msgs.add(msg);
+                }
+                responses.begin(requestId, Protocol.OK).putMessages(msgs);
+                break;
+            }
+            case Protocol.TRANSFER: {
+                String sourceUrl = Protocol.readString(request);
+                Message handle = new MessageBuilder().setReceiptHandle(Protocol.readString(request)).build();
+                String targetUrl = Protocol.readString(request);
+                boolean transferred = service.transfer(sourceUrl, handle, targetUrl, Protocol.readString(request));
+                responses.begin(requestId, Protocol.OK).putByte((byte) (transferred ? 1 : 0));
+                break;
+            }
+            case Protocol.PURGE: {
+                service.purgeQueue(Protocol.readString(request));
+                responses.begin(requestId, Protocol.OK);
+                break;
+            }
+            case Protocol.DELETE_QUEUE: {
+                service.deleteQueue(Protocol.readString(request));
+                responses.begin(requestId, Protocol.OK);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+            }
+        } catch (NoSuchQueueException e) {
+            responses.begin(requestId, Protocol.NO_SUCH_QUEUE).putString(e.getMessage());
+        } catch (RuntimeException e) {
+            responses.begin(requestId, Protocol.ERROR).putString(String.valueOf(e));
+        }
+
+        responses.end();
+    }
+}
@@ -0,0 +1,78 @@
+package org.yoong.aws.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of message bodies.
+ *
+ * <p>
+ * Bodies are compressed with {@link Deflater#BEST_SPEED}, as queue payloads are usually compressed once and read once,
+ * which makes the CPU cost of a higher level hard to win back.
+ * </p>
+ */
+public final class Compression {
+
+    /**
+     * Threshold disabling compression.
+     */
+    public static final int DISABLED = -1;
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private Compression() {
+    }
+
+    /**
+     * Check whether a body of the given size should be compressed.
+     *
+     * @param threshold - minimum size in bytes to compress, or {@link #DISABLED}
+     */
+    public static boolean shouldCompress(int size, int threshold) {
+        return threshold != DISABLED && size >= threshold;
+    }
+
+    public static byte[] deflate(byte[] input) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 4 + 16);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the input is not valid deflate data
+     */
+    public static byte[] inflate(byte[] input) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated deflate data");
+                }
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid deflate data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.yoong.aws.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Scheduler sharing a fixed number of permits fairly between keys, eg the queues of a service sharing a disk.
+ *
+ * <p>
+ * <h4>Fair Share</h4>
+ * While a permit is free, it is granted straight away. <br/>
+ * Otherwise, callers wait in a queue per key, and every released permit is granted to the next key in round-robin
+ * order. A key with many waiting callers gets one permit per round, like every other waiting key, so it cannot
+ * monopolise the permits.
+ * </p>
+ *
+ * <p>
+ * <h4>Reentrancy</h4>
+ * A thread which already holds a permit is granted another one straight away, and must release each. <br/>
+ * This does not make it safe to wait for other locks while holding a permit : a thread holding a permit and waiting
+ * for a lock deadlocks with a thread holding that lock and waiting for the permit. Callers take their locks first.
+ * </p>
+ */
+public class FairShareScheduler {
+
+    private final int permits;
+    private int available;
+
+    // keys with waiting callers, in round-robin order
+    private final LinkedHashMap<String, ArrayDeque<Waiter>> waiting = new LinkedHashMap<String, ArrayDeque<Waiter>>();
+
+    // number of permits held by the current thread
+    private final ThreadLocal<int[]> held = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    private long grants;
+    private long waits;
+
+    /**
+     * Class to hold a caller waiting for a permit.
+     */
+    private static class Waiter {
+
+        boolean granted;
+    }
+
+    /**
+     * @param permits - number of callers allowed to hold a permit at once
+     */
+    public FairShareScheduler(int permits) {
+        if (permits < 1) {
+            throw new IllegalArgumentException("At least one permit is required.");
+        }
+        this.permits = permits;
+        this.available = permits;
+    }
+
+    /**
+     * Wait for a permit for the given key.
+     */
+    public void acquire(String key) throws InterruptedException {
+
+        int[] count = held.get();
+        if (count[0] > 0) {
+            count[0]++;
+            return;
+        }
+
+        Waiter waiter;
+        synchronized (this) {
+            grants++;
+            if (available > 0 && waiting.isEmpty()) {
+                available--;
+                count[0] = 1;
+                return;
+            }
+
+            waits++;
+            waiter = new Waiter();
+            ArrayDeque<Waiter> waiters = waiting.get(key);
+            if (waiters == null) {
+                waiters = new ArrayDeque<Waiter>();
+                waiting.put(key, waiters);
+            }
+            waiters.add(waiter);
+        }
+
+        try {
+            synchronized (waiter) {
+                while (!waiter.granted) {
+                    waiter.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                if (!waiter.granted) {
+                    ArrayDeque<Waiter> waiters = waiting.get(key);
+                    waiters.remove(waiter);
+                    if (waiters.isEmpty()) {
+                        waiting.remove(key);
+                    }
+                    throw e;
+                }
+            }
+            // granted while being interrupted, pass the permit on
+            count[0] = 1;
+            release();
+            throw e;
+        }
+
+        count[0] = 1;
+    }
+
+    /**
+     * Release a permit held by the current thread, granting it to the next waiting key.
+     */
+    public void release() {
+
+        int[] count = held.get();
+        if (count[0] == 0) {
+            throw new IllegalStateException("Current thread does not hold a permit.");
+        }
+        if (--count[0] > 0) {
+            return;
+        }
+
+        Waiter next;
+        synchronized (this) {
+            next = next();
+            if (next == null) {
+                available++;
+                return;
+            }
+            next.granted = true;
+        }
+
+        synchronized (next) {
+            next.notify();
+        }
+    }
+
+    /**
+     * @return number of permits
+     */
+    public int getPermits() {
+        return permits;
+    }
+
+    /**
+     * @return number of permits granted, excluding reentrant ones
+     */
+    public synchronized long getGrantCount() {
+        return grants;
+    }
+
+    /**
+     * @return number of permits which had to wait for another caller to release one
+     */
+    public synchronized long getWaitCount() {
+        return waits;
+    }
+
+    /**
+     * Take the first waiter of the next key, and move the key to the back of the round. Must hold the lock.
+     */
+    private Waiter next() {
+
+        Iterator<Map.Entry<String, ArrayDeque<Waiter>>> keys = waiting.entrySet().iterator();
+        if (!keys.hasNext()) {
+            return null;
+        }
+
+        Map.Entry<String, ArrayDeque<Waiter>> first = keys.next();
+        keys.remove();
+
+        ArrayDeque<Waiter> waiters = first.getValue();
+        Waiter next = waiters.poll();
+        if (!waiters.isEmpty()) {
+            waiting.put(first.getKey(), waiters);
+        }
+        return next;
+    }
+}
@@ -0,0 +1,54 @@
+package org.yoong.aws.util;
+
+/**
+ * Token bucket rate limiter, refilled from a {@link Clock}.
+ *
+ * <p>
+ * The bucket holds up to <code>burst</code> tokens, and refills at <code>permitsPerSecond</code>. Each admitted call
+ * takes one token, and calls are rejected rather than delayed while the bucket is empty.
+ * </p>
+ */
+public class TokenBucket {
+
+    private final double permitsPerMilli;
+    private final double capacity;
+    private final Clock clock;
+
+    private double tokens;
+    private long lastRefillTime;
+
+    /**
+     * @param permitsPerSecond - rate at which tokens are added
+     * @param burst - maximum number of tokens, which is also the number of calls admitted at once after a quiet period
+     */
+    public TokenBucket(double permitsPerSecond, int burst, Clock clock) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate must be positive, and burst at least 1.");
+        }
+        this.permitsPerMilli = permitsPerSecond / 1000;
+        this.capacity = burst;
+        this.clock = clock;
+        this.tokens = burst;
+        this.lastRefillTime = clock.getCurrentTime();
+    }
+
+    /**
+     * Take a token if one is available.
+     *
+     * @return <code>true</code> if admitted, <code>false</code> if the bucket is empty
+     */
+    public synchronized boolean tryAcquire() {
+
+        long now = clock.getCurrentTime();
+        if (now > lastRefillTime) {
+            tokens = Math.min(capacity, tokens + (now - lastRefillTime) * permitsPerMilli);
+            lastRefillTime = now;
+        }
+
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+}
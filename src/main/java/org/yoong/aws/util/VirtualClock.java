@@ -0,0 +1,42 @@
+package org.yoong.aws.util;
+
+/**
+ * Clock whose time only moves when told to, for simulations and tests that need visibility timeouts to expire without
+ * waiting for them.
+ */
+public class VirtualClock extends Clock {
+
+    private volatile long time;
+
+    /**
+     * @param time - unix timestamp to start from
+     */
+    public VirtualClock(long time) {
+        this.time = time;
+    }
+
+    @Override
+    public long getCurrentTime() {
+        return time;
+    }
+
+    /**
+     * Move the clock forward to the given time.
+     *
+     * @throws IllegalArgumentException if the time is before the current time
+     */
+    public void advanceTo(long time) {
+        if (time < this.time) {
+            throw new IllegalArgumentException("Cannot move clock back from " + this.time + " to " + time);
+        }
+        this.time = time;
+    }
+
+    /**
+     * Move the clock forward by the given number of milliseconds.
+     */
+    public void advance(long millis) {
+        advanceTo(time + millis);
+    }
+
+}
@@ -1,12 +1,17 @@
 package org.yoong.aws;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
@@ -15,9 +20,17 @@ import org.junit.Before;
 import org.junit.Test;
 import org.yoong.aws.Message;
 import org.yoong.aws.Message.MessageBuilder;
+import org.yoong.aws.exceptions.FileQueueException;
 import org.yoong.aws.exceptions.NoSuchQueueException;
+import org.yoong.aws.impl.FileQueueReplicator;
 import org.yoong.aws.impl.FileQueueService;
 import org.yoong.aws.util.Clock;
+import org.yoong.aws.util.Compression;
+import org.yoong.aws.util.FairShareScheduler;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
 
 public class FileQueueTest {
 
@@ -26,6 +39,7 @@ public class FileQueueTest {
     private final String messageBody = "message\nmessage";
 
     private final File serviceDirectory = new File("FileQueueTest");
+    private final File standbyDirectory = new File("FileQueueTest-standby");
 
     /**
      * Ensure the service's home directory is empty before each test.
@@ -33,6 +47,7 @@ public class FileQueueTest {
     @Before
     public void before() throws IOException {
         cleanUp(serviceDirectory);
+        cleanUp(standbyDirectory);
     }
 
     /**
@@ -162,12 +177,665 @@ public class FileQueueTest {
         Assert.assertEquals(response.getReceiptHandle(), service.pull(url).getReceiptHandle());
     }
 
+    /**
+     * Test that bodies above the compression threshold are compressed on disk, and read back transparently by services
+     * with and without compression.
+     */
+    @Test
+    public void testCompression() {
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("{\"id\":").append(i).append(",\"status\":\"pending\"}");
+        }
+        String largeBody = sb.toString();
+
+        FileQueueService service = new FileQueueService(serviceDirectory, new Clock(), 1024);
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        service.push(url, largeBody);
+        service.push(url, messageBody);
+
+        File primary = new File(queueDirectory(queueName), "primary");
+        Assert.assertTrue(primary.length() < largeBody.length() / 2);
+
+        FileQueueService service2 = new FileQueueService(serviceDirectory, new Clock());
+        String url2 = service2.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        Assert.assertEquals(largeBody, service2.pull(url2).getBody());
+        Assert.assertEquals(messageBody, service.pull(url).getBody());
+    }
+
+    /**
+     * Test that purging removes both waiting and pulled messages, and the queue can still be used.
+     */
+    @Test
+    public void testPurgeQueue() {
+
+        FileQueueService service = new FileQueueService(serviceDirectory, new Clock());
+        String url = service.createQueue(queueName, 0, TimeUnit.MILLISECONDS);
+
+        service.push(url, messageBody);
+        service.push(url, messageBody);
+        Message pulled = service.pull(url);
+
+        service.purgeQueue(url);
+
+        Assert.assertNull(service.pull(url));
+        Assert.assertFalse(service.delete(url, pulled));
+
+        service.push(url, messageBody);
+        Assert.assertEquals(messageBody, service.pull(url).getBody());
+    }
+
+    /**
+     * Test that deleting a queue removes it for every service sharing the directory, until it is created again.
+     */
+    @Test
+    public void testDeleteQueue() {
+
+        FileQueueService service = new FileQueueService(serviceDirectory, new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        FileQueueService service2 = new FileQueueService(serviceDirectory, new Clock());
+        String url2 = service2.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        service.push(url, messageBody);
+        service.deleteQueue(url);
+
+        // only the lock of the home directory is left
+        Assert.assertEquals(Arrays.asList(".lock"), Arrays.asList(serviceDirectory.list()));
+
+        try {
+            service2.push(url2, messageBody);
+            Assert.fail("Expected NoSuchQueueException");
+        } catch (NoSuchQueueException e) {
+            // expected, the queue has been deleted by the other service
+        }
+
+        url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        Assert.assertNull(service.pull(url));
+    }
+
+    /**
+     * Test that a queue handle shares the queue with the service, and fails once the queue is deleted.
+     */
+    @Test
+    public void testQueueHandle() {
+
+        QueueService service = new FileQueueService(serviceDirectory, new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        QueueHandle queue = service.getQueueHandle(url);
+
+        Assert.assertEquals(url, queue.getQueueUrl());
+
+        queue.push(messageBody);
+        Message response = service.pull(url);
+        Assert.assertEquals(messageBody, response.getBody());
+        Assert.assertTrue(queue.delete(response));
+        Assert.assertNull(queue.pull());
+
+        service.deleteQueue(url);
+
+        try {
+            queue.push(messageBody);
+            Assert.fail("Expected NoSuchQueueException");
+        } catch (NoSuchQueueException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that a transfer deletes the message from the source and pushes it to the target, only once.
+     */
+    @Test
+    public void testTransfer() {
+
+        FileQueueService service = new FileQueueService(serviceDirectory, new Clock());
+        String source = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        String target = service.createQueue(queueName + "-target", timeout, TimeUnit.MILLISECONDS);
+
+        service.push(source, messageBody);
+        Message msg = service.pull(source);
+
+        Assert.assertTrue(service.transfer(source, msg, target, messageBody + "-transferred"));
+        Assert.assertFalse(service.transfer(source, msg, target, null));
+        Assert.assertFalse(service.delete(source, msg));
+
+        Message transferred = service.pull(target);
+        Assert.assertEquals(messageBody + "-transferred", transferred.getBody());
+        Assert.assertTrue(service.delete(target, transferred));
+        Assert.assertNull(service.pull(target));
+        Assert.assertNull(service.pull(source));
+    }
+
+    /**
+     * Test that a journal left behind by a failed transfer is completed when the source queue is created, and that
+     * replaying it again does not push the message twice.
+     */
+    @Test
+    public void testTransferRecovery() throws IOException {
+
+        String targetName = queueName + "-target";
+
+        FileQueueService service = new FileQueueService(serviceDirectory, new Clock());
+        String source = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        service.push(source, messageBody);
+        Message msg = service.pull(source);
+
+        // journal of a transfer which failed before being applied
+        File sourceDir = queueDirectory(queueName);
+        String journal = Hashing.md5().hashString(targetName, Charsets.UTF_8).toString() + "\n"
+                + msg.getReceiptHandle() + "\n"
+                + "transfer-1,0," + BaseEncoding.base64().encode(messageBody.getBytes()) + "\n";
+
+        Files.write(new File(sourceDir, "transfer-1").toPath(), journal.getBytes());
+
+        FileQueueService recovered = new FileQueueService(serviceDirectory, new Clock());
+        String target = recovered.createQueue(targetName, timeout, TimeUnit.MILLISECONDS);
+        recovered.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        Assert.assertFalse(new File(sourceDir, "transfer-1").exists());
+        Assert.assertFalse(recovered.delete(source, msg));
+        Message transferred = recovered.pull(target);
+        Assert.assertEquals(messageBody, transferred.getBody());
+
+        // replay the same journal, after the transferred message has been pulled
+        Files.write(new File(sourceDir, "transfer-1").toPath(), journal.getBytes());
+
+        FileQueueService replayed = new FileQueueService(serviceDirectory, new Clock());
+        replayed.createQueue(targetName, timeout, TimeUnit.MILLISECONDS);
+        replayed.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        Assert.assertNull(replayed.pull(target));
+        Assert.assertTrue(replayed.delete(target, transferred));
+    }
+
+    /**
+     * Test that a journal marked applied is not pushed again, once its target record has been consumed.
+     */
+    @Test
+    public void testTransferRecoveryApplied() throws IOException {
+
+        String targetName = queueName + "-target";
+
+        FileQueueService service = new FileQueueService(serviceDirectory, new Clock());
+        String source = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        String target = service.createQueue(targetName, timeout, TimeUnit.MILLISECONDS);
+        service.push(source, messageBody);
+        Message msg = service.pull(source);
+
+        // a transfer which failed once its record was appended to the target, and its journal marked applied
+        String targetRecord = "transfer-1,0," + BaseEncoding.base64().encode(messageBody.getBytes());
+        String journal = Hashing.md5().hashString(targetName, Charsets.UTF_8).toString() + "\n"
+                + msg.getReceiptHandle() + "\n" + targetRecord + "\n";
+        File sourceDir = queueDirectory(queueName);
+        Files.write(new File(sourceDir, "transfer-1.applied").toPath(), journal.getBytes());
+        Files.write(new File(queueDirectory(targetName), "primary").toPath(), (targetRecord + "\n").getBytes());
+
+        // another consumer takes the transferred message before the source queue is created again
+        Message transferred = service.pull(target);
+        Assert.assertEquals(messageBody, transferred.getBody());
+        Assert.assertTrue(service.delete(target, transferred));
+
+        FileQueueService recovered = new FileQueueService(serviceDirectory, new Clock());
+        recovered.createQueue(targetName, timeout, TimeUnit.MILLISECONDS);
+        recovered.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        Assert.assertFalse(new File(sourceDir, "transfer-1.applied").exists());
+        Assert.assertNull(recovered.pull(target));
+        Assert.assertFalse(recovered.delete(source, msg));
+    }
+
+    /**
+     * Test that queues sharing a single I/O permit all make progress, including transfers which lock two queues.
+     */
+    @Test
+    public void testFairShareScheduler() throws InterruptedException {
+
+        FairShareScheduler scheduler = new FairShareScheduler(1);
+        final FileQueueService service = new FileQueueService(serviceDirectory, new Clock(), Compression.DISABLED,
+                scheduler);
+        final String target = service.createQueue(queueName + "-target", timeout, TimeUnit.MILLISECONDS);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final String url = service.createQueue(queueName + t, timeout, TimeUnit.MILLISECONDS);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10; i++) {
+                        service.push(url, messageBody);
+                        Assert.assertTrue(service.transfer(url, service.pull(url), target, null));
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int i = 0; i < 40; i++) {
+            Assert.assertNotNull(service.pull(target));
+        }
+        Assert.assertNull(service.pull(target));
+        Assert.assertTrue(scheduler.getGrantCount() > 0);
+    }
+
+    /**
+     * Test that transfers holding a single I/O permit do not deadlock with pushes to their target, which hold the
+     * target's lock while they wait for the permit.
+     */
+    @Test
+    public void testFairShareTransferToBusyTarget() throws InterruptedException {
+
+        final int messages = 50;
+        final FileQueueService service = new FileQueueService(serviceDirectory, new Clock(), Compression.DISABLED,
+                new FairShareScheduler(1));
+        final String source = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        final String target = service.createQueue(queueName + "-target", timeout, TimeUnit.MILLISECONDS);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < messages; i++) {
+                    service.push(source, messageBody);
+                    Assert.assertTrue(service.transfer(source, service.pull(source), target, null));
+                }
+            }
+        }));
+        for (int t = 0; t < 3; t++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < messages; i++) {
+                        service.push(target, messageBody);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+            Assert.assertFalse("Deadlocked waiting for the I/O permit", thread.isAlive());
+        }
+
+        for (int i = 0; i < messages * 4; i++) {
+            Assert.assertNotNull(service.pull(target));
+        }
+        Assert.assertNull(service.pull(target));
+    }
+
+    /**
+     * Test that timestamps survive the record format, and that records written without timestamps can still be read.
+     */
+    @Test
+    public void testTimestamps() throws IOException {
+
+        final long[] time = { 1000 };
+        Clock clock = new Clock() {
+            @Override
+            public long getCurrentTime() {
+                return time[0];
+            }
+        };
+
+        FileQueueService service = new FileQueueService(serviceDirectory, clock);
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        service.push(url, messageBody);
+
+        time[0] = 1200;
+        Message msg = service.pull(url);
+        Assert.assertEquals(1000, msg.getSentTimestamp());
+        Assert.assertEquals(1200, msg.getFirstReceiveTimestamp());
+
+        time[0] = 1500;
+        Assert.assertTrue(service.delete(url, msg));
+        Assert.assertEquals(200, service.getMetrics(url).getQueueWait().getMax());
+        Assert.assertEquals(300, service.getMetrics(url).getProcessingTime().getMax());
+        Assert.assertEquals(500, service.getMetrics(url).getEndToEnd().getMax());
+
+        // record in the format without timestamps
+        File primary = new File(queueDirectory(queueName), "primary");
+        Files.write(primary.toPath(), (",0," + BaseEncoding.base64().encode(messageBody.getBytes()) + "\n").getBytes());
+
+        Message legacy = service.pull(url);
+        Assert.assertEquals(messageBody, legacy.getBody());
+        Assert.assertEquals(0, legacy.getSentTimestamp());
+        Assert.assertEquals(1500, legacy.getFirstReceiveTimestamp());
+        Assert.assertTrue(service.delete(url, legacy));
+        Assert.assertEquals(1, service.getMetrics(url).getEndToEnd().getCount());
+    }
+
+    /**
+     * Test that the promoted standby holds the same queues as the service, and that changes after promoting are not
+     * replicated.
+     */
+    @Test
+    public void testReplication() {
+
+        FileQueueService service = new FileQueueService(serviceDirectory, new Clock());
+        FileQueueReplicator replicator = new FileQueueReplicator(service, standbyDirectory, 4, new Clock());
+        replicator.start();
+
+        String source = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        String target = service.createQueue(queueName + "-target", timeout, TimeUnit.MILLISECONDS);
+        String redelivered = service.createQueue(queueName + "-redelivered", 0, TimeUnit.MILLISECONDS);
+        String purged = service.createQueue(queueName + "-purged", timeout, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 3; i++) {
+            service.push(source, messageBody + i);
+        }
+        Assert.assertTrue(service.delete(source, service.pull(source)));
+        Assert.assertTrue(service.transfer(source, service.pull(source), target, "moved"));
+
+        service.push(redelivered, messageBody);
+        service.pull(redelivered);
+        Message last = service.pull(redelivered);
+
+        service.push(purged, messageBody);
+        service.purgeQueue(purged);
+
+        FileQueueService standby = replicator.promote();
+        Assert.assertEquals(replicator.getShippedOperations(), replicator.getAppliedOperations());
+        Assert.assertEquals(0, replicator.getLagMillis());
+
+        service.push(source, "not replicated");
+
+        standby.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        standby.createQueue(queueName + "-target", timeout, TimeUnit.MILLISECONDS);
+        standby.createQueue(queueName + "-redelivered", 0, TimeUnit.MILLISECONDS);
+        standby.createQueue(queueName + "-purged", timeout, TimeUnit.MILLISECONDS);
+
+        Assert.assertEquals(messageBody + 2, standby.pull(source).getBody());
+        Assert.assertNull(standby.pull(source));
+        Assert.assertEquals("moved", standby.pull(target).getBody());
+        Assert.assertEquals(last.getReceiptHandle(), standby.pull(redelivered).getReceiptHandle());
+        Assert.assertNull(standby.pull(purged));
+    }
+
+    /**
+     * Test that the service waits for a full log to drain, so nothing is dropped and the log never grows beyond its
+     * capacity.
+     */
+    @Test
+    public void testReplicationLogFull() {
+
+        int messages = 200;
+        FileQueueService service = new FileQueueService(serviceDirectory, new Clock());
+        FileQueueReplicator replicator = new FileQueueReplicator(service, standbyDirectory, 1, new Clock());
+        replicator.start();
+
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < messages; i++) {
+            service.push(url, messageBody + i);
+            Assert.assertTrue(replicator.getPendingOperations() <= 1);
+        }
+
+        FileQueueService standby = replicator.promote();
+        Assert.assertEquals(messages, replicator.getShippedOperations());
+        Assert.assertEquals(messages, replicator.getAppliedOperations());
+
+        standby.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < messages; i++) {
+            Assert.assertEquals(messageBody + i, standby.pull(url).getBody());
+        }
+        Assert.assertNull(standby.pull(url));
+    }
+
+    /**
+     * Test that a failed replay is reported, stops the service waiting on the log, and the standby cannot be promoted.
+     */
+    @Test
+    public void testReplicationFailure() throws IOException, InterruptedException {
+
+        // the standby directory cannot be created where a file is
+        Assert.assertTrue(standbyDirectory.createNewFile());
+
+        FileQueueService service = new FileQueueService(serviceDirectory, new Clock());
+        FileQueueReplicator replicator = new FileQueueReplicator(service, standbyDirectory, 1, new Clock());
+        replicator.start();
+
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        service.push(url, messageBody);
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (replicator.getFailure() == null) {
+            Assert.assertTrue("Timed out waiting for the replay to fail", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(replicator.getFailure() instanceof IOException);
+
+        // nothing is shipped any more, so a log of one cannot block the service
+        for (int i = 0; i < 10; i++) {
+            service.push(url, messageBody + i);
+        }
+        Assert.assertEquals(0, replicator.getPendingOperations());
+
+        try {
+            replicator.promote();
+            Assert.fail("Expected FileQueueException");
+        } catch (FileQueueException e) {
+            Assert.assertSame(replicator.getFailure(), e.getCause());
+        }
+    }
+
+    /**
+     * Test that an operation which does not match the standby fails the replicator, rather than being replayed.
+     */
+    @Test
+    public void testReplicationDiverged() throws InterruptedException {
+
+        FileQueueService service = new FileQueueService(serviceDirectory, new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        // pushed before replication, so the standby is not a copy of the home directory
+        service.push(url, messageBody);
+
+        FileQueueReplicator replicator = new FileQueueReplicator(service, standbyDirectory, 4, new Clock());
+        replicator.start();
+        service.pull(url);
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (replicator.getFailure() == null) {
+            Assert.assertTrue("Timed out waiting for the replay to fail", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(replicator.getFailure() instanceof FileQueueException);
+
+        try {
+            replicator.promote();
+            Assert.fail("Expected FileQueueException");
+        } catch (FileQueueException e) {
+            Assert.assertSame(replicator.getFailure(), e.getCause());
+        }
+    }
+
+    /**
+     * Test that a home directory open in another JVM cannot be replicated, and cannot be opened in another JVM while
+     * it is replicated.
+     */
+    @Test
+    public void testReplicationExclusive() throws IOException, InterruptedException {
+
+        FileQueueService service = new FileQueueService(serviceDirectory, new Clock());
+        FileQueueReplicator replicator = new FileQueueReplicator(service, standbyDirectory, 4, new Clock());
+
+        Process child = openInChild();
+        BufferedReader output = new BufferedReader(new InputStreamReader(child.getInputStream(), Charsets.UTF_8));
+        Assert.assertEquals("open", output.readLine());
+
+        try {
+            replicator.start();
+            Assert.fail("Expected FileQueueException");
+        } catch (FileQueueException e) {
+            // refused while the child has the home directory open
+        }
+
+        child.getOutputStream().close();
+        Assert.assertEquals(0, child.waitFor());
+
+        replicator.start();
+        child = openInChild();
+        output = new BufferedReader(new InputStreamReader(child.getInputStream(), Charsets.UTF_8));
+        Assert.assertEquals("refused", output.readLine());
+        Assert.assertEquals(0, child.waitFor());
+
+        // shared again once replication stops
+        replicator.stop();
+        child = openInChild();
+        output = new BufferedReader(new InputStreamReader(child.getInputStream(), Charsets.UTF_8));
+        Assert.assertEquals("open", output.readLine());
+        child.getOutputStream().close();
+        Assert.assertEquals(0, child.waitFor());
+    }
+
+    /**
+     * Test that a replicator refuses to start beside another open service of the same JVM, and that no other service
+     * can be opened while it runs.
+     */
+    @Test
+    public void testReplicationOtherService() {
+
+        FileQueueService service = new FileQueueService(serviceDirectory, new Clock());
+        FileQueueService other = new FileQueueService(serviceDirectory, new Clock());
+        FileQueueReplicator replicator = new FileQueueReplicator(service, standbyDirectory, 4, new Clock());
+
+        try {
+            replicator.start();
+            Assert.fail("Expected FileQueueException");
+        } catch (FileQueueException e) {
+            // refused while the other service is open
+        }
+
+        other.close();
+        replicator.start();
+
+        try {
+            new FileQueueService(serviceDirectory, new Clock());
+            Assert.fail("Expected FileQueueException");
+        } catch (FileQueueException e) {
+            // refused while replicating
+        }
+
+        replicator.stop();
+        new FileQueueService(serviceDirectory, new Clock()).close();
+    }
+
+    /**
+     * Test that closing the last service of this JVM over a home directory lets another JVM replicate it.
+     */
+    @Test
+    public void testCloseReleasesHomeDirectory() throws IOException, InterruptedException {
+
+        FileQueueService service = new FileQueueService(serviceDirectory, new Clock());
+        FileQueueService other = new FileQueueService(serviceDirectory, new Clock());
+        other.close();
+
+        Process child = openInChild(standbyDirectory.getPath());
+        BufferedReader output = new BufferedReader(new InputStreamReader(child.getInputStream(), Charsets.UTF_8));
+        Assert.assertEquals("refused", output.readLine());
+        Assert.assertEquals(0, child.waitFor());
+
+        service.close();
+
+        child = openInChild(standbyDirectory.getPath());
+        output = new BufferedReader(new InputStreamReader(child.getInputStream(), Charsets.UTF_8));
+        Assert.assertEquals("replicating", output.readLine());
+        child.getOutputStream().close();
+        Assert.assertEquals(0, child.waitFor());
+    }
+
+    /**
+     * Test that a promoted standby keeps compressing, and sharing I/O through the scheduler, of the replicated service.
+     */
+    @Test
+    public void testPromoteKeepsSettings() throws IOException {
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            sb.append(messageBody);
+        }
+        String largeBody = sb.toString();
+
+        FairShareScheduler scheduler = new FairShareScheduler(1);
+        FileQueueService service = new FileQueueService(serviceDirectory, new Clock(), 64, scheduler);
+        FileQueueReplicator replicator = new FileQueueReplicator(service, standbyDirectory, 4, new Clock());
+        replicator.start();
+
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        service.push(url, largeBody);
+
+        FileQueueService standby = replicator.promote();
+        standby.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        long grants = scheduler.getGrantCount();
+        standby.push(url, largeBody);
+        Assert.assertTrue(scheduler.getGrantCount() > grants);
+
+        File primary = new File(new File(standbyDirectory, queueDirectory(queueName).getName()), "primary");
+        List<String> records = Files.readAllLines(primary.toPath(), Charsets.UTF_8);
+        Assert.assertEquals(2, records.size());
+        for (String record : records) {
+            Assert.assertTrue(record.contains(",~"));
+        }
+        Assert.assertEquals(largeBody, standby.pull(url).getBody());
+    }
+
+    private Process openInChild(String... args) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> command = new ArrayList<String>(Arrays.asList(java, "-cp", System.getProperty("java.class.path"),
+                OpenProcess.class.getName(), serviceDirectory.getPath()));
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command).redirectErrorStream(true).start();
+    }
+
+    /**
+     * Child JVM of the replication tests, which prints whether it could open, or replicate, the home directory, and
+     * keeps it open until its input is closed.
+     *
+     * Usage : <code>OpenProcess directory [standbyDirectory]</code>
+     */
+    public static class OpenProcess {
+
+        public static void main(String[] args) throws IOException {
+
+            try {
+                FileQueueService service = new FileQueueService(new File(args[0]), new Clock());
+                if (args.length > 1) {
+                    new FileQueueReplicator(service, new File(args[1]), 4, new Clock()).start();
+                }
+            } catch (FileQueueException e) {
+                System.out.println("refused");
+                return;
+            }
+
+            System.out.println(args.length > 1 ? "replicating" : "open");
+            System.out.flush();
+            while (System.in.read() != -1) {
+                // wait for the parent to close the input
+            }
+        }
+    }
+
     /**
      * Ensure the service's home directory is cleared after each test.
      */
     @After
     public void after() throws IOException {
         cleanUp(serviceDirectory);
+        cleanUp(standbyDirectory);
+    }
+
+    private File queueDirectory(String name) {
+        return new File(serviceDirectory, Hashing.md5().hashString(name, Charsets.UTF_8).toString());
     }
 
     private void cleanUp(File directory) throws IOException {
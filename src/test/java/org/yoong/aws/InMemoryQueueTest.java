@@ -10,6 +10,7 @@ import org.yoong.aws.QueueService;
 import org.yoong.aws.Message.MessageBuilder;
 import org.yoong.aws.exceptions.NoSuchQueueException;
 import org.yoong.aws.impl.InMemoryQueueService;
+import org.yoong.aws.metrics.QueueMetrics;
 import org.yoong.aws.util.Clock;
 
 public class InMemoryQueueTest {
@@ -18,6 +19,16 @@ public class InMemoryQueueTest {
     private final String queueName = "queue";
     private final String messageBody = "message";
 
+    private static class TestClock extends Clock {
+
+        long time;
+
+        @Override
+        public long getCurrentTime() {
+            return time;
+        }
+    }
+
     /**
      * Test basic flows: push - pull - delete.
      * And test for FIFO order.
@@ -135,4 +146,133 @@ public class InMemoryQueueTest {
         Assert.assertEquals(response, service.pull(url));
     }
 
+    /**
+     * Test that purging removes both waiting and pulled messages, and the queue can still be used.
+     */
+    @Test
+    public void testPurgeQueue() {
+
+        QueueService service = new InMemoryQueueService(new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        service.push(url, messageBody);
+        service.push(url, messageBody);
+        Message pulled = service.pull(url);
+
+        service.purgeQueue(url);
+
+        Assert.assertNull(service.pull(url));
+        Assert.assertFalse(service.delete(url, pulled));
+
+        service.push(url, messageBody);
+        Assert.assertEquals(messageBody, service.pull(url).getBody());
+    }
+
+    /**
+     * Test that a deleted queue can no longer be used, until it is created again.
+     */
+    @Test
+    public void testDeleteQueue() {
+
+        QueueService service = new InMemoryQueueService(new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        service.push(url, messageBody);
+        service.deleteQueue(url);
+
+        try {
+            service.pull(url);
+            Assert.fail("Expected NoSuchQueueException");
+        } catch (NoSuchQueueException e) {
+            // expected
+        }
+
+        url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        Assert.assertNull(service.pull(url));
+    }
+
+    /**
+     * Test that a queue handle shares the queue with the service, and fails once the queue is deleted.
+     */
+    @Test
+    public void testQueueHandle() {
+
+        QueueService service = new InMemoryQueueService(new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        QueueHandle queue = service.getQueueHandle(url);
+
+        Assert.assertEquals(url, queue.getQueueUrl());
+
+        queue.push(messageBody);
+        Message response = service.pull(url);
+        Assert.assertEquals(messageBody, response.getBody());
+        Assert.assertTrue(queue.delete(response));
+        Assert.assertNull(queue.pull());
+
+        service.deleteQueue(url);
+
+        try {
+            queue.push(messageBody);
+            Assert.fail("Expected NoSuchQueueException");
+        } catch (NoSuchQueueException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that a transfer deletes the message from the source and pushes it to the target, only once.
+     */
+    @Test
+    public void testTransfer() {
+
+        QueueService service = new InMemoryQueueService(new Clock());
+        String source = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        String target = service.createQueue(queueName + "-target", timeout, TimeUnit.MILLISECONDS);
+
+        service.push(source, messageBody);
+        Message msg = service.pull(source);
+
+        Assert.assertTrue(service.transfer(source, msg, target, null));
+        Assert.assertFalse(service.transfer(source, msg, target, null));
+        Assert.assertFalse(service.delete(source, msg));
+
+        Assert.assertEquals(messageBody, service.pull(target).getBody());
+        Assert.assertNull(service.pull(target));
+        Assert.assertNull(service.pull(source));
+    }
+
+    /**
+     * Test that messages are stamped when pushed and first pulled, and that redeliveries keep the first receive time.
+     */
+    @Test
+    public void testTimestamps() {
+
+        TestClock clock = new TestClock();
+        clock.time = 1000;
+
+        InMemoryQueueService service = new InMemoryQueueService(clock);
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        service.push(url, messageBody);
+
+        clock.time = 1500;
+        Message msg = service.pull(url);
+        Assert.assertEquals(1000, msg.getSentTimestamp());
+        Assert.assertEquals(1500, msg.getFirstReceiveTimestamp());
+
+        // redelivered after the visibility timeout
+        clock.time = 1500 + timeout;
+        Message redelivered = service.pull(url);
+        Assert.assertEquals(1500, redelivered.getFirstReceiveTimestamp());
+
+        clock.time = 2000 + timeout;
+        Assert.assertTrue(service.delete(url, redelivered));
+
+        QueueMetrics metrics = service.getMetrics(url);
+        Assert.assertEquals(1, metrics.getQueueWait().getCount());
+        Assert.assertEquals(500, metrics.getQueueWait().getMax());
+        Assert.assertEquals(500 + timeout, metrics.getProcessingTime().getMax());
+        Assert.assertEquals(1000 + timeout, metrics.getEndToEnd().getMax());
+    }
+
 }
@@ -0,0 +1,237 @@
+package org.yoong.aws;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.yoong.aws.Message.MessageBuilder;
+import org.yoong.aws.exceptions.QueueCapacityException;
+import org.yoong.aws.impl.OffHeapQueueService;
+import org.yoong.aws.metrics.QueueMetrics;
+import org.yoong.aws.util.Clock;
+import org.yoong.aws.util.VirtualClock;
+
+public class OffHeapQueueTest {
+
+    private final long timeout = 30000;
+    private final String queueName = "queue";
+    private final String messageBody = "message";
+
+    /**
+     * Test basic flows: push - pull - delete. And test for FIFO order, across several slabs.
+     */
+    @Test
+    public void testBasicFlow() {
+
+        OffHeapQueueService service = new OffHeapQueueService(1 << 20, 64, new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 100; i++) {
+            service.push(url, messageBody + i);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            Message response = service.pull(url);
+            Assert.assertEquals(messageBody + i, response.getBody());
+            Assert.assertTrue(service.delete(url, response));
+        }
+
+        // test that queue is empty and its records have been freed
+        Assert.assertNull(service.pull(url));
+        Assert.assertEquals(0, service.getUsedMemory());
+    }
+
+    /**
+     * Test deleting messages from a queue.
+     */
+    @Test
+    public void testQueueDeletion() {
+
+        OffHeapQueueService service = new OffHeapQueueService(1 << 20, new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        // deleting a random message should fail
+        Assert.assertFalse(service.delete(url, new MessageBuilder().build()));
+
+        // deleting a pulled message should succeed, but only once
+        service.push(url, messageBody);
+        Message msg = service.pull(url);
+        Assert.assertTrue(service.delete(url, msg));
+        Assert.assertFalse(service.delete(url, msg));
+        Assert.assertNull(service.pull(url));
+    }
+
+    /**
+     * Test that a message becomes visible again after a timeout, with a new receipt handle.
+     */
+    @Test
+    public void testVisibilityTimeout() {
+
+        OffHeapQueueService service = new OffHeapQueueService(1 << 20, new Clock());
+        String url = service.createQueue(queueName, 0, TimeUnit.MILLISECONDS);
+
+        service.push(url, messageBody);
+
+        Message first = service.pull(url);
+        Message second = service.pull(url);
+        Assert.assertEquals(messageBody, second.getBody());
+
+        // only the latest receipt handle can delete the message
+        Assert.assertFalse(service.delete(url, first));
+        Assert.assertTrue(service.delete(url, second));
+    }
+
+    /**
+     * Test that pushing fails once the memory cap is reached, and that deleting messages makes room again.
+     */
+    @Test
+    public void testMemoryCap() {
+
+        OffHeapQueueService service = new OffHeapQueueService(256, 128, new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        // each record takes 20 + 7 bytes, so two slabs hold 8 messages
+        for (int i = 0; i < 8; i++) {
+            service.push(url, messageBody);
+        }
+        Assert.assertEquals(256, service.getReservedMemory());
+
+        try {
+            service.push(url, messageBody);
+            Assert.fail("Expected the memory cap to be reached");
+        } catch (QueueCapacityException e) {
+            // expected
+        }
+
+        // draining the first slab returns it to the pool
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(service.delete(url, service.pull(url)));
+        }
+        service.push(url, messageBody);
+        Assert.assertEquals(256, service.getReservedMemory());
+
+        // a cap smaller than a single slab cannot be honoured
+        try {
+            new OffHeapQueueService(127, 128, new Clock());
+            Assert.fail("Expected the memory cap to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that a transfer to a queue which cannot take the message leaves it in the source.
+     */
+    @Test
+    public void testTransfer() {
+
+        OffHeapQueueService service = new OffHeapQueueService(256, 128, new Clock());
+        String source = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        String target = service.createQueue(queueName + "-target", timeout, TimeUnit.MILLISECONDS);
+
+        service.push(source, messageBody);
+        Message msg = service.pull(source);
+
+        // the target fills the second and last slab
+        for (int i = 0; i < 4; i++) {
+            service.push(target, messageBody);
+        }
+
+        try {
+            service.transfer(source, msg, target, null);
+            Assert.fail("Expected the memory cap to be reached");
+        } catch (QueueCapacityException e) {
+            // expected
+        }
+
+        // the first slab still has room, so the message can be moved within the source
+        Assert.assertTrue(service.transfer(source, msg, source, messageBody + "-moved"));
+        Assert.assertFalse(service.delete(source, msg));
+        Assert.assertEquals(messageBody + "-moved", service.pull(source).getBody());
+    }
+
+    /**
+     * Test that the sent timestamp is stamped on push, and the first receive timestamp on the first pull only. And test
+     * that the metrics are recorded from them.
+     */
+    @Test
+    public void testTimestamps() {
+
+        VirtualClock clock = new VirtualClock(1000);
+        OffHeapQueueService service = new OffHeapQueueService(1 << 20, 64, clock);
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        service.push(url, messageBody);
+
+        clock.advanceTo(1500);
+        Message msg = service.pull(url);
+        Assert.assertEquals(1000, msg.getSentTimestamp());
+        Assert.assertEquals(1500, msg.getFirstReceiveTimestamp());
+
+        // redelivered after the visibility timeout
+        clock.advanceTo(1500 + timeout);
+        Message redelivered = service.pull(url);
+        Assert.assertEquals(1000, redelivered.getSentTimestamp());
+        Assert.assertEquals(1500, redelivered.getFirstReceiveTimestamp());
+
+        clock.advanceTo(2000 + timeout);
+        Assert.assertTrue(service.delete(url, redelivered));
+
+        QueueMetrics metrics = service.getMetrics(url);
+        Assert.assertEquals(1, metrics.getQueueWait().getCount());
+        Assert.assertEquals(500, metrics.getQueueWait().getMax());
+        Assert.assertEquals(500 + timeout, metrics.getProcessingTime().getMax());
+        Assert.assertEquals(1000 + timeout, metrics.getEndToEnd().getMax());
+    }
+
+    /**
+     * Test that a receipt handle from before a queue is deleted and created again cannot delete a message of the new
+     * queue, although both have the same sequence number.
+     */
+    @Test
+    public void testRecreatedQueue() {
+
+        OffHeapQueueService service = new OffHeapQueueService(1 << 20, 64, new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        service.push(url, messageBody + 0);
+        Message stale = service.pull(url);
+
+        service.deleteQueue(url);
+        url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        service.push(url, messageBody + 1);
+        Message msg = service.pull(url);
+        Assert.assertFalse(service.delete(url, stale));
+        Assert.assertFalse(service.transfer(url, stale, url, null));
+
+        // the message is still in flight, and its own receipt handle deletes it
+        Assert.assertTrue(service.delete(url, msg));
+        Assert.assertEquals(0, service.getUsedMemory());
+    }
+
+    /**
+     * Test that purging frees every slab of the queue, and old receipt handles no longer delete anything.
+     */
+    @Test
+    public void testPurgeQueue() {
+
+        OffHeapQueueService service = new OffHeapQueueService(1 << 20, 64, new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 100; i++) {
+            service.push(url, messageBody + i);
+        }
+        Message pulled = service.pull(url);
+
+        service.purgeQueue(url);
+
+        Assert.assertEquals(0, service.getUsedMemory());
+        Assert.assertNull(service.pull(url));
+
+        service.push(url, messageBody);
+        Assert.assertFalse(service.delete(url, pulled));
+        Assert.assertEquals(messageBody, service.pull(url).getBody());
+    }
+
+}
@@ -0,0 +1,188 @@
+package org.yoong.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.yoong.aws.Message.MessageBuilder;
+import org.yoong.aws.impl.PartitionedQueueService;
+import org.yoong.aws.metrics.QueueMetrics;
+import org.yoong.aws.util.Clock;
+import org.yoong.aws.util.VirtualClock;
+
+public class PartitionedQueueTest {
+
+    private final long timeout = 30000;
+    private final String queueName = "queue";
+    private final String messageBody = "message";
+
+    private final File homeDirectory1 = new File("PartitionedQueueTest1");
+    private final File homeDirectory2 = new File("PartitionedQueueTest2");
+
+    @Before
+    public void before() throws IOException {
+        cleanUp(homeDirectory1);
+        cleanUp(homeDirectory2);
+    }
+
+    /**
+     * Test that every message pushed is pulled exactly once, stealing from partitions other than the home partition.
+     */
+    @Test
+    public void testInMemoryPartitions() {
+
+        QueueService service = PartitionedQueueService.inMemory(4, new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 20; i++) {
+            service.push(url, messageBody + i);
+        }
+
+        Set<String> bodies = new HashSet<String>();
+        for (int i = 0; i < 20; i++) {
+            Message response = service.pull(url);
+            Assert.assertTrue(bodies.add(response.getBody()));
+            Assert.assertTrue(service.delete(url, response));
+        }
+
+        Assert.assertEquals(20, bodies.size());
+        Assert.assertNull(service.pull(url));
+    }
+
+    /**
+     * Test that partitions are spread across home directories.
+     */
+    @Test
+    public void testFilePartitions() {
+
+        QueueService service = PartitionedQueueService.fileBacked(Arrays.asList(homeDirectory1, homeDirectory2), 2,
+                new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        service.push(url, messageBody + 0);
+        service.push(url, messageBody + 1);
+
+        // a queue folder, and the lock of the home directory
+        Assert.assertEquals(2, homeDirectory1.list().length);
+        Assert.assertEquals(2, homeDirectory2.list().length);
+
+        Set<String> bodies = new HashSet<String>();
+        for (int i = 0; i < 2; i++) {
+            Message response = service.pull(url);
+            bodies.add(response.getBody());
+            Assert.assertTrue(service.delete(url, response));
+        }
+
+        Assert.assertEquals(new HashSet<String>(Arrays.asList(messageBody + 0, messageBody + 1)), bodies);
+        Assert.assertNull(service.pull(url));
+    }
+
+    /**
+     * Test that a message is transferred to a partition of the target in the same home directory.
+     */
+    @Test
+    public void testTransfer() {
+
+        QueueService service = PartitionedQueueService.fileBacked(Arrays.asList(homeDirectory1, homeDirectory2), 2,
+                new Clock());
+        String source = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        String target = service.createQueue(queueName + "-target", timeout, TimeUnit.MILLISECONDS);
+
+        service.push(source, messageBody);
+        Message msg = service.pull(source);
+        String partition = msg.getReceiptHandle().substring(0, msg.getReceiptHandle().indexOf('#') + 1);
+
+        Assert.assertTrue(service.transfer(source, msg, target, messageBody + "-moved"));
+        Assert.assertFalse(service.delete(source, msg));
+        Assert.assertNull(service.pull(source));
+
+        Message moved = service.pull(target);
+        Assert.assertEquals(messageBody + "-moved", moved.getBody());
+        Assert.assertTrue(moved.getReceiptHandle().startsWith(partition));
+    }
+
+    /**
+     * Test that messages without a partitioned receipt handle cannot be deleted.
+     */
+    @Test
+    public void testQueueDeletion() {
+
+        QueueService service = PartitionedQueueService.inMemory(2, new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        Assert.assertFalse(service.delete(url, new MessageBuilder().build()));
+        Assert.assertFalse(service.delete(url, new MessageBuilder().setReceiptHandle("7#handle").build()));
+
+        service.push(url, messageBody);
+        Message msg = service.pull(url);
+        Assert.assertTrue(service.delete(url, msg));
+        Assert.assertFalse(service.delete(url, msg));
+    }
+
+    /**
+     * Test that the metrics of a queue sum the metrics of its partitions.
+     */
+    @Test
+    public void testMetrics() {
+
+        VirtualClock clock = new VirtualClock(1000);
+        PartitionedQueueService service = PartitionedQueueService.inMemory(4, clock);
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 4; i++) {
+            service.push(url, messageBody + i);
+        }
+
+        clock.advanceTo(1500);
+        Message first = service.pull(url);
+        clock.advanceTo(1700);
+        Message second = service.pull(url);
+        Assert.assertTrue(service.delete(url, first));
+        Assert.assertTrue(service.delete(url, second));
+
+        QueueMetrics metrics = service.getMetrics(url);
+        Assert.assertEquals(2, metrics.getQueueWait().getCount());
+        Assert.assertEquals(700, metrics.getQueueWait().getMax());
+        Assert.assertEquals(2, metrics.getProcessingTime().getCount());
+        Assert.assertEquals(200, metrics.getProcessingTime().getMax());
+        Assert.assertEquals(700, metrics.getEndToEnd().getMax());
+    }
+
+    @After
+    public void after() throws IOException {
+        cleanUp(homeDirectory1);
+        cleanUp(homeDirectory2);
+    }
+
+    private void cleanUp(File directory) throws IOException {
+        if (!directory.exists()) {
+            return;
+        }
+
+        Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
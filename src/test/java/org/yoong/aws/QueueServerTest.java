@@ -0,0 +1,220 @@
+package org.yoong.aws;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.yoong.aws.exceptions.NoSuchQueueException;
+import org.yoong.aws.impl.InMemoryQueueService;
+import org.yoong.aws.net.QueueClient;
+import org.yoong.aws.net.QueueServer;
+import org.yoong.aws.util.Clock;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+public class QueueServerTest {
+
+    private final long timeout = 30000;
+    private final String queueName = "queue";
+    private final String messageBody = "message\nmessage";
+
+    private QueueServer server;
+    private QueueClient client;
+
+    @Before
+    public void before() {
+        server = new QueueServer(new InMemoryQueueService(new Clock()),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+        server.start();
+        client = new QueueClient(server.getAddress());
+    }
+
+    /**
+     * Test basic flows through the server: push - pull - delete. And test for FIFO order.
+     */
+    @Test
+    public void testBasicFlow() {
+
+        String url = client.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 3; i++) {
+            client.push(url, messageBody + i);
+        }
+
+        for (int i = 0; i < 3; i++) {
+            Message response = client.pull(url);
+            Assert.assertEquals(messageBody + i, response.getBody());
+            Assert.assertTrue(client.delete(url, response));
+            Assert.assertFalse(client.delete(url, response));
+        }
+
+        Assert.assertNull(client.pull(url));
+    }
+
+    @Test(expected = NoSuchQueueException.class)
+    public void testQueueDoesNotExist() {
+        client.push("test", messageBody);
+    }
+
+    /**
+     * Test purging and deleting a queue through the server.
+     */
+    @Test(expected = NoSuchQueueException.class)
+    public void testPurgeAndDeleteQueue() {
+
+        String url = client.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        client.push(url, messageBody);
+        client.purgeQueue(url);
+        Assert.assertNull(client.pull(url));
+
+        client.deleteQueue(url);
+        client.pull(url);
+    }
+
+    /**
+     * Test batched pushes and pulls.
+     */
+    @Test
+    public void testBatch() {
+
+        String url = client.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        client.pushBatch(url, Arrays.asList(messageBody + 0, messageBody + 1, messageBody + 2));
+
+        List<Message> msgs = client.pullBatch(url, 5);
+        Assert.assertEquals(3, msgs.size());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(messageBody + i, msgs.get(i).getBody());
+        }
+        Assert.assertTrue(client.pullBatch(url, 5).isEmpty());
+    }
+
+    /**
+     * Test that requests pipelined by many threads on one connection each get their own response.
+     */
+    @Test
+    public void testPipelining() throws InterruptedException {
+
+        final String url = client.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        final Set<String> pulled = Collections.synchronizedSet(new HashSet<String>());
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 250; i++) {
+                        client.push(url, messageBody + thread + "-" + i);
+                        Message msg = client.pull(url);
+                        pulled.add(msg.getBody());
+                        client.delete(url, msg);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(1000, pulled.size());
+        Assert.assertNull(client.pull(url));
+    }
+
+    /**
+     * Test that the server stops reading from a client which does not read its responses, and serves every request
+     * once the client catches up.
+     */
+    @Test
+    public void testBackpressure() throws IOException, InterruptedException {
+
+        // large queue names and bodies, so a few requests in the socket buffers produce megabytes of responses
+        String longName = Strings.repeat("q", 16 * 1024);
+        String url = client.createQueue(longName, 0, TimeUnit.MILLISECONDS);
+        client.push(url, Strings.repeat("m", 16 * 1024));
+
+        // a pull request frame : [length][requestId][operation][url]
+        byte[] name = url.getBytes(Charsets.UTF_8);
+        ByteBuffer request = ByteBuffer.allocate(4 + 4 + 1 + 4 + name.length);
+        request.putInt(request.capacity() - 4).putInt(1).put((byte) 3).putInt(name.length).put(name).flip();
+
+        SocketChannel channel = SocketChannel.open(server.getAddress());
+        try {
+            channel.configureBlocking(false);
+
+            // pipeline pulls without reading, until the server stops reading them
+            long limit = 64 << 20;
+            long written = 0;
+            long stalledSince = System.currentTimeMillis();
+            int sent = 0;
+            while (System.currentTimeMillis() - stalledSince < 500 && written < limit) {
+                int bytes = channel.write(request);
+                if (bytes > 0) {
+                    written += bytes;
+                    stalledSince = System.currentTimeMillis();
+                } else {
+                    Thread.sleep(1);
+                }
+                if (!request.hasRemaining()) {
+                    request.rewind();
+                    sent++;
+                }
+            }
+            Assert.assertTrue("Server kept reading " + written + " bytes", written < limit);
+
+            // finish the last request, and read a response for every request
+            if (request.position() > 0) {
+                sent++;
+            } else {
+                request.limit(0);
+            }
+            ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+            int received = 0;
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+            while (received < sent) {
+                Assert.assertTrue("Timed out after " + received + " of " + sent, System.currentTimeMillis() < deadline);
+                channel.write(request);
+                if (channel.read(in) < 0) {
+                    Assert.fail("Server closed the connection");
+                }
+                in.flip();
+                while (in.remaining() >= 4 && in.remaining() >= 4 + in.getInt(in.position())) {
+                    in.position(in.position() + 4 + in.getInt(in.position()));
+                    received++;
+                }
+                in.compact();
+                if (in.position() == in.capacity()) {
+                    in = ByteBuffer.allocate(in.capacity() * 2).put((ByteBuffer) in.flip());
+                }
+            }
+        } finally {
+            channel.close();
+        }
+
+        Assert.assertEquals(Strings.repeat("m", 16 * 1024), client.pull(url).getBody());
+    }
+
+    @After
+    public void after() {
+        client.close();
+        server.close();
+    }
+}
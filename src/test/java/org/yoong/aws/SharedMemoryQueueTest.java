@@ -0,0 +1,381 @@
+package org.yoong.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.yoong.aws.Message.MessageBuilder;
+import org.yoong.aws.exceptions.QueueCapacityException;
+import org.yoong.aws.impl.SharedMemoryQueueService;
+import org.yoong.aws.metrics.QueueMetrics;
+import org.yoong.aws.util.Clock;
+import org.yoong.aws.util.VirtualClock;
+
+public class SharedMemoryQueueTest {
+
+    private final long timeout = 50000;
+    private final String queueName = "queue/../foo";
+    private final String messageBody = "message\nmessage";
+
+    private final File serviceDirectory = new File("SharedMemoryQueueTest");
+
+    @Before
+    public void before() throws IOException {
+        cleanUp(serviceDirectory);
+    }
+
+    /**
+     * Test basic flows: push - pull - delete. And test for FIFO order, across several laps of the ring.
+     */
+    @Test
+    public void testBasicFlow() {
+
+        SharedMemoryQueueService service = new SharedMemoryQueueService(serviceDirectory, 4, 64, new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 3; i++) {
+                service.push(url, messageBody + i);
+            }
+
+            for (int i = 0; i < 3; i++) {
+                Message response = service.pull(url);
+                Assert.assertEquals(messageBody + i, response.getBody());
+                Assert.assertTrue(service.delete(url, response));
+            }
+        }
+
+        Assert.assertNull(service.pull(url));
+    }
+
+    /**
+     * Test that two JVMs mapping the same home directory share the queue. A child JVM pulls and deletes every message
+     * pushed by this one, and pushes a reply for each, while both wrap around a small ring.
+     */
+    @Test
+    public void testCrossJvm() throws IOException, InterruptedException {
+
+        int messages = 100;
+        SharedMemoryQueueService service = new SharedMemoryQueueService(serviceDirectory, 16, 64, new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        String replies = service.createQueue(queueName + "-replies", timeout, TimeUnit.MILLISECONDS);
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                EchoProcess.class.getName(), serviceDirectory.getPath(), queueName, String.valueOf(messages))
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.INHERIT).start();
+
+        try {
+            // push while the child makes room, and take its replies as they come
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+            int pushed = 0;
+            int received = 0;
+            while (received < messages) {
+                Assert.assertTrue("Timed out waiting for the child JVM", System.currentTimeMillis() < deadline);
+
+                boolean progress = false;
+                if (pushed < messages) {
+                    try {
+                        service.push(url, messageBody + pushed);
+                        pushed++;
+                        progress = true;
+                    } catch (QueueCapacityException e) {
+                        // ring is full until the child deletes
+                    }
+                }
+
+                Message reply = service.pull(replies);
+                if (reply != null) {
+                    Assert.assertEquals("echo " + messageBody + received, reply.getBody());
+                    Assert.assertTrue(service.delete(replies, reply));
+                    received++;
+                    progress = true;
+                }
+
+                if (!progress) {
+                    Thread.sleep(1);
+                }
+            }
+
+            Assert.assertEquals(0, child.waitFor());
+        } finally {
+            child.destroy();
+        }
+
+        Assert.assertNull(service.pull(url));
+        Assert.assertNull(service.pull(replies));
+    }
+
+    /**
+     * Child JVM of {@link SharedMemoryQueueTest#testCrossJvm}.
+     *
+     * Usage : <code>EchoProcess directory queueName messages</code>
+     */
+    public static class EchoProcess {
+
+        public static void main(String[] args) throws InterruptedException {
+
+            SharedMemoryQueueService service = new SharedMemoryQueueService(new File(args[0]), 16, 64, new Clock());
+            String url = service.createQueue(args[1], 50000, TimeUnit.MILLISECONDS);
+            String replies = service.createQueue(args[1] + "-replies", 50000, TimeUnit.MILLISECONDS);
+            int messages = Integer.parseInt(args[2]);
+
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+            for (int i = 0; i < messages; i++) {
+                Message msg;
+                while ((msg = service.pull(url)) == null) {
+                    if (System.currentTimeMillis() > deadline) {
+                        System.exit(1);
+                    }
+                    Thread.sleep(1);
+                }
+                if (!service.delete(url, msg)) {
+                    System.exit(2);
+                }
+
+                // the parent frees slots of the reply ring as it pulls
+                while (true) {
+                    try {
+                        service.push(replies, "echo " + msg.getBody());
+                        break;
+                    } catch (QueueCapacityException e) {
+                        Thread.sleep(1);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Test that a message becomes visible again after a timeout, and only the latest receipt handle deletes it.
+     */
+    @Test
+    public void testVisibilityTimeout() throws InterruptedException {
+
+        SharedMemoryQueueService service = new SharedMemoryQueueService(serviceDirectory, 16, 64, new Clock());
+        String url = service.createQueue(queueName, 1, TimeUnit.MILLISECONDS);
+
+        service.push(url, messageBody);
+
+        Assert.assertFalse(service.delete(url, new MessageBuilder().build()));
+
+        Message first = service.pull(url);
+        Thread.sleep(5);
+        Message second = service.pull(url);
+        Assert.assertEquals(messageBody, second.getBody());
+
+        Assert.assertFalse(service.delete(url, first));
+        Assert.assertTrue(service.delete(url, second));
+    }
+
+    /**
+     * Test that a transfer moves a message, and that a transfer to a full ring leaves the message in the source.
+     */
+    @Test
+    public void testTransfer() {
+
+        SharedMemoryQueueService service = new SharedMemoryQueueService(serviceDirectory, 2, 64, new Clock());
+        String source = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        String target = service.createQueue(queueName + "-target", timeout, TimeUnit.MILLISECONDS);
+
+        service.push(source, messageBody);
+        Message msg = service.pull(source);
+
+        service.push(target, messageBody + 0);
+        service.push(target, messageBody + 1);
+
+        try {
+            service.transfer(source, msg, target, null);
+            Assert.fail("Expected the target ring to be full");
+        } catch (QueueCapacityException e) {
+            // expected
+        }
+
+        // once the target has room, the message is moved with its body
+        Assert.assertTrue(service.delete(target, service.pull(target)));
+        Assert.assertTrue(service.transfer(source, msg, target, null));
+        Assert.assertFalse(service.transfer(source, msg, target, null));
+        Assert.assertNull(service.pull(source));
+
+        Assert.assertEquals(messageBody + 1, service.pull(target).getBody());
+        Assert.assertEquals(messageBody, service.pull(target).getBody());
+    }
+
+    /**
+     * Test that the sent timestamp is stamped on push, and the first receive timestamp on the first pull only. And test
+     * that the metrics are recorded from them.
+     */
+    @Test
+    public void testTimestamps() {
+
+        VirtualClock clock = new VirtualClock(1000);
+        SharedMemoryQueueService service = new SharedMemoryQueueService(serviceDirectory, 16, 64, clock);
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        service.push(url, messageBody);
+
+        clock.advanceTo(1500);
+        Message msg = service.pull(url);
+        Assert.assertEquals(1000, msg.getSentTimestamp());
+        Assert.assertEquals(1500, msg.getFirstReceiveTimestamp());
+
+        // redelivered after the visibility timeout
+        clock.advanceTo(1500 + timeout);
+        Message redelivered = service.pull(url);
+        Assert.assertEquals(1000, redelivered.getSentTimestamp());
+        Assert.assertEquals(1500, redelivered.getFirstReceiveTimestamp());
+
+        clock.advanceTo(2000 + timeout);
+        Assert.assertTrue(service.delete(url, redelivered));
+
+        QueueMetrics metrics = service.getMetrics(url);
+        Assert.assertEquals(1, metrics.getQueueWait().getCount());
+        Assert.assertEquals(500, metrics.getQueueWait().getMax());
+        Assert.assertEquals(500 + timeout, metrics.getProcessingTime().getMax());
+        Assert.assertEquals(1000 + timeout, metrics.getEndToEnd().getMax());
+    }
+
+    /**
+     * Test that a full ring rejects pushes until its oldest message is deleted.
+     */
+    @Test
+    public void testCapacity() {
+
+        SharedMemoryQueueService service = new SharedMemoryQueueService(serviceDirectory, 2, 64, new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        service.push(url, messageBody);
+        service.push(url, messageBody);
+
+        try {
+            service.push(url, messageBody);
+            Assert.fail("Expected the ring to be full");
+        } catch (QueueCapacityException e) {
+            // expected
+        }
+
+        Assert.assertTrue(service.delete(url, service.pull(url)));
+        service.push(url, messageBody);
+    }
+
+    /**
+     * Test that concurrent producers and consumers deliver every message exactly once, while wrapping around a small
+     * ring.
+     */
+    @Test
+    public void testConcurrentDelivery() throws InterruptedException {
+
+        final SharedMemoryQueueService service = new SharedMemoryQueueService(serviceDirectory, 64, 64, new Clock());
+        final String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        final Set<String> pulled = Collections.synchronizedSet(new HashSet<String>());
+        final AtomicInteger duplicates = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 500; i++) {
+                        try {
+                            service.push(url, thread + "-" + i);
+                        } catch (QueueCapacityException e) {
+                            // ring is full, retry once consumers have made room
+                            i--;
+                            Thread.yield();
+                        }
+                    }
+                }
+            }));
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int received = 0;
+                    while (received < 500) {
+                        Message msg = service.pull(url);
+                        if (msg != null) {
+                            received++;
+                            if (!pulled.add(msg.getBody())) {
+                                duplicates.incrementAndGet();
+                            }
+                            service.delete(url, msg);
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(0, duplicates.get());
+        Assert.assertEquals(2000, pulled.size());
+        Assert.assertNull(service.pull(url));
+    }
+
+    /**
+     * Test that purging frees every slot of a full ring, including pulled messages.
+     */
+    @Test
+    public void testPurgeQueue() {
+
+        SharedMemoryQueueService service = new SharedMemoryQueueService(serviceDirectory, 2, 64, new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        service.push(url, messageBody);
+        service.push(url, messageBody);
+        Message pulled = service.pull(url);
+
+        service.purgeQueue(url);
+
+        Assert.assertNull(service.pull(url));
+        Assert.assertFalse(service.delete(url, pulled));
+
+        service.push(url, messageBody + 0);
+        service.push(url, messageBody + 1);
+        Assert.assertEquals(messageBody + 0, service.pull(url).getBody());
+    }
+
+    @After
+    public void after() throws IOException {
+        cleanUp(serviceDirectory);
+    }
+
+    private void cleanUp(File directory) throws IOException {
+        if (!directory.exists()) {
+            return;
+        }
+
+        Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
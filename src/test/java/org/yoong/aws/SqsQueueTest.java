@@ -0,0 +1,372 @@
+package org.yoong.aws;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.yoong.aws.exceptions.QueueThrottledException;
+import org.yoong.aws.impl.SqsQueueService;
+import org.yoong.aws.impl.SqsReceiveController;
+import org.yoong.aws.metrics.QueueMetrics;
+import org.yoong.aws.util.Compression;
+import org.yoong.aws.util.VirtualClock;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.PurgeQueueRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+
+public class SqsQueueTest {
+
+    private final String queueUrl = "https://sqs.us-east-1.amazonaws.com/123456789012/queue";
+    private final long maxBufferedMillis = 5000;
+
+    private AmazonSQS sqs;
+    private VirtualClock clock;
+    private SqsReceiveController controller;
+    private SqsQueueService service;
+
+    // bodies waiting in the stubbed queue
+    private final List<String> backlog = new ArrayList<String>();
+
+    @Before
+    public void before() {
+        sqs = Mockito.mock(AmazonSQS.class);
+        clock = new VirtualClock(1000);
+        controller = new SqsReceiveController(clock, maxBufferedMillis);
+        service = new SqsQueueService(sqs, Compression.DISABLED, controller);
+
+        // receive up to the requested number of messages from the backlog
+        Mockito.when(sqs.receiveMessage(Mockito.any(ReceiveMessageRequest.class))).thenAnswer(
+                new Answer<ReceiveMessageResult>() {
+                    @Override
+                    public ReceiveMessageResult answer(InvocationOnMock invocation) {
+                        ReceiveMessageRequest request = (ReceiveMessageRequest) invocation.getArguments()[0];
+                        int max = (request.getMaxNumberOfMessages() == null) ? 1 : request.getMaxNumberOfMessages();
+                        List<com.amazonaws.services.sqs.model.Message> msgs =
+                                new ArrayList<com.amazonaws.services.sqs.model.Message>();
+                        while (msgs.size() < max && !backlog.isEmpty()) {
+                            String body = backlog.remove(0);
+                            msgs.add(new com.amazonaws.services.sqs.model.Message().withBody(body)
+                                    .withReceiptHandle("receipt-" + body));
+                        }
+                        return new ReceiveMessageResult().withMessages(msgs);
+                    }
+                });
+    }
+
+    /**
+     * Test that the batch size grows while receives come back full, and that buffered messages are pulled in order.
+     */
+    @Test
+    public void testAdaptiveBatching() {
+
+        for (int i = 0; i < 50; i++) {
+            backlog.add("message" + i);
+        }
+
+        for (int i = 0; i < 50; i++) {
+            Message msg = service.pull(queueUrl);
+            Assert.assertEquals("message" + i, msg.getBody());
+            Assert.assertEquals("receipt-message" + i, msg.getReceiptHandle());
+        }
+
+        // batches of 1, 2, 4, 8, 10, 10, 10, 5, after which the batch size follows the recent yield
+        Assert.assertEquals(8, controller.getRequests(queueUrl));
+        Assert.assertEquals(7, controller.getBatchSize(queueUrl));
+        Assert.assertEquals(50, controller.getDelivered(queueUrl));
+        Assert.assertEquals(42.0 / 50, controller.getRequestsSavedPerMessage(queueUrl), 0.001);
+    }
+
+    /**
+     * Test that messages buffered for too long are dropped rather than pulled.
+     */
+    @Test
+    public void testBufferedMessagesExpire() {
+
+        for (int i = 0; i < 3; i++) {
+            backlog.add("message" + i);
+        }
+
+        // receive 1, then a batch of 2 with one buffered
+        Assert.assertEquals("message0", service.pull(queueUrl).getBody());
+        Assert.assertEquals("message1", service.pull(queueUrl).getBody());
+
+        clock.advance(maxBufferedMillis + 1);
+        backlog.add("message3");
+
+        Assert.assertEquals("message3", service.pull(queueUrl).getBody());
+        Assert.assertEquals(1, controller.getExpired(queueUrl));
+    }
+
+    /**
+     * Test that empty receives grow the long poll wait, then back off without sending requests.
+     */
+    @Test
+    public void testEmptyReceiveBackoff() {
+
+        int[] waits = { 0, 1, 2, 4, 8, 16, 20 };
+        for (int wait : waits) {
+            Assert.assertEquals(wait, controller.getWaitSeconds(queueUrl));
+            Assert.assertNull(service.pull(queueUrl));
+        }
+        Assert.assertEquals(waits.length, controller.getRequests(queueUrl));
+
+        // backing off for the minimum backoff
+        Assert.assertNull(service.pull(queueUrl));
+        Assert.assertEquals(waits.length, controller.getRequests(queueUrl));
+
+        clock.advance(SqsReceiveController.MIN_BACKOFF);
+        backlog.add("message");
+        Assert.assertEquals("message", service.pull(queueUrl).getBody());
+        Assert.assertEquals(waits.length + 1, controller.getRequests(queueUrl));
+        Assert.assertEquals(SqsReceiveController.MAX_WAIT_SECONDS / 2, controller.getWaitSeconds(queueUrl));
+
+        // the pull while backing off delivered nothing, so it saved no request
+        Assert.assertEquals(waits.length + 2, controller.getPulls(queueUrl));
+        Assert.assertEquals(0, controller.getRequestsSavedPerMessage(queueUrl), 0.001);
+    }
+
+    /**
+     * Test that reading the metrics of a queue never pulled returns the initial values, without keeping receive state
+     * for it.
+     */
+    @Test
+    public void testUnknownQueueMetrics() {
+
+        String unknownUrl = queueUrl + "-unknown";
+
+        Assert.assertEquals(1, controller.getBatchSize(unknownUrl));
+        Assert.assertEquals(0, controller.getWaitSeconds(unknownUrl));
+        Assert.assertEquals(0, controller.getPulls(unknownUrl));
+        Assert.assertEquals(0, controller.getRequests(unknownUrl));
+        Assert.assertEquals(0, controller.getDelivered(unknownUrl));
+        Assert.assertEquals(0, controller.getThrottled(unknownUrl));
+        Assert.assertEquals(0, controller.getExpired(unknownUrl));
+        Assert.assertEquals(0, controller.getRequestsSavedPerMessage(unknownUrl), 0.001);
+        Assert.assertTrue(controller.getQueueUrls().isEmpty());
+
+        backlog.add("message");
+        service.pull(queueUrl);
+        Assert.assertEquals(Collections.singleton(queueUrl), controller.getQueueUrls());
+    }
+
+    /**
+     * Test that a throttled receive is reported, and backs off with the largest batch size.
+     */
+    @Test
+    public void testThrottling() {
+
+        AmazonServiceException throttled = new AmazonServiceException("Rate exceeded");
+        throttled.setErrorCode("RequestThrottled");
+        Mockito.doThrow(throttled).when(sqs).receiveMessage(Mockito.any(ReceiveMessageRequest.class));
+
+        try {
+            service.pull(queueUrl);
+            Assert.fail("Expected QueueThrottledException");
+        } catch (QueueThrottledException e) {
+            Assert.assertSame(throttled, e.getCause());
+        }
+
+        // backing off, so no request is sent
+        Assert.assertNull(service.pull(queueUrl));
+        Mockito.verify(sqs, Mockito.times(1)).receiveMessage(Mockito.any(ReceiveMessageRequest.class));
+
+        Assert.assertEquals(1, controller.getThrottled(queueUrl));
+        Assert.assertEquals(SqsReceiveController.MAX_BATCH_SIZE, controller.getBatchSize(queueUrl));
+    }
+
+    /**
+     * Test that purging a queue drops its buffered messages, but keeps its receive state.
+     */
+    @Test
+    public void testPurgeQueue() {
+
+        for (int i = 0; i < 3; i++) {
+            backlog.add("message" + i);
+        }
+
+        // receive 1, then a batch of 2 with one buffered
+        Assert.assertEquals("message0", service.pull(queueUrl).getBody());
+        Assert.assertEquals("message1", service.pull(queueUrl).getBody());
+
+        service.purgeQueue(queueUrl);
+        Mockito.verify(sqs).purgeQueue(Mockito.any(PurgeQueueRequest.class));
+
+        backlog.add("message3");
+        Assert.assertEquals("message3", service.pull(queueUrl).getBody());
+        Assert.assertEquals(3, controller.getRequests(queueUrl));
+        Assert.assertEquals(0, controller.getExpired(queueUrl));
+    }
+
+    /**
+     * Test that deleting a queue forgets its buffered messages and receive state.
+     */
+    @Test
+    public void testDeleteQueue() {
+
+        for (int i = 0; i < 3; i++) {
+            backlog.add("message" + i);
+        }
+
+        Assert.assertEquals("message0", service.pull(queueUrl).getBody());
+        Assert.assertEquals("message1", service.pull(queueUrl).getBody());
+
+        service.deleteQueue(queueUrl);
+        Mockito.verify(sqs).deleteQueue(queueUrl);
+
+        // a queue created again with the same url starts afresh
+        backlog.add("message3");
+        Assert.assertEquals("message3", service.pull(queueUrl).getBody());
+        Assert.assertEquals(1, controller.getRequests(queueUrl));
+        Assert.assertEquals(2, controller.getBatchSize(queueUrl));
+    }
+
+    /**
+     * Test that large bodies are sent deflated and marked with a Content-Encoding attribute, and inflated on receive.
+     */
+    @Test
+    public void testCompression() {
+
+        SqsQueueService compressing = new SqsQueueService(sqs, 64, null);
+
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            large.append("message").append(i % 10);
+        }
+
+        final List<SendMessageRequest> sent = new ArrayList<SendMessageRequest>();
+        Mockito.when(sqs.sendMessage(Mockito.any(SendMessageRequest.class))).thenAnswer(
+                new Answer<SendMessageResult>() {
+                    @Override
+                    public SendMessageResult answer(InvocationOnMock invocation) {
+                        sent.add((SendMessageRequest) invocation.getArguments()[0]);
+                        return new SendMessageResult();
+                    }
+                });
+
+        compressing.push(queueUrl, "small");
+        compressing.push(queueUrl, large.toString());
+
+        // bodies below the threshold are sent as they are
+        Mockito.verify(sqs).sendMessage(queueUrl, "small");
+
+        Assert.assertEquals(1, sent.size());
+        SendMessageRequest request = sent.get(0);
+        Assert.assertEquals("deflate",
+                request.getMessageAttributes().get(SqsQueueService.CONTENT_ENCODING).getStringValue());
+        Assert.assertTrue(request.getMessageBody().length() < large.length());
+
+        // receive the message as SQS delivers it, with its attributes
+        com.amazonaws.services.sqs.model.Message received = new com.amazonaws.services.sqs.model.Message()
+                .withBody(request.getMessageBody()).withReceiptHandle("receipt")
+                .withMessageAttributes(request.getMessageAttributes());
+        Mockito.doReturn(new ReceiveMessageResult().withMessages(received)).when(sqs)
+                .receiveMessage(Mockito.any(ReceiveMessageRequest.class));
+
+        Message msg = compressing.pull(queueUrl);
+        Assert.assertEquals(large.toString(), msg.getBody());
+        Assert.assertEquals("receipt", msg.getReceiptHandle());
+    }
+
+    /**
+     * Test that a transfer pushes to the target before deleting from the source, so a failed delete duplicates the
+     * message rather than losing it.
+     */
+    @Test
+    public void testTransfer() {
+
+        String targetUrl = queueUrl + "-target";
+        Message msg = new Message.MessageBuilder().setBody("message").setReceiptHandle("receipt").build();
+
+        Assert.assertTrue(service.transfer(queueUrl, msg, targetUrl, "moved"));
+        Mockito.verify(sqs).sendMessage(targetUrl, "moved");
+        Mockito.verify(sqs).deleteMessage(queueUrl, "receipt");
+
+        AmazonServiceException invalid = new AmazonServiceException("Receipt handle is invalid");
+        invalid.setErrorCode("ReceiptHandleIsInvalid");
+        Mockito.doThrow(invalid).when(sqs).deleteMessage(queueUrl, "receipt");
+
+        try {
+            service.transfer(queueUrl, msg, targetUrl, null);
+            Assert.fail("Expected the delete to fail");
+        } catch (AmazonServiceException e) {
+            Assert.assertSame(invalid, e);
+        }
+        Mockito.verify(sqs).sendMessage(targetUrl, "message");
+    }
+
+    /**
+     * Test that the queue wait is recorded on the first receive only, from the timestamps of SQS, and the processing
+     * time on delete, from the local clock.
+     */
+    @Test
+    public void testMetrics() {
+
+        // the same message, received for the first time and then redelivered
+        AmazonSQS redelivering = Mockito.mock(AmazonSQS.class);
+        Mockito.when(redelivering.receiveMessage(Mockito.any(ReceiveMessageRequest.class)))
+                .thenReturn(receiveResult(1))
+                .thenReturn(receiveResult(2));
+
+        SqsQueueService plain = new SqsQueueService(redelivering, Compression.DISABLED, null, clock);
+        Assert.assertEquals(0, plain.getMetrics(queueUrl).getQueueWait().getCount());
+
+        Message first = plain.pull(queueUrl);
+        Message redelivered = plain.pull(queueUrl);
+        Assert.assertEquals(1000, first.getSentTimestamp());
+        Assert.assertEquals(1300, redelivered.getFirstReceiveTimestamp());
+
+        clock.advanceTo(1800);
+        Assert.assertTrue(plain.delete(queueUrl, redelivered));
+
+        QueueMetrics metrics = plain.getMetrics(queueUrl);
+        Assert.assertEquals(1, metrics.getQueueWait().getCount());
+        Assert.assertEquals(300, metrics.getQueueWait().getMax());
+        Assert.assertEquals(1, metrics.getProcessingTime().getCount());
+        Assert.assertEquals(500, metrics.getProcessingTime().getMax());
+        Assert.assertEquals(800, metrics.getEndToEnd().getMax());
+
+        // deleting the queue drops its metrics
+        plain.deleteQueue(queueUrl);
+        Assert.assertEquals(0, plain.getMetrics(queueUrl).getEndToEnd().getCount());
+    }
+
+    /**
+     * Test that without a controller, every pull is a request for a single message.
+     */
+    @Test
+    public void testWithoutController() {
+
+        SqsQueueService plain = new SqsQueueService(sqs, Compression.DISABLED, null);
+        backlog.add("message0");
+        backlog.add("message1");
+
+        Assert.assertEquals("message0", plain.pull(queueUrl).getBody());
+        Assert.assertEquals("message1", plain.pull(queueUrl).getBody());
+        Assert.assertNull(plain.pull(queueUrl));
+        Mockito.verify(sqs, Mockito.times(3)).receiveMessage(Mockito.any(ReceiveMessageRequest.class));
+    }
+
+    private ReceiveMessageResult receiveResult(int receiveCount) {
+
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("SentTimestamp", "1000");
+        attributes.put("ApproximateFirstReceiveTimestamp", "1300");
+        attributes.put("ApproximateReceiveCount", String.valueOf(receiveCount));
+
+        return new ReceiveMessageResult().withMessages(new com.amazonaws.services.sqs.model.Message()
+                .withBody("message").withReceiptHandle("receipt-" + receiveCount).withAttributes(attributes));
+    }
+}
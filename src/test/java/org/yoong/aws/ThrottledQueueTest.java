@@ -0,0 +1,100 @@
+package org.yoong.aws;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.yoong.aws.exceptions.QueueThrottledException;
+import org.yoong.aws.impl.InMemoryQueueService;
+import org.yoong.aws.impl.ThrottledQueueService;
+import org.yoong.aws.util.Clock;
+
+public class ThrottledQueueTest {
+
+    private final long timeout = 30000;
+    private final String queueName = "queue";
+    private final String messageBody = "message";
+
+    /**
+     * Clock which only moves when told to.
+     */
+    private static class TestClock extends Clock {
+
+        long time;
+
+        @Override
+        public long getCurrentTime() {
+            return time;
+        }
+    }
+
+    /**
+     * Test that pushes over the limit are throttled until the bucket refills, and counted.
+     */
+    @Test
+    public void testPushLimit() {
+
+        TestClock clock = new TestClock();
+        ThrottledQueueService service = new ThrottledQueueService(new InMemoryQueueService(clock), clock);
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        // 10 pushes per second, with a burst of 2
+        service.setPushLimit(url, 10, 2);
+
+        service.push(url, messageBody);
+        service.push(url, messageBody);
+
+        try {
+            service.push(url, messageBody);
+            Assert.fail("Expected QueueThrottledException");
+        } catch (QueueThrottledException e) {
+            // expected
+        }
+
+        // a token is added every 100ms
+        clock.time += 100;
+        service.push(url, messageBody);
+
+        Assert.assertEquals(3, service.getAdmittedPushes(url));
+        Assert.assertEquals(1, service.getThrottledPushes(url));
+
+        // pulls and deletes are not limited
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(service.delete(url, service.pull(url)));
+        }
+        Assert.assertEquals(0, service.getThrottledPulls(url));
+    }
+
+    /**
+     * Test that the limits of one queue do not affect another queue, or handles of the other queue.
+     */
+    @Test
+    public void testPullLimitIsPerQueue() {
+
+        TestClock clock = new TestClock();
+        ThrottledQueueService service = new ThrottledQueueService(new InMemoryQueueService(clock), clock);
+        String noisy = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        String quiet = service.createQueue(queueName + "-quiet", timeout, TimeUnit.MILLISECONDS);
+
+        service.setPullLimit(noisy, 1, 1);
+
+        Assert.assertNull(service.pull(noisy));
+
+        try {
+            service.getQueueHandle(noisy).pull();
+            Assert.fail("Expected QueueThrottledException");
+        } catch (QueueThrottledException e) {
+            // expected
+        }
+
+        QueueHandle handle = service.getQueueHandle(quiet);
+        for (int i = 0; i < 10; i++) {
+            handle.push(messageBody);
+            Assert.assertEquals(messageBody, handle.pull().getBody());
+        }
+
+        Assert.assertEquals(1, service.getAdmittedPulls(noisy));
+        Assert.assertEquals(1, service.getThrottledPulls(noisy));
+        Assert.assertEquals(0, service.getThrottledPulls(quiet));
+    }
+}
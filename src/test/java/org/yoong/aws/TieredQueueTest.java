@@ -0,0 +1,189 @@
+package org.yoong.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.yoong.aws.Message.MessageBuilder;
+import org.yoong.aws.impl.TieredQueueService;
+import org.yoong.aws.metrics.QueueMetrics;
+import org.yoong.aws.util.Clock;
+import org.yoong.aws.util.VirtualClock;
+
+public class TieredQueueTest {
+
+    private final long timeout = 30000;
+    private final String queueName = "queue";
+    private final String messageBody = "message";
+
+    private final File spillDirectory = new File("TieredQueueTest");
+
+    @Before
+    public void before() throws IOException {
+        cleanUp(spillDirectory);
+    }
+
+    /**
+     * Test that FIFO order is kept while messages spill to disk and are read back in batches.
+     */
+    @Test
+    public void testSpillPreservesOrder() {
+
+        TieredQueueService service = new TieredQueueService(spillDirectory, 4, Long.MAX_VALUE, new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 20; i++) {
+            service.push(url, messageBody + i);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            Message response = service.pull(url);
+            Assert.assertEquals(messageBody + i, response.getBody());
+            Assert.assertTrue(service.delete(url, response));
+        }
+
+        // pushing while draining should still come after the spilled messages
+        service.push(url, messageBody + 20);
+
+        for (int i = 10; i <= 20; i++) {
+            Message response = service.pull(url);
+            Assert.assertEquals(messageBody + i, response.getBody());
+            Assert.assertTrue(service.delete(url, response));
+        }
+
+        Assert.assertNull(service.pull(url));
+    }
+
+    /**
+     * Test that spilled messages keep their sent timestamp, and that metrics cover both tiers.
+     */
+    @Test
+    public void testMetrics() {
+
+        VirtualClock clock = new VirtualClock(1000);
+        TieredQueueService service = new TieredQueueService(spillDirectory, 1, Long.MAX_VALUE, clock);
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        // the second message is spilled
+        service.push(url, messageBody + 0);
+        service.push(url, messageBody + 1);
+
+        clock.advanceTo(1500);
+        Message first = service.pull(url);
+        Message second = service.pull(url);
+        Assert.assertEquals(messageBody + 1, second.getBody());
+        Assert.assertEquals(1000, second.getSentTimestamp());
+        Assert.assertEquals(1500, second.getFirstReceiveTimestamp());
+
+        clock.advanceTo(1700);
+        Assert.assertTrue(service.delete(url, first));
+        Assert.assertTrue(service.delete(url, second));
+
+        QueueMetrics metrics = service.getMetrics(url);
+        Assert.assertEquals(2, metrics.getQueueWait().getCount());
+        Assert.assertEquals(500, metrics.getQueueWait().getMax());
+        Assert.assertEquals(200, metrics.getProcessingTime().getMax());
+        Assert.assertEquals(700, metrics.getEndToEnd().getMax());
+    }
+
+    /**
+     * Test that a transferred message keeps its place behind messages spilled to the target.
+     */
+    @Test
+    public void testTransfer() {
+
+        TieredQueueService service = new TieredQueueService(spillDirectory, 1, Long.MAX_VALUE, new Clock());
+        String source = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        String target = service.createQueue(queueName + "-target", timeout, TimeUnit.MILLISECONDS);
+
+        service.push(source, messageBody);
+        Message msg = service.pull(source);
+
+        // the second message is spilled, so the transferred one is spilled after it
+        service.push(target, messageBody + 0);
+        service.push(target, messageBody + 1);
+
+        Assert.assertTrue(service.transfer(source, msg, target, null));
+        Assert.assertFalse(service.delete(source, msg));
+        Assert.assertNull(service.pull(source));
+
+        Assert.assertEquals(messageBody + 0, service.pull(target).getBody());
+        Assert.assertEquals(messageBody + 1, service.pull(target).getBody());
+        Assert.assertEquals(messageBody, service.pull(target).getBody());
+        Assert.assertEquals(1, service.getMetrics(source).getEndToEnd().getCount());
+    }
+
+    /**
+     * Test that the byte limit also spills messages.
+     */
+    @Test
+    public void testByteLimit() {
+
+        // only the first message fits in memory
+        long maxBytes = 2 * (messageBody + 0).length();
+        TieredQueueService service = new TieredQueueService(spillDirectory, 100, maxBytes, new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        service.push(url, messageBody + 0);
+        service.push(url, messageBody + 1);
+
+        // a new service on the same spill directory only sees the spilled message
+        TieredQueueService service2 = new TieredQueueService(spillDirectory, 100, Long.MAX_VALUE, new Clock());
+        String url2 = service2.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        Assert.assertEquals(messageBody + 1, service2.pull(url2).getBody());
+        Assert.assertNull(service2.pull(url2));
+    }
+
+    /**
+     * Test that a message becomes invisible after the first pull, and that only pulled messages can be deleted.
+     */
+    @Test
+    public void testVisibility() {
+
+        TieredQueueService service = new TieredQueueService(spillDirectory, 1, Long.MAX_VALUE, new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        service.push(url, messageBody);
+
+        Assert.assertFalse(service.delete(url, new MessageBuilder().build()));
+
+        Message response = service.pull(url);
+        Assert.assertNull(service.pull(url));
+        Assert.assertTrue(service.delete(url, response));
+    }
+
+    @After
+    public void after() throws IOException {
+        cleanUp(spillDirectory);
+    }
+
+    private void cleanUp(File directory) throws IOException {
+        if (!directory.exists()) {
+            return;
+        }
+
+        Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
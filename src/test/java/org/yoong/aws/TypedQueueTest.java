@@ -0,0 +1,110 @@
+package org.yoong.aws;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.yoong.aws.codec.BytesCodec;
+import org.yoong.aws.codec.LongCodec;
+import org.yoong.aws.codec.StringCodec;
+import org.yoong.aws.impl.InMemoryQueueService;
+import org.yoong.aws.util.Clock;
+
+import com.google.common.io.BaseEncoding;
+
+public class TypedQueueTest {
+
+    private final long timeout = 30000;
+    private final String queueName = "queue";
+
+    /**
+     * Test push - pull - delete of values through each built-in codec.
+     */
+    @Test
+    public void testBasicFlow() {
+
+        QueueService service = new InMemoryQueueService(new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+
+        TypedQueue<Long> longs = new TypedQueue<Long>(service, url, new LongCodec());
+        longs.push(42L);
+        longs.push(Long.MIN_VALUE);
+
+        TypedMessage<Long> msg = longs.pull();
+        Assert.assertEquals(Long.valueOf(42), msg.getValue());
+        Assert.assertTrue(longs.delete(msg));
+        Assert.assertEquals(Long.valueOf(Long.MIN_VALUE), longs.pull().getValue());
+        Assert.assertNull(longs.pull());
+
+        TypedQueue<byte[]> bytes = new TypedQueue<byte[]>(service, url, new BytesCodec());
+        bytes.push(new byte[] { 0, 1, -1, 127 });
+        Assert.assertArrayEquals(new byte[] { 0, 1, -1, 127 }, bytes.pull().getValue());
+
+        TypedQueue<String> strings = new TypedQueue<String>(service, url, new StringCodec());
+        strings.push("message");
+        Assert.assertEquals("message", strings.pull().getValue());
+    }
+
+    /**
+     * Test that the buffer reused between pushes is cleared, including after a value too large to be retained.
+     */
+    @Test
+    public void testBufferReuse() {
+
+        QueueService service = new InMemoryQueueService(new Clock());
+        String url = service.createQueue(queueName, timeout, TimeUnit.MILLISECONDS);
+        TypedQueue<String> strings = new TypedQueue<String>(service, url, new StringCodec());
+
+        StringBuilder large = new StringBuilder();
+        while (large.length() <= TypedQueue.MAX_RETAINED_CAPACITY) {
+            large.append("large");
+        }
+
+        strings.push("first");
+        strings.push(large.toString());
+        strings.push("last");
+
+        Assert.assertEquals("first", strings.pull().getValue());
+        Assert.assertEquals(large.toString(), strings.pull().getValue());
+        Assert.assertEquals("last", strings.pull().getValue());
+    }
+
+    /**
+     * Test that the bytes codec writes the same base64 as Guava, for every padding, after what is already in the
+     * buffer.
+     */
+    @Test
+    public void testBytesCodec() {
+
+        BytesCodec codec = new BytesCodec();
+        Random random = new Random(7);
+
+        for (int length = 0; length < 40; length++) {
+            byte[] value = new byte[length];
+            random.nextBytes(value);
+
+            StringBuilder out = new StringBuilder("prefix");
+            codec.encode(value, out);
+            Assert.assertEquals("prefix" + BaseEncoding.base64().encode(value), out.toString());
+            Assert.assertArrayEquals(value, codec.decode(out.subSequence(6, out.length())));
+        }
+    }
+
+    @Test
+    public void testParseLong() {
+
+        Assert.assertEquals(Long.MAX_VALUE, LongCodec.parse(String.valueOf(Long.MAX_VALUE), 0, 19));
+        Assert.assertEquals(-7, LongCodec.parse("id=-7;", 3, 5));
+
+        for (String invalid : new String[] { "", "-", "1a", "9223372036854775808", "-9223372036854775809" }) {
+            try {
+                LongCodec.parse(invalid, 0, invalid.length());
+                Assert.fail("Parsed \"" + invalid + "\"");
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package org.yoong.aws.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+import org.yoong.aws.Message;
+import org.yoong.aws.impl.FileQueueService;
+import org.yoong.aws.util.Clock;
+import org.yoong.aws.util.Compression;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+/**
+ * Benchmark of the CPU and I/O trade-off of compressing message bodies.
+ *
+ * <p>
+ * For JSON payloads of increasing size, measures : <br/>
+ * <li>CPU - time to deflate and inflate a body, and the compression ratio</li>
+ * <li>I/O - FileQueueService push, pull and delete throughput with a backlog, and the size of the primary file, with
+ * compression disabled and enabled</li>
+ * </p>
+ *
+ * Usage : <code>CompressionBenchmark [directory] [backlog]</code>
+ */
+public class CompressionBenchmark {
+
+    private static final int[] PAYLOAD_SIZES = { 256, 1024, 4096, 16384, 65536 };
+
+    public static void main(String[] args) throws IOException {
+
+        File directory = new File((args.length > 0) ? args[0] : "CompressionBenchmark");
+        int backlog = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+
+        System.out.printf("%8s %8s %10s %10s %12s %12s %12s %12s%n", "payload", "ratio", "deflate", "inflate",
+                "plain ops/s", "deflate ops/s", "plain file", "deflate file");
+
+        for (int size : PAYLOAD_SIZES) {
+            String body = payload(size);
+            byte[] bytes = body.getBytes(Charsets.UTF_8);
+            byte[] compressed = Compression.deflate(bytes);
+
+            long deflate = time(bytes, true);
+            long inflate = time(compressed, false);
+
+            long[] plain = fileQueue(directory, body, backlog, Compression.DISABLED);
+            long[] deflated = fileQueue(directory, body, backlog, 0);
+
+            System.out.printf("%8d %8.1f %8dus %8dus %12d %12d %12d %12d%n", bytes.length,
+                    (double) bytes.length / compressed.length, TimeUnit.NANOSECONDS.toMicros(deflate),
+                    TimeUnit.NANOSECONDS.toMicros(inflate), plain[0], deflated[0], plain[1], deflated[1]);
+        }
+    }
+
+    /**
+     * Generate a JSON array of similar records, of roughly the given size.
+     */
+    private static String payload(int size) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; sb.length() < size; i++) {
+            sb.append("{\"id\":").append(i).append(",\"customer\":\"customer-").append(i % 17)
+                    .append("\",\"status\":\"PENDING\",\"amount\":").append(i * 37 % 1000).append("},");
+        }
+        return sb.append("{}]").toString();
+    }
+
+    /**
+     * @return average nanoseconds to deflate or inflate the input
+     */
+    private static long time(byte[] input, boolean deflate) {
+        int iterations = 2000;
+        for (int i = 0; i < iterations; i++) {
+            run(input, deflate);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            run(input, deflate);
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    private static byte[] run(byte[] input, boolean deflate) {
+        return deflate ? Compression.deflate(input) : Compression.inflate(input);
+    }
+
+    /**
+     * @return push, pull and delete cycles per second with a backlog, and the size of the primary file in bytes
+     */
+    private static long[] fileQueue(File directory, String body, int backlog, int threshold) throws IOException {
+
+        cleanUp(directory);
+
+        FileQueueService service = new FileQueueService(directory, new Clock(), threshold);
+        String url = service.createQueue("benchmark", 30, TimeUnit.SECONDS);
+
+        for (int i = 0; i < backlog; i++) {
+            service.push(url, body);
+        }
+        File queueDirectory = new File(directory, Hashing.md5().hashString("benchmark", Charsets.UTF_8).toString());
+        long fileSize = new File(queueDirectory, "primary").length();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < backlog; i++) {
+            service.push(url, body);
+            Message msg = service.pull(url);
+            service.delete(url, msg);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        cleanUp(directory);
+
+        return new long[] { (long) (backlog / (elapsed / 1e9)), fileSize };
+    }
+
+    private static void cleanUp(File directory) throws IOException {
+        if (!directory.exists()) {
+            return;
+        }
+
+        Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
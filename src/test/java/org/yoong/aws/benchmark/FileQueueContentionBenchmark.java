@@ -0,0 +1,305 @@
+package org.yoong.aws.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.yoong.aws.Message;
+import org.yoong.aws.impl.FileQueueService;
+import org.yoong.aws.metrics.Histogram;
+import org.yoong.aws.util.Clock;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Contention benchmark and stress test of a FileQueueService shared by several JVMs.
+ *
+ * <p>
+ * For each number of processes and backlog size, the queue is filled with the backlog, then child JVMs are launched
+ * against the same home directory, half of them producers and half consumers. <br/>
+ * <li>producers - push a fixed number of uniquely numbered messages</li>
+ * <li>consumers - pull and delete messages, recording each body, until the producers are done and the queue stays
+ * empty</li>
+ * The children start together once all of them are running, so JVM startup is not measured.
+ * </p>
+ *
+ * <p>
+ * For each run, reports : <br/>
+ * <li>throughput - messages delivered per second, between the first child starting and the last one finishing</li>
+ * <li>lock wait - the worst p50, p99 and max wait for the queue's lock across children, in microseconds</li>
+ * <li>duplicates - messages delivered more than once</li>
+ * <li>lost - messages pushed, but neither delivered nor left in the queue</li>
+ * </p>
+ *
+ * Usage : <code>FileQueueContentionBenchmark [directory] [max processes] [messages per producer] [backlog...]</code>
+ */
+public class FileQueueContentionBenchmark {
+
+    private static final String QUEUE = "contention";
+    private static final long VISIBILITY_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    private static final long IDLE_MILLIS = 500;
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length > 0 && "producer".equals(args[0])) {
+            produce(new File(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+        if (args.length > 0 && "consumer".equals(args[0])) {
+            consume(new File(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+
+        File directory = new File((args.length > 0) ? args[0] : "FileQueueContentionBenchmark");
+        int maxProcesses = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+        int messages = (args.length > 2) ? Integer.parseInt(args[2]) : 500;
+        List<Integer> backlogs = new ArrayList<Integer>();
+        for (int i = 3; i < args.length; i++) {
+            backlogs.add(Integer.parseInt(args[i]));
+        }
+        if (backlogs.isEmpty()) {
+            backlogs.add(0);
+            backlogs.add(1000);
+        }
+
+        System.out.printf("%9s %8s %10s %10s %10s %10s %10s %8s %8s%n", "processes", "backlog", "delivered",
+                "msgs/s", "wait p50", "wait p99", "wait max", "dupes", "lost");
+
+        for (int backlog : backlogs) {
+            for (int processes = 2; processes <= maxProcesses; processes *= 2) {
+                run(directory, processes, backlog, messages);
+            }
+        }
+    }
+
+    /**
+     * Run producers and consumers in child JVMs, and check every message was delivered exactly once.
+     */
+    private static void run(File directory, int processes, int backlog, int messages) throws Exception {
+
+        cleanUp(directory);
+        File home = new File(directory, "home");
+
+        FileQueueService service = new FileQueueService(home, new Clock());
+        String url = service.createQueue(QUEUE, VISIBILITY_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        Set<String> expected = new HashSet<String>();
+        for (int i = 0; i < backlog; i++) {
+            String body = "b-" + i;
+            service.push(url, body);
+            expected.add(body);
+        }
+
+        int producers = processes / 2;
+        int consumers = processes - producers;
+        for (int p = 0; p < producers; p++) {
+            for (int i = 0; i < messages; i++) {
+                expected.add("p" + p + "-" + i);
+            }
+        }
+
+        List<Process> children = new ArrayList<Process>();
+        for (int p = 0; p < producers; p++) {
+            children.add(launch("producer", directory, p, messages));
+        }
+        for (int c = 0; c < consumers; c++) {
+            children.add(launch("consumer", directory, c, 0));
+        }
+
+        // children wait for the start marker once they are up, so all of them start together
+        for (int i = 0; i < processes; i++) {
+            String ready = (i < producers) ? "ready-producer-" + i : "ready-consumer-" + (i - producers);
+            while (!new File(directory, ready).exists()) {
+                Thread.sleep(10);
+            }
+        }
+        new File(directory, "start").createNewFile();
+
+        long first = Long.MAX_VALUE;
+        long last = 0;
+        long[] wait = new long[3];
+        for (int i = 0; i < children.size(); i++) {
+            String[] result = result(children.get(i));
+            first = Math.min(first, Long.parseLong(result[0]));
+            last = Math.max(last, Long.parseLong(result[1]));
+            for (int w = 0; w < wait.length; w++) {
+                wait[w] = Math.max(wait[w], Long.parseLong(result[2 + w]));
+            }
+            // consumers only finish once the producers are done
+            if (i == producers - 1) {
+                new File(directory, "done").createNewFile();
+            }
+        }
+
+        Map<String, Integer> deliveries = new HashMap<String, Integer>();
+        for (int c = 0; c < consumers; c++) {
+            for (String body : Files.readAllLines(new File(directory, "received-" + c).toPath(), Charsets.UTF_8)) {
+                Integer count = deliveries.get(body);
+                deliveries.put(body, (count == null) ? 1 : count + 1);
+            }
+        }
+
+        int duplicates = 0;
+        for (int count : deliveries.values()) {
+            duplicates += count - 1;
+        }
+
+        // messages left in the queue were not delivered, but are not lost either
+        Set<String> missing = new HashSet<String>(expected);
+        missing.removeAll(deliveries.keySet());
+        Message msg;
+        while ((msg = service.pull(url)) != null) {
+            missing.remove(msg.getBody());
+        }
+
+        long delivered = deliveries.size();
+        System.out.printf("%9d %8d %10d %10.0f %10d %10d %10d %8d %8d%n", processes, backlog, delivered,
+                delivered * 1000.0 / Math.max(1, last - first), wait[0], wait[1], wait[2], duplicates,
+                missing.size());
+
+        cleanUp(directory);
+    }
+
+    private static Process launch(String role, File directory, int index, int messages) throws IOException {
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+        List<String> command = new ArrayList<String>();
+        command.add(java);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(FileQueueContentionBenchmark.class.getName());
+        command.add(role);
+        command.add(directory.getPath());
+        command.add(String.valueOf(index));
+        if ("producer".equals(role)) {
+            command.add(String.valueOf(messages));
+        }
+
+        return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    }
+
+    /**
+     * Wait for a child to exit.
+     *
+     * @return start time, end time, and lock wait p50, p99 and max of the child
+     */
+    private static String[] result(Process child) throws IOException, InterruptedException {
+
+        String line;
+        String result = null;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(child.getInputStream(), Charsets.UTF_8));
+        try {
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("result ")) {
+                    result = line.substring("result ".length());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (child.waitFor() != 0 || result == null) {
+            throw new IllegalStateException("Child process failed with exit code " + child.exitValue());
+        }
+        return result.split(" ");
+    }
+
+    private static void produce(File directory, int index, int messages) throws IOException, InterruptedException {
+
+        FileQueueService service = new FileQueueService(new File(directory, "home"), new Clock());
+        String url = service.createQueue(QUEUE, VISIBILITY_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        long start = awaitStart(directory, "ready-producer-" + index);
+        for (int i = 0; i < messages; i++) {
+            service.push(url, "p" + index + "-" + i);
+        }
+
+        printResult(start, System.currentTimeMillis(), service.getLockWait(url));
+    }
+
+    private static void consume(File directory, int index) throws IOException, InterruptedException {
+
+        FileQueueService service = new FileQueueService(new File(directory, "home"), new Clock());
+        String url = service.createQueue(QUEUE, VISIBILITY_TIMEOUT, TimeUnit.MILLISECONDS);
+        File done = new File(directory, "done");
+
+        PrintWriter received = new PrintWriter(new FileWriter(new File(directory, "received-" + index)));
+        try {
+            long start = awaitStart(directory, "ready-consumer-" + index);
+            long idleSince = 0;
+            long end = start;
+            while (true) {
+                Message msg = service.pull(url);
+                if (msg != null) {
+                    received.println(msg.getBody());
+                    service.delete(url, msg);
+                    idleSince = 0;
+                    end = System.currentTimeMillis();
+                } else if (idleSince == 0) {
+                    idleSince = System.currentTimeMillis();
+                } else if (done.exists() && System.currentTimeMillis() - idleSince > IDLE_MILLIS) {
+                    break;
+                } else {
+                    Thread.sleep(5);
+                }
+            }
+            // end at the last delivery, rather than after waiting to be sure the queue stays empty
+            printResult(start, end, service.getLockWait(url));
+        } finally {
+            received.close();
+        }
+    }
+
+    /**
+     * Mark this child as ready, and wait for the parent to start all of them.
+     */
+    private static long awaitStart(File directory, String ready) throws IOException, InterruptedException {
+        new File(directory, ready).createNewFile();
+        File start = new File(directory, "start");
+        while (!start.exists()) {
+            Thread.sleep(1);
+        }
+        return System.currentTimeMillis();
+    }
+
+    private static void printResult(long start, long end, Histogram lockWait) {
+        System.out.println("result " + start + " " + end + " " + lockWait.getPercentile(50)
+                + " " + lockWait.getPercentile(99) + " " + lockWait.getMax());
+    }
+
+    private static void cleanUp(File directory) throws IOException {
+        if (!directory.exists()) {
+            return;
+        }
+
+        Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
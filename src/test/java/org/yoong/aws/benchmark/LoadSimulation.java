@@ -0,0 +1,362 @@
+package org.yoong.aws.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.yoong.aws.Message;
+import org.yoong.aws.QueueService;
+import org.yoong.aws.impl.FileQueueService;
+import org.yoong.aws.impl.InMemoryQueueService;
+import org.yoong.aws.metrics.QueueMetricsSource;
+import org.yoong.aws.util.VirtualClock;
+
+/**
+ * Discrete event simulation of producers and consumers against a local QueueService, on a {@link VirtualClock}.
+ *
+ * <p>
+ * <h4>Model</h4>
+ * <li>producers - push messages at random intervals, averaging the given rate, for the length of the run</li>
+ * <li>consumers - pull a message, process it for a random delay around the given mean, then delete it. An empty pull
+ * is retried after a poll interval</li>
+ * <li>failures - a consumer fails to process a message at the given rate, and restarts without deleting it, so the
+ * message is redelivered once its visibility timeout expires</li>
+ * Events are run in order of time, with the clock moved to each event's time before it runs, so visibility timeouts
+ * expire inside the backend exactly as they would in real time. <br/>
+ * Delays are drawn from an exponential distribution using a seeded Random, so a run with the same seed and
+ * parameters is repeatable.
+ * </p>
+ *
+ * <p>
+ * <h4>Report</h4>
+ * Every simulated minute, the push, delete, redelivery and failure rates, the backlog of undeleted messages not
+ * held by any consumer, and the number of consumers processing a message. <br/>
+ * At the end, the totals, the wall time of the run, and the queue's message age metrics.
+ * </p>
+ *
+ * Usage :
+ * <code>LoadSimulation [memory|file] [seconds] [pushes per second] [consumers] [processing ms] [failure rate]
+ * [visibility timeout seconds] [seed]</code>
+ */
+public class LoadSimulation {
+
+    private static final int PRODUCE = 0;
+    private static final int POLL = 1;
+    private static final int COMPLETE = 2;
+    private static final int SAMPLE = 3;
+
+    private static final long POLL_INTERVAL = 100;
+    private static final long SAMPLE_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    private static final long START = 1000000000000L;
+
+    /**
+     * Parameters of a run.
+     */
+    public static class Scenario {
+        long duration = TimeUnit.HOURS.toMillis(1);
+        double pushRate = 200;
+        int consumers = 20;
+        double processingMillis = 80;
+        double failureRate = 0.01;
+        long visibilityTimeout = TimeUnit.SECONDS.toMillis(30);
+        long seed = 42;
+    }
+
+    private static class Event {
+        final long time;
+        final long sequence;
+        final int type;
+        final int consumer;
+        final int id;
+        final Message msg;
+
+        Event(long time, long sequence, int type, int consumer, int id, Message msg) {
+            this.time = time;
+            this.sequence = sequence;
+            this.type = type;
+            this.consumer = consumer;
+            this.id = id;
+            this.msg = msg;
+        }
+    }
+
+    private final QueueService service;
+    private final VirtualClock clock;
+    private final Scenario scenario;
+    private final Random random;
+    private final String url;
+
+    // events at the same time are run in the order they were scheduled
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>(1024, new Comparator<Event>() {
+        @Override
+        public int compare(Event a, Event b) {
+            if (a.time != b.time) {
+                return (a.time < b.time) ? -1 : 1;
+            }
+            return (a.sequence < b.sequence) ? -1 : ((a.sequence == b.sequence) ? 0 : 1);
+        }
+    });
+    private long sequence;
+    private double nextPush;
+
+    // ids of messages received at least once, to tell redeliveries apart
+    private final BitSet received = new BitSet();
+    // ids of deleted messages, and the number of consumers holding each message, which may be more than one once a
+    // message is redelivered while a late or failed consumer still holds it
+    private final BitSet deletedIds = new BitSet();
+    private final Map<Integer, Integer> holders = new HashMap<Integer, Integer>();
+    // undeleted messages held by at least one consumer
+    private int inFlight;
+
+    int pushed;
+    long deleted;
+    long redelivered;
+    long failed;
+    long lateDeletes;
+    long emptyPulls;
+    // lowest backlog after any event
+    long minBacklog = Long.MAX_VALUE;
+    private int processing;
+    private long eventCount;
+
+    // totals at the previous sample
+    private long[] sampled = new long[4];
+
+    public LoadSimulation(QueueService service, VirtualClock clock, Scenario scenario) {
+        this.service = service;
+        this.clock = clock;
+        this.scenario = scenario;
+        this.random = new Random(scenario.seed);
+        this.url = service.createQueue("simulation", scenario.visibilityTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run the scenario to its end, printing a row every sample interval.
+     *
+     * @return number of events run
+     */
+    public long run() {
+
+        long start = clock.getCurrentTime();
+        long end = start + scenario.duration;
+
+        nextPush = start;
+        schedule(start, PRODUCE, 0, 0, null);
+        for (int i = 0; i < scenario.consumers; i++) {
+            schedule(start, POLL, i, 0, null);
+        }
+        schedule(start + SAMPLE_INTERVAL, SAMPLE, 0, 0, null);
+
+        System.out.printf("%8s %10s %10s %12s %10s %10s %12s%n", "minute", "push/s", "delete/s", "redeliver/s",
+                "failed/s", "backlog", "processing");
+
+        Event event;
+        while ((event = events.poll()) != null && event.time <= end) {
+            clock.advanceTo(event.time);
+            eventCount++;
+
+            switch (event.type) {
+            case PRODUCE:
+                produce(end);
+                break;
+            case POLL:
+                poll(event.consumer);
+                break;
+            case COMPLETE:
+                complete(event.consumer, event.id, event.msg);
+                break;
+            case SAMPLE:
+                sample(start);
+                break;
+            }
+            minBacklog = Math.min(minBacklog, backlog());
+        }
+
+        return eventCount;
+    }
+
+    private void produce(long end) {
+
+        service.push(url, Integer.toString(pushed++));
+
+        nextPush += exponential(1000 / scenario.pushRate);
+        if (nextPush < end) {
+            schedule((long) nextPush, PRODUCE, 0, 0, null);
+        }
+    }
+
+    private void poll(int consumer) {
+
+        Message msg = service.pull(url);
+
+        if (msg == null) {
+            emptyPulls++;
+            schedule(clock.getCurrentTime() + POLL_INTERVAL, POLL, consumer, 0, null);
+            return;
+        }
+
+        int id = Integer.parseInt(msg.getBody());
+        if (received.get(id)) {
+            redelivered++;
+        } else {
+            received.set(id);
+        }
+
+        processing++;
+        Integer held = holders.get(id);
+        if (held == null) {
+            inFlight++;
+            held = 0;
+        }
+        holders.put(id, held + 1);
+        long delay = Math.round(exponential(scenario.processingMillis));
+
+        // a failed consumer keeps the message for as long as it would have processed it, and never deletes it
+        if (random.nextDouble() < scenario.failureRate) {
+            failed++;
+            msg = null;
+        }
+        schedule(clock.getCurrentTime() + delay, COMPLETE, consumer, id, msg);
+    }
+
+    private void complete(int consumer, int id, Message msg) {
+
+        processing--;
+
+        if (msg != null) {
+            if (service.delete(url, msg)) {
+                deleted++;
+                deletedIds.set(id);
+                // no longer counted as in flight, even while another consumer still holds it
+                inFlight--;
+            } else {
+                // processed for longer than the visibility timeout, and already redelivered
+                lateDeletes++;
+            }
+        }
+
+        int held = holders.remove(id) - 1;
+        if (held > 0) {
+            holders.put(id, held);
+        } else if (!deletedIds.get(id)) {
+            inFlight--;
+        }
+
+        poll(consumer);
+    }
+
+    private void sample(long start) {
+
+        long now = clock.getCurrentTime();
+        long[] totals = { pushed, deleted, redelivered, failed };
+        double seconds = SAMPLE_INTERVAL / 1000.0;
+
+        System.out.printf("%8d %10.1f %10.1f %12.2f %10.2f %10d %12d%n", (now - start) / SAMPLE_INTERVAL,
+                (totals[0] - sampled[0]) / seconds, (totals[1] - sampled[1]) / seconds,
+                (totals[2] - sampled[2]) / seconds, (totals[3] - sampled[3]) / seconds,
+                backlog(), processing);
+
+        sampled = totals;
+        schedule(now + SAMPLE_INTERVAL, SAMPLE, 0, 0, null);
+    }
+
+    /**
+     * @return number of undeleted messages not held by any consumer
+     */
+    private long backlog() {
+        return pushed - deleted - inFlight;
+    }
+
+    private void schedule(long time, int type, int consumer, int id, Message msg) {
+        events.add(new Event(time, sequence++, type, consumer, id, msg));
+    }
+
+    private double exponential(double mean) {
+        return -mean * Math.log(1 - random.nextDouble());
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        String backend = (args.length > 0) ? args[0] : "memory";
+        Scenario scenario = new Scenario();
+        if (args.length > 1) {
+            scenario.duration = TimeUnit.SECONDS.toMillis(Long.parseLong(args[1]));
+        }
+        if (args.length > 2) {
+            scenario.pushRate = Double.parseDouble(args[2]);
+        }
+        if (args.length > 3) {
+            scenario.consumers = Integer.parseInt(args[3]);
+        }
+        if (args.length > 4) {
+            scenario.processingMillis = Double.parseDouble(args[4]);
+        }
+        if (args.length > 5) {
+            scenario.failureRate = Double.parseDouble(args[5]);
+        }
+        if (args.length > 6) {
+            scenario.visibilityTimeout = TimeUnit.SECONDS.toMillis(Long.parseLong(args[6]));
+        }
+        if (args.length > 7) {
+            scenario.seed = Long.parseLong(args[7]);
+        }
+
+        VirtualClock clock = new VirtualClock(START);
+        File directory = new File("LoadSimulation");
+        QueueService service;
+        if ("file".equals(backend)) {
+            cleanUp(directory);
+            service = new FileQueueService(directory, clock);
+        } else {
+            service = new InMemoryQueueService(clock);
+        }
+
+        LoadSimulation simulation = new LoadSimulation(service, clock, scenario);
+
+        long wallStart = System.nanoTime();
+        long events = simulation.run();
+        long wall = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - wallStart);
+
+        System.out.printf("%nsimulated %d s in %d ms of wall time, %d events (%.0f events/s)%n",
+                TimeUnit.MILLISECONDS.toSeconds(scenario.duration), wall, events, events * 1000.0 / Math.max(1, wall));
+        System.out.printf("pushed %d, deleted %d, redelivered %d, failed %d, late deletes %d, empty pulls %d%n",
+                simulation.pushed, simulation.deleted, simulation.redelivered, simulation.failed,
+                simulation.lateDeletes, simulation.emptyPulls);
+
+        System.out.println(((QueueMetricsSource) service).getMetrics(simulation.url));
+        if (service instanceof FileQueueService) {
+            cleanUp(directory);
+        }
+    }
+
+    private static void cleanUp(File directory) throws IOException {
+        if (!directory.exists()) {
+            return;
+        }
+
+        Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,85 @@
+package org.yoong.aws.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.yoong.aws.impl.InMemoryQueueService;
+import org.yoong.aws.util.VirtualClock;
+
+public class LoadSimulationTest {
+
+    private static final long START = 1000000000000L;
+
+    /**
+     * Test that the clock only moves when told to, and never back.
+     */
+    @Test
+    public void testVirtualClock() {
+
+        VirtualClock clock = new VirtualClock(START);
+        Assert.assertEquals(START, clock.getCurrentTime());
+
+        clock.advance(500);
+        Assert.assertEquals(START + 500, clock.getCurrentTime());
+        clock.advanceTo(START + 2000);
+        Assert.assertEquals(START + 2000, clock.getCurrentTime());
+
+        try {
+            clock.advanceTo(START + 1999);
+            Assert.fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals(START + 2000, clock.getCurrentTime());
+        }
+    }
+
+    /**
+     * Test that a run with the same seed and scenario gives the same totals.
+     */
+    @Test
+    public void testRepeatable() {
+
+        LoadSimulation first = run();
+        LoadSimulation second = run();
+
+        Assert.assertTrue(first.pushed > 0);
+        Assert.assertEquals(first.pushed, second.pushed);
+        Assert.assertEquals(first.deleted, second.deleted);
+        Assert.assertEquals(first.redelivered, second.redelivered);
+        Assert.assertEquals(first.failed, second.failed);
+        Assert.assertEquals(first.lateDeletes, second.lateDeletes);
+        Assert.assertEquals(first.emptyPulls, second.emptyPulls);
+    }
+
+    /**
+     * Test that the backlog never goes negative, while late and failed consumers hold messages which have been
+     * redelivered to others.
+     */
+    @Test
+    public void testBacklog() {
+
+        LoadSimulation simulation = run();
+
+        Assert.assertTrue(simulation.failed > 0);
+        Assert.assertTrue(simulation.lateDeletes > 0);
+        Assert.assertTrue(simulation.minBacklog >= 0);
+    }
+
+    private LoadSimulation run() {
+
+        LoadSimulation.Scenario scenario = new LoadSimulation.Scenario();
+        scenario.duration = TimeUnit.MINUTES.toMillis(5);
+        scenario.pushRate = 50;
+        scenario.consumers = 20;
+        scenario.processingMillis = 80;
+        scenario.failureRate = 0.05;
+        // short enough for slow consumers to see their messages redelivered
+        scenario.visibilityTimeout = 200;
+        scenario.seed = 7;
+
+        VirtualClock clock = new VirtualClock(START);
+        LoadSimulation simulation = new LoadSimulation(new InMemoryQueueService(clock), clock, scenario);
+        simulation.run();
+        return simulation;
+    }
+}
@@ -0,0 +1,130 @@
+package org.yoong.aws.benchmark;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.yoong.aws.Message;
+import org.yoong.aws.impl.InMemoryQueueService;
+import org.yoong.aws.net.QueueClient;
+import org.yoong.aws.net.QueueServer;
+import org.yoong.aws.util.Clock;
+
+/**
+ * Loopback benchmark of the QueueServer and QueueClient, wrapping an InMemoryQueueService.
+ *
+ * <p>
+ * Measures : <br/>
+ * <li>latency - push, pull and delete round trips from a single thread</li>
+ * <li>throughput - push, pull and delete cycles from many threads pipelining on one connection</li>
+ * <li>batched throughput - the same messages sent with pushBatch and pullBatch</li>
+ * </p>
+ *
+ * Usage : <code>QueueServerBenchmark [operations] [threads]</code>
+ */
+public class QueueServerBenchmark {
+
+    private static final String BODY = "{\"id\":1,\"payload\":\"benchmark message\"}";
+
+    public static void main(String[] args) throws Exception {
+
+        int operations = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+
+        QueueServer server = new QueueServer(new InMemoryQueueService(new Clock()),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4);
+        server.start();
+
+        try (QueueClient client = new QueueClient(server.getAddress())) {
+            String url = client.createQueue("benchmark", 30, TimeUnit.SECONDS);
+
+            latency(client, url, operations);
+            throughput(client, url, operations, threads);
+            batched(client, url, operations, 100);
+        } finally {
+            server.close();
+        }
+    }
+
+    private static void latency(QueueClient client, String url, int operations) {
+
+        // warm up
+        cycle(client, url, operations / 10);
+
+        long[] samples = new long[operations];
+        for (int i = 0; i < operations; i++) {
+            long start = System.nanoTime();
+            client.push(url, BODY);
+            client.delete(url, client.pull(url));
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+
+        System.out.printf("latency (push + pull + delete) : p50 %d us, p99 %d us, p99.9 %d us%n",
+                micros(samples, 0.5), micros(samples, 0.99), micros(samples, 0.999));
+    }
+
+    private static void throughput(final QueueClient client, final String url, int operations, int threads)
+            throws InterruptedException {
+
+        final int perThread = operations / threads;
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    cycle(client, url, perThread);
+                }
+            }));
+        }
+
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("throughput (%d threads, pipelined) : %.0f cycles/s%n", threads,
+                perThread * threads / (elapsed / 1e9));
+    }
+
+    private static void batched(QueueClient client, String url, int operations, int batchSize) {
+
+        List<String> batch = new ArrayList<String>();
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(BODY);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < operations / batchSize; i++) {
+            client.pushBatch(url, batch);
+            for (Message msg : client.pullBatch(url, batchSize)) {
+                client.delete(url, msg);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("throughput (batches of %d) : %.0f cycles/s%n", batchSize,
+                (operations / batchSize) * batchSize / (elapsed / 1e9));
+    }
+
+    private static void cycle(QueueClient client, String url, int count) {
+        for (int i = 0; i < count; i++) {
+            client.push(url, BODY);
+            Message msg = client.pull(url);
+            if (msg != null) {
+                client.delete(url, msg);
+            }
+        }
+    }
+
+    private static long micros(long[] sorted, double percentile) {
+        return TimeUnit.NANOSECONDS.toMicros(sorted[(int) Math.min(sorted.length - 1, sorted.length * percentile)]);
+    }
+}
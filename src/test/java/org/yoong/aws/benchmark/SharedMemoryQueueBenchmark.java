@@ -0,0 +1,67 @@
+package org.yoong.aws.benchmark;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.yoong.aws.Message;
+import org.yoong.aws.impl.SharedMemoryQueueService;
+import org.yoong.aws.util.Clock;
+
+/**
+ * Latency benchmark of the SharedMemoryQueueService.
+ *
+ * <p>
+ * Measures push, pull and delete latency against a ring in the given directory. Running a second instance against the
+ * same directory while the first runs exercises contention between JVMs.
+ * </p>
+ *
+ * Usage : <code>SharedMemoryQueueBenchmark directory [operations]</code>
+ */
+public class SharedMemoryQueueBenchmark {
+
+    private static final String BODY = "{\"id\":1,\"payload\":\"benchmark message\"}";
+
+    public static void main(String[] args) {
+
+        File directory = new File(args[0]);
+        int operations = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+
+        SharedMemoryQueueService service = new SharedMemoryQueueService(directory, 64 * 1024, 256, new Clock());
+        String url = service.createQueue("benchmark", 30, TimeUnit.SECONDS);
+
+        long[] push = new long[operations];
+        long[] pull = new long[operations];
+        long[] delete = new long[operations];
+
+        for (int i = 0; i < operations; i++) {
+            long start = System.nanoTime();
+            service.push(url, BODY);
+            long pushed = System.nanoTime();
+            Message msg = service.pull(url);
+            long pulled = System.nanoTime();
+            if (msg != null) {
+                service.delete(url, msg);
+            }
+            long deleted = System.nanoTime();
+
+            push[i] = pushed - start;
+            pull[i] = pulled - pushed;
+            delete[i] = deleted - pulled;
+        }
+
+        print("push", push);
+        print("pull", pull);
+        print("delete", delete);
+    }
+
+    private static void print(String operation, long[] samples) {
+        Arrays.sort(samples);
+        System.out.printf("%s : p50 %d ns, p99 %d ns, p99.9 %d ns%n", operation, percentile(samples, 0.5),
+                percentile(samples, 0.99), percentile(samples, 0.999));
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * percentile)];
+    }
+}
@@ -0,0 +1,216 @@
+package org.yoong.aws.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.yoong.aws.Message;
+import org.yoong.aws.QueueHandle;
+import org.yoong.aws.TypedMessage;
+import org.yoong.aws.TypedQueue;
+import org.yoong.aws.codec.BytesCodec;
+import org.yoong.aws.codec.LongCodec;
+import org.yoong.aws.codec.MessageCodec;
+import org.yoong.aws.impl.InMemoryQueueService;
+import org.yoong.aws.util.Clock;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Benchmark of a TypedQueue against formatting and parsing bodies by hand.
+ *
+ * <p>
+ * Pushes, pulls and deletes small order records through an InMemoryQueueService, so the cost of the queue itself is
+ * small next to the conversion, and measures for each path : <br/>
+ * <li>time - nanoseconds per push, pull and delete</li>
+ * <li>allocation - bytes allocated per push, pull and delete, where the JVM can report it</li>
+ * The string path concatenates the fields and splits the body, as producers and consumers commonly do. The typed path
+ * appends the fields to the reused buffer, and parses them in place.
+ * </p>
+ *
+ * <p>
+ * The same is measured for binary payloads, encoded to a base64 String by hand against the {@link BytesCodec}, which
+ * writes the base64 characters straight into the reused buffer.
+ * </p>
+ *
+ * Usage : <code>TypedQueueBenchmark [operations]</code>
+ */
+public class TypedQueueBenchmark {
+
+    /**
+     * Record converted by both paths.
+     */
+    static class Order {
+        final long id;
+        final String customer;
+        final long amount;
+
+        Order(long id, String customer, long amount) {
+            this.id = id;
+            this.customer = customer;
+            this.amount = amount;
+        }
+    }
+
+    /**
+     * Codec writing an order as <code>id,customer,amount</code>.
+     */
+    static class OrderCodec implements MessageCodec<Order> {
+
+        @Override
+        public void encode(Order order, StringBuilder out) {
+            out.append(order.id).append(',').append(order.customer).append(',').append(order.amount);
+        }
+
+        @Override
+        public Order decode(CharSequence body) {
+            int first = indexOf(body, ',', 0);
+            int second = indexOf(body, ',', first + 1);
+            return new Order(LongCodec.parse(body, 0, first), body.subSequence(first + 1, second).toString(),
+                    LongCodec.parse(body, second + 1, body.length()));
+        }
+
+        private static int indexOf(CharSequence body, char c, int from) {
+            for (int i = from; i < body.length(); i++) {
+                if (body.charAt(i) == c) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("Invalid order \"" + body + "\"");
+        }
+    }
+
+    /**
+     * One way of pushing, pulling and deleting values.
+     */
+    private interface Path {
+        void run(int operations);
+    }
+
+    private static final String[] CUSTOMERS = { "alice", "bob", "carol", "dave" };
+    private static final int PAYLOAD_SIZE = 256;
+
+    // consumed results, so the JIT cannot drop the conversions
+    private static long checksum;
+
+    public static void main(String[] args) {
+
+        int operations = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+
+        InMemoryQueueService service = new InMemoryQueueService(new Clock());
+        String url = service.createQueue("benchmark", 30, TimeUnit.SECONDS);
+        final QueueHandle handle = service.getQueueHandle(url);
+        final TypedQueue<Order> typed = new TypedQueue<Order>(handle, new OrderCodec());
+        final TypedQueue<byte[]> typedBytes = new TypedQueue<byte[]>(handle, new BytesCodec());
+
+        final byte[] payload = new byte[PAYLOAD_SIZE];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+
+        String[] names = { "string", "typed", "base64", "bytes" };
+        Path[] paths = { new Path() {
+            @Override
+            public void run(int n) {
+                strings(handle, n);
+            }
+        }, new Path() {
+            @Override
+            public void run(int n) {
+                typed(typed, n);
+            }
+        }, new Path() {
+            @Override
+            public void run(int n) {
+                base64Strings(handle, payload, n);
+            }
+        }, new Path() {
+            @Override
+            public void run(int n) {
+                typedBytes(typedBytes, payload, n);
+            }
+        } };
+
+        // warm up every path before measuring any
+        for (Path path : paths) {
+            path.run(operations);
+        }
+
+        for (int i = 0; i < paths.length; i++) {
+            report(names[i], operations, paths[i]);
+        }
+        System.out.println("checksum " + checksum);
+    }
+
+    private static void report(String name, int operations, Path path) {
+
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        path.run(operations);
+        long elapsed = System.nanoTime() - start;
+        long bytes = allocatedBytes() - allocated;
+
+        System.out.printf("%-8s %8d ns/op %10s bytes/op%n", name, elapsed / operations,
+                (allocated < 0) ? "n/a" : String.valueOf(bytes / operations));
+    }
+
+    private static void strings(QueueHandle handle, int operations) {
+        for (int i = 0; i < operations; i++) {
+            Order order = new Order(i, CUSTOMERS[i & 3], i * 37L);
+            handle.push(order.id + "," + order.customer + "," + order.amount);
+
+            Message msg = handle.pull();
+            String[] fields = msg.getBody().split(",");
+            Order pulled = new Order(Long.parseLong(fields[0]), fields[1], Long.parseLong(fields[2]));
+            handle.delete(msg);
+
+            checksum += pulled.id + pulled.amount + pulled.customer.length();
+        }
+    }
+
+    private static void typed(TypedQueue<Order> typed, int operations) {
+        for (int i = 0; i < operations; i++) {
+            typed.push(new Order(i, CUSTOMERS[i & 3], i * 37L));
+
+            TypedMessage<Order> msg = typed.pull();
+            Order pulled = msg.getValue();
+            typed.delete(msg);
+
+            checksum += pulled.id + pulled.amount + pulled.customer.length();
+        }
+    }
+
+    private static void base64Strings(QueueHandle handle, byte[] payload, int operations) {
+        for (int i = 0; i < operations; i++) {
+            handle.push(BaseEncoding.base64().encode(payload));
+
+            Message msg = handle.pull();
+            byte[] pulled = BaseEncoding.base64().decode(msg.getBody());
+            handle.delete(msg);
+
+            checksum += pulled[i % pulled.length];
+        }
+    }
+
+    private static void typedBytes(TypedQueue<byte[]> typed, byte[] payload, int operations) {
+        for (int i = 0; i < operations; i++) {
+            typed.push(payload);
+
+            TypedMessage<byte[]> msg = typed.pull();
+            byte[] pulled = msg.getValue();
+            typed.delete(msg);
+
+            checksum += pulled[i % pulled.length];
+        }
+    }
+
+    /**
+     * @return bytes allocated by this thread so far, or -1 if the JVM cannot report it
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}